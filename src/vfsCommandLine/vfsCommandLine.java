@@ -85,6 +85,9 @@ public class vfsCommandLine {
 					case "clvfs":
 						lvvfs(arguments);
 						break;
+					case "rsvfs":
+						rsvfs(arguments1);
+						break;
 					case "help":
 						displayHelp();
 						break;
@@ -106,9 +109,15 @@ public class vfsCommandLine {
 					case "free":
 						free(arguments1);
 						break;
+					case "du":
+						du(arguments1);
+						break;
 					case "find":
 						find(arguments1);
 						break;
+					case "defrag":
+						defrag(arguments1);
+						break;
 					case "impvfs":
 						impvfs(arguments1);
 						break;
@@ -129,6 +138,10 @@ public class vfsCommandLine {
 			}
 		}
 		reader.close();
+		//The disks are released before leaving
+		for (Core openCore : openCores.values()){
+			openCore.closeDisk();
+		}
 		System.exit(0);
 	}
 	
@@ -248,21 +261,100 @@ public class vfsCommandLine {
 		System.out.println("Free space: "+space+"\t-\tOccupied space: "+core.getUsedSpace()+"\t-\tTotal space: "+core.getTotalSpace());
 	}
 	
+	/**
+	 * to display the total size and the number of files of an element of the VFS and of each of its sub-folders,
+	 * kept up to date by the folders so that the content of the element is not browsed
+	 * @param args vfsName and maybe the path of the element, else the current folder
+	 * @throws ExecutionErrorException
+	 * @throws SyntaxException
+	 * @throws CoreNotInitalisedException
+	 */
+	private void du(String[] args) throws ExecutionErrorException, SyntaxException, CoreNotInitalisedException{
+		if (core == null){ throw new CoreNotInitalisedException();}
+		if (args.length != 2 && args.length != 3){throw new SyntaxException();}
+		if (!core.printDiskUsage(args.length == 3 ? args[2] : "")){
+			throw new ExecutionErrorException();
+		}
+	}
+	
 	/**
 	 * to search if a file named filename is stored in the VFS named in argument, 
 	 * shall return the absolute path of the sought file if it is present in the VFS, null otherwise
-	 * This search action will be done by using the implemented visitor pattern in the method Search of the core
-	 * and return the name, the size and the path
-	 * @param args
+	 * This search action will be done by using the index of the names of the core
+	 * and return the name, the size and the path.
+	 * An option searches the names starting with the string (-p), matching a glob pattern as "*.txt" (-g) or a regular expression (-r)
+	 * @param args vfsName, maybe the option, and the searched string
 	 * @throws ExecutionErrorException
 	 * @throws SyntaxException
 	 * @throws CoreNotInitalisedException
 	 */
 	private void find(String[] args) throws ExecutionErrorException, SyntaxException, CoreNotInitalisedException{
 		if (core == null){ throw new CoreNotInitalisedException();}
-		if(args.length!=3){throw new SyntaxException();}
-		core.printSearch(args[2]);
-		
+		if(args.length!=3 && args.length!=4){throw new SyntaxException();}
+		int mode = NameIndex.MATCH_NAME;
+		if (args.length == 4){
+			switch (args[2]){
+			case "-p":
+				mode = NameIndex.MATCH_PREFIX;
+				break;
+			case "-g":
+				mode = NameIndex.MATCH_GLOB;
+				break;
+			case "-r":
+				mode = NameIndex.MATCH_REGEX;
+				break;
+			default:
+				throw new SyntaxException();
+			}
+		}
+		if (!core.printSearch(args[args.length - 1], mode)){
+			throw new ExecutionErrorException();
+		}
+	}
+
+	/**
+	 * moves the content of the fragmented files of the VFS to contiguous blocks, and displays the fragmentation before and after.
+	 * An optional budget limits the number of blocks read or copied, the command can then be called again to continue where it stopped :
+	 * the fragmentation displayed is then the one of the files examined so far, with the proportion of the files examined.
+	 * @param args vfsName and maybe the maximum number of blocks to read or copy
+	 * @throws ExecutionErrorException
+	 * @throws SyntaxException
+	 * @throws CoreNotInitalisedException
+	 */
+	private void defrag(String[] args) throws ExecutionErrorException, SyntaxException, CoreNotInitalisedException{
+		if (core == null){ throw new CoreNotInitalisedException();}
+		if (args.length != 2 && args.length != 3){throw new SyntaxException();}
+		long budget = Long.MAX_VALUE;
+		if (args.length == 3){
+			try {
+				budget = Long.valueOf(args[2]);
+			} catch (NumberFormatException e){
+				throw new SyntaxException();
+			}
+		}
+		//Without a budget all the files are examined anyway, the whole disk is measured first
+		double before = (args.length == 3) ? core.getScannedFragmentation() : core.getFragmentation();
+		String measuredBefore = describeFragmentation(before, core.getScannedProportion());
+		long moved = core.defragment(budget);
+		if (before < 0 || moved < 0){
+			throw new ExecutionErrorException();
+		}
+		String measuredAfter = describeFragmentation(core.getScannedFragmentation(), core.getScannedProportion());
+		System.out.println("Fragmentation before: "+measuredBefore+"\t-\tBlocks moved: "+moved+"\t-\tFragmentation after: "+measuredAfter);
+	}
+
+	/**
+	 * @param fragmentation the fragmentation of the files examined
+	 * @param examined the proportion of the files of the VFS examined
+	 * @return the fragmentation, as a percentage, with the proportion of the files examined if they haven't all been
+	 */
+	private static String describeFragmentation(double fragmentation, double examined){
+		if (examined <= 0){
+			return "not measured yet";
+		} else if (examined < 1){
+			return String.format("%.1f%% (on %.0f%% of the files)", fragmentation*100, examined*100);
+		}
+		return String.format("%.1f%%", fragmentation*100);
 	}
 
 	/**
@@ -272,12 +364,24 @@ public class vfsCommandLine {
 	 * @throws ExecutionErrorException
 	 */
 	private void crvfs(String[] args) throws SyntaxException, ExecutionErrorException{
-		if (args.length != 3){throw new SyntaxException();}
+		if (args.length != 3 && !(args.length == 5 && args[3].equalsIgnoreCase("-b"))){throw new SyntaxException();}
+		//The -b option creates a version 2 disk, with bigger page-aligned blocks and a block map for each file
+		DiskFormat format = new DiskFormat();
+		if (args.length == 5){
+			try {
+				format = new DiskFormat(DiskFormat.ALLOCATION_BLOCK_MAP, Integer.valueOf(args[4]));
+			} catch (IllegalArgumentException e){
+				throw new SyntaxException();
+			}
+		}
 		Core newCore = new Core();
 		core = newCore;
-		if(core.createDisk(args[1], Long.valueOf(args[2]))){
-			//We add the Core to the list of opened cores
-			openCores.put(args[1], newCore);
+		if(core.createDisk(args[1], Long.valueOf(args[2]), format)){
+			//We add the Core to the list of opened cores, closing the one which was maybe using this disk
+			Core previous = openCores.put(args[1], newCore);
+			if (previous != null){
+				previous.closeDisk();
+			}
 			//We set the current core to the new one
 			core = newCore;
 			System.out.println("VFS "+core.getDiskpath()+" ("+core.getTotalSpace()+"B size) has been created.");
@@ -286,6 +390,28 @@ public class vfsCommandLine {
 		}
 	}
 	
+	/**
+	 * change the size of the data partition of the vfs (in kB), keeping its content
+	 * @param args vfsName and the new size
+	 * @throws ExecutionErrorException
+	 * @throws SyntaxException
+	 * @throws CoreNotInitalisedException
+	 */
+	private void rsvfs(String[] args) throws ExecutionErrorException, SyntaxException, CoreNotInitalisedException{
+		if (core == null){ throw new CoreNotInitalisedException();}
+		if (args.length != 3){throw new SyntaxException();}
+		long size;
+		try {
+			size = Long.valueOf(args[2]);
+		} catch (NumberFormatException e){
+			throw new SyntaxException();
+		}
+		if (size <= 0 || !core.resizeDisk(size)){
+			throw new ExecutionErrorException();
+		}
+		System.out.println("VFS "+core.getDiskpath()+" ("+core.getTotalSpace()+"B size) has been resized.");
+	}
+	
 	/**
 	 * Remove the VFS disk at the specified path if it exists
 	 * @param args the passed arguments
@@ -294,11 +420,14 @@ public class vfsCommandLine {
 	 */
 	private void rmvfs(String[] args) throws ExecutionErrorException, SyntaxException{
 		if (args.length != 2){throw new SyntaxException();}
+		//The disk must be closed before being deleted
+		Core opened = openCores.remove(args[1]);
+		if (opened != null){
+			opened.closeDisk();
+		}
 		Core newCore = new Core();
 		core = newCore;
 		if(core.deleteDisk(args[1])){
-			//We also remove the maybe existing Core dedicated to this disk in the openCores list
-			openCores.remove(args[1]);
 			System.out.println("VFS "+core.getDiskpath()+" has been deleted.");
 		}  else {
 			throw new ExecutionErrorException();
@@ -314,12 +443,16 @@ public class vfsCommandLine {
 	 * @throws SyntaxException
 	 */
 	private void opvfs(String[] args) throws ExecutionErrorException, SyntaxException{
-		if (args.length != 2){ throw new SyntaxException();}
+		if (args.length != 2 && !(args.length == 3 && args[2].equalsIgnoreCase("-m"))){ throw new SyntaxException();}
 		Core newCore = new Core();
 		core = newCore;
-		if(core.openDisk(args[1])){
-			//put either create a new (key,value) or replace the previous Core dedicated to this disk
-			openCores.put(args[1], newCore);
+		//The -m option maps the data partition of the disk in memory
+		if(core.openDisk(args[1], args.length == 3)){
+			//put either create a new (key,value) or replace the previous Core dedicated to this disk, which is then closed
+			Core previous = openCores.put(args[1], newCore);
+			if (previous != null){
+				previous.closeDisk();
+			}
 			core = newCore;
 			System.out.println("VFS "+core.getDiskpath()+" ("+core.getTotalSpace()+"B size) has been opened.");
 		}  else {
@@ -328,16 +461,18 @@ public class vfsCommandLine {
 	}
 	
 	/**
-	 * close an opened VFS, removing it from the list of opened cores, and removing it if it is the current used core.
+	 * close an opened VFS, releasing its .dsk file, removing it from the list of opened cores, and removing it if it is the current used core.
 	 * @param args the passed arguments
-	 * @throws ExecutionErrorException
 	 * @throws SyntaxException
 	 */
 	private void lvvfs(String[] args) throws SyntaxException {
 		if (args.length != 2){throw new SyntaxException();}
 		Core closed = openCores.remove(args[1]);
-		if (core.equals(closed) && !(core ==null)){
-			core = null;
+		if (closed != null){
+			closed.closeDisk();
+			if (closed == core){
+				core = null;
+			}
 		}
 	}
 
@@ -379,10 +514,11 @@ public class vfsCommandLine {
 	 */
 	private void displayHelp(){
 		System.out.println("--------------------------Managing VFS disks--------------------------\n"
-				+ "crvfs <vfsname> <dim>\t\t\tcreate a new VFS disk with the specified name and size (in kB)\n"
-				+ "opvfs <vfname>\t\t\t\topen the existing VFS disk with the specified name\n"
-				+ "lvvfs <vfname>\t\t\t\tclose the specified VFS if it is opened\n"
+				+ "crvfs <vfsname> <dim> [-b <size>]\t\tcreate a new VFS disk with the specified name and size (in kB), -b to create a block-map disk (each file has a map of its blocks) with blocks of the specified size (in B, from 4096 to 1048576)\n"
+				+ "opvfs <vfname> <args>\t\t\topen the existing VFS disk with the specified name, if args='-m' its data is accessed through a memory mapping\n"
+				+ "clvfs <vfname>\t\t\t\tclose the specified VFS if it is opened\n"
 				+ "rmvfs <vfsname>\t\t\t\tdelete the existing VFS disk with the specified name\n"
+				+ "rsvfs <vfsname> <dim>\t\t\tchange the size (in kB) of the VFS disk, moving the files at the end of the disk first if it shrinks\n"
 				+ "--------------------------Using the VFS disk--------------------------\n"
 				+ "ls <vfsname> <args> <pathname>\t\tlist the content of the folder at the specified path in the VFS, if args='-l' displays the size of each element too\n"
 				+ "cd <vfsname> <pathname>\t\t\tchange current directory on the VFS, 'cd ..' goes to the parent directory\n"
@@ -390,7 +526,9 @@ public class vfsCommandLine {
 				+ "cp <vfsname> <sourcepath> <targetpath>\tcopy the element at path sourcepath to targetpath (name included)\n"
 				+ "rm <vfsname> <pathname>\t\t\tremove the element at the specified path on the VFS\n"
 				+ "free <vfsname>\t\t\t\tdisplay the total size, used space and free space available on the VFS disk\n"
-				+ "find <vfsname> <filename>\t\tfind elements in the VFS with the corresponding name, and displays their paths\n"
+				+ "du <vfsname> <pathname>\t\t\tdisplay the size and the number of files of the element at the specified path and of its sub-folders\n"
+				+ "find <vfsname> <args> <filename>\tfind elements in the VFS with the corresponding name, and displays their paths, if args='-p' the names starting with filename, if args='-g' the names matching a pattern as '*.txt', if args='-r' the names matching a regular expression\n"
+				+ "defrag <vfsname> <blocks>\t\tmove the fragmented files to contiguous blocks, reading or copying at most the specified number of blocks if given, the next call continuing where it stopped\n"
 				+ "--------------------------Exporting and importing---------------------------\n"
 				+ "impvfs <vfsname> <hostpath> <vfspath>\timport the elements located at the specified path on the host into the VFS, at the specified path\n"
 				+ "expvfs <vfsname> <vfspath> <hostpath>\texport the elements located at the specified path on the VFS to the host, at the specified path");
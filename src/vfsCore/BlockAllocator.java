@@ -0,0 +1,346 @@
+package vfsCore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import vfsCore.exceptions.NoFreeBlockException;
+
+/**
+ * The BlockAllocator keeps track of the used and free blocks of the data partition of a VFS disk.
+ * It is an in-memory bitmap (one bit per block, 1 meaning the block is used), stored as an array of longs
+ * so that free blocks can be found by scanning 64 blocks at a time.
+ * A hint remembers the first word which may still contain a free block, so that successive allocations
+ * don't have to browse the beginning of the disk again and again.
+ * The bitmap is saved in the .dsk file by the CoreIO, next to the serialized hierarchy.
+ * Between two saves, the modified words are written in the journal of the disk.
+ * A block freed by an operation can't be allocated again until the operation is saved (see releaseFreedBlocks) :
+ * until then, the saved hierarchy may still use it, and its content must stay intact in case of a crash.
+ * The number of used blocks is kept up to date with the bitmap, so that the used and free space of the disk are known at once.
+ *
+ */
+public class BlockAllocator {
+	//ATTRIBUTES, CONSTRUCTORS, GETTERS
+	/**
+	 * the bitmap, block i is stored in the bit (i%64) of the word (i/64)
+	 */
+	private long[] words;
+	/**
+	 * the number of blocks of the data partition
+	 */
+	private long blockCount;
+	/**
+	 * index of the first word that may contain a free block
+	 */
+	private int hint = 0;
+	/**
+	 * the words modified since the last save of the bitmap or of its changes
+	 */
+	private BitSet changedWords = new BitSet();
+	/**
+	 * the blocks freed since the last save, not available yet, with the same layout as the bitmap (created when needed)
+	 */
+	private long[] freedWords;
+	private BitSet changedFreedWords = new BitSet();
+	/**
+	 * the number of blocks marked as used in the bitmap
+	 */
+	private long usedCount = 0;
+
+	/**
+	 * Constructor, creating an allocator where all the blocks are free
+	 * @param blockCount the number of blocks of the data partition
+	 */
+	public BlockAllocator(long blockCount) {
+		super();
+		this.blockCount = blockCount;
+		this.words = new long[(int)((blockCount + 63) / 64)];
+	}
+
+	/**
+	 * @return the number of blocks of the data partition
+	 */
+	public long getBlockCount() {
+		return blockCount;
+	}
+
+	/**
+	 * @return the number of used blocks, without browsing the bitmap
+	 */
+	public long getUsedCount() {
+		return usedCount;
+	}
+
+
+
+	//---------------------//
+	//ALLOCATING THE BLOCKS//
+	//---------------------//
+
+	/**
+	 * finds a free block, marks it as used and returns its address
+	 * @return the address of the allocated block
+	 * @throws IOException if there is no free block left on the disk
+	 */
+	public long allocate() throws IOException {
+		long block = nextFree(0);
+		if (block < 0){ throw new NoFreeBlockException("plus de blocs libres");}
+		markUsed(block);
+		return block;
+	}
+
+	/**
+	 * finds the first run of contiguous free blocks, and allocates as much of it as requested
+	 * @param wanted the maximum number of blocks to allocate
+	 * @return the allocated extent, which might be shorter than requested if the run is not long enough
+	 * @throws IOException if there is no free block left on the disk
+	 */
+	public Extent allocateRun(long wanted) throws IOException {
+		long start = nextFree(0);
+		if (start < 0){ throw new NoFreeBlockException("plus de blocs libres");}
+		long end = start;
+		while (end - start < wanted && end < blockCount && isAvailable(end)){
+			if (end % 64 == 0 && (words[(int)(end / 64)] | freedWord((int)(end / 64))) == 0 && wanted - (end - start) >= 64 && end + 64 <= blockCount){
+				//A whole empty word can be taken at once
+				words[(int)(end / 64)] = -1L;
+				changedWords.set((int)(end / 64));
+				usedCount = usedCount + 64;
+				end = end + 64;
+			} else {
+				markUsed(end);
+				end = end + 1;
+			}
+		}
+		return new Extent(start, end - start);
+	}
+
+	/**
+	 * allocates a single run of contiguous free blocks, the first one long enough
+	 * @param length the number of blocks
+	 * @return the address of the first block of the run, or -1 if there is no run long enough (nothing is allocated then)
+	 */
+	public long allocateContiguous(long length) {
+		long start = nextFree(0);
+		while (start >= 0){
+			long end = start;
+			while (end < blockCount && end - start < length && isAvailable(end)){
+				end++;
+			}
+			if (end - start == length){
+				for (long block = start; block < end; block++){
+					markUsed(block);
+				}
+				return start;
+			}
+			//The run is too short, we look for the next one after the used block ending it
+			start = (end < blockCount) ? nextFree(end) : -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * returns the first free block at or after the specified address, without allocating it
+	 * @param from the address where the search starts
+	 * @return the address of the free block, or -1 if there is none
+	 */
+	public long nextFree(long from) {
+		if (from >= blockCount){ return -1;}
+		int start = (int)(from / 64);
+		//Words before the hint are full, no need to look at them
+		if (start < hint){
+			start = hint;
+			from = (long)start * 64;
+		}
+		for (int i = start; i < words.length; i++){
+			//We ignore the bits before the starting address in the first word
+			long free = ~(words[i] | freedWord(i));
+			if (i == start){
+				free = free & (-1L << (from % 64));
+			}
+			if (free != 0){
+				long block = (long)i * 64 + Long.numberOfTrailingZeros(free);
+				return (block < blockCount) ? block : -1;
+			}
+			if (i == hint && words[i] == -1L){
+				//this word is full, so the hint can move forward
+				hint = i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * marks a block as used
+	 * @param block the address of the block
+	 */
+	public void markUsed(long block) {
+		if (!isUsed(block)){
+			usedCount++;
+		}
+		words[(int)(block / 64)] |= 1L << (block % 64);
+		changedWords.set((int)(block / 64));
+	}
+
+	/**
+	 * marks a block as free. It can be allocated again once releaseFreedBlocks is called.
+	 * @param block the address of the block
+	 */
+	public void free(long block) {
+		if (isUsed(block)){
+			usedCount--;
+		}
+		int i = (int)(block / 64);
+		words[i] &= ~(1L << (block % 64));
+		changedWords.set(i);
+		if (freedWords == null){
+			freedWords = new long[words.length];
+		}
+		freedWords[i] |= 1L << (block % 64);
+		changedFreedWords.set(i);
+		if (i < hint){
+			hint = i;
+		}
+	}
+
+	/**
+	 * makes the blocks freed since the last call available again, once the operations which freed them are saved
+	 */
+	public void releaseFreedBlocks() {
+		for (int i = changedFreedWords.nextSetBit(0); i >= 0; i = changedFreedWords.nextSetBit(i + 1)){
+			freedWords[i] = 0;
+		}
+		changedFreedWords.clear();
+	}
+
+	/**
+	 * @param block the address of the block
+	 * @return true if the block is free and can be allocated
+	 */
+	public boolean isAvailable(long block) {
+		return ((words[(int)(block / 64)] | freedWord((int)(block / 64))) & (1L << (block % 64))) == 0;
+	}
+
+	/**
+	 * @param i the index of a word of the bitmap
+	 * @return the blocks of this word freed since the last save
+	 */
+	private long freedWord(int i) {
+		return (freedWords == null) ? 0 : freedWords[i];
+	}
+
+	/**
+	 * @param block the address of the block
+	 * @return true if the block is currently used by a file
+	 */
+	public boolean isUsed(long block) {
+		return (words[(int)(block / 64)] & (1L << (block % 64))) != 0;
+	}
+
+	/**
+	 * @return the address of the last block which is used or not available yet, -1 if all the blocks are free
+	 */
+	public long lastUnavailable() {
+		for (int i = words.length - 1; i >= 0; i--){
+			long taken = words[i] | freedWord(i);
+			if (taken != 0){
+				return (long)i * 64 + 63 - Long.numberOfLeadingZeros(taken);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * changes the number of blocks of the data partition, when the disk is resized. The new blocks are free, the removed ones must be free and available.
+	 * @param newBlockCount the new number of blocks
+	 */
+	public void resize(long newBlockCount) {
+		int length = (int)((newBlockCount + 63) / 64);
+		words = Arrays.copyOf(words, length);
+		if (freedWords != null){
+			freedWords = Arrays.copyOf(freedWords, length);
+		}
+		//The removed words can't be saved in the journal anymore
+		changedWords.clear(length, Math.max(length, changedWords.length()));
+		changedFreedWords.clear(length, Math.max(length, changedFreedWords.length()));
+		blockCount = newBlockCount;
+		hint = 0;
+	}
+
+
+
+	//-----------------------------//
+	//SAVING AND LOADING THE BITMAP//
+	//-----------------------------//
+
+	/**
+	 * converts the bitmap to a byte array, to store it in the .dsk file
+	 * @return an array of bytes
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(words.length * 8);
+		buffer.asLongBuffer().put(words);
+		return buffer.array();
+	}
+
+	/**
+	 * rebuilds an allocator from a byte array created by toBytes
+	 * @param bitmapBytes the bytes of the bitmap
+	 * @param blockCount the number of blocks of the data partition
+	 * @return the corresponding allocator
+	 */
+	public static BlockAllocator fromBytes(byte[] bitmapBytes, long blockCount) {
+		BlockAllocator allocator = new BlockAllocator(blockCount);
+		ByteBuffer.wrap(bitmapBytes).asLongBuffer().get(allocator.words, 0, Math.min(allocator.words.length, bitmapBytes.length / 8));
+		//The used blocks are counted once, while the bitmap is loaded
+		for (long word : allocator.words){
+			allocator.usedCount = allocator.usedCount + Long.bitCount(word);
+		}
+		return allocator;
+	}
+
+
+
+	//-----------------------------//
+	//JOURNALING THE CHANGED BLOCKS//
+	//-----------------------------//
+
+	/**
+	 * writes the words modified since the last call (or since the bitmap was saved), to store them in the journal of the disk
+	 * @param out the output stream
+	 * @throws IOException
+	 */
+	public void writeChanges(DataOutputStream out) throws IOException {
+		out.writeInt(changedWords.cardinality());
+		for (int i = changedWords.nextSetBit(0); i >= 0; i = changedWords.nextSetBit(i + 1)){
+			out.writeInt(i);
+			out.writeLong(words[i]);
+		}
+		changedWords.clear();
+	}
+
+	/**
+	 * applies the changes written by writeChanges, when the journal of the disk is replayed
+	 * @param in the input stream
+	 * @throws IOException
+	 */
+	public void applyChanges(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++){
+			int index = in.readInt();
+			long word = in.readLong();
+			usedCount = usedCount + Long.bitCount(word) - Long.bitCount(words[index]);
+			words[index] = word;
+		}
+		hint = 0;
+	}
+
+	/**
+	 * forgets the changes, once the whole bitmap has been saved
+	 */
+	public void clearChanges() {
+		changedWords.clear();
+	}
+}
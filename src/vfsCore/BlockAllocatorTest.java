@@ -0,0 +1,110 @@
+package vfsCore;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class BlockAllocatorTest {
+
+	@Test
+	public void testAllocate() throws IOException {
+		BlockAllocator allocator = new BlockAllocator(130);
+		for (long i = 0; i < 130; i++){
+			assertEquals(i, allocator.allocate());
+		}
+		assertEquals(-1, allocator.nextFree(0));
+	}
+
+	@Test(expected = IOException.class)
+	public void testAllocateOnFullDisk() throws IOException {
+		BlockAllocator allocator = new BlockAllocator(3);
+		allocator.allocate();
+		allocator.allocate();
+		allocator.allocate();
+		allocator.allocate();
+	}
+
+	@Test
+	public void testFreeAndReuse() throws IOException {
+		BlockAllocator allocator = new BlockAllocator(200);
+		for (int i = 0; i < 200; i++){
+			allocator.allocate();
+		}
+		allocator.free(150);
+		allocator.free(70);
+		assertFalse(allocator.isUsed(70));
+		//The freed blocks are only available once released
+		assertFalse(allocator.isAvailable(70));
+		assertEquals(-1, allocator.nextFree(0));
+		allocator.releaseFreedBlocks();
+		assertEquals(70, allocator.allocate());
+		assertEquals(150, allocator.allocate());
+		assertTrue(allocator.isUsed(150));
+	}
+
+	@Test
+	public void testUsedCount() throws IOException {
+		BlockAllocator allocator = new BlockAllocator(1000);
+		allocator.allocateRun(200);
+		allocator.markUsed(150);
+		allocator.free(10);
+		allocator.free(10);
+		assertEquals(199, allocator.getUsedCount());
+		ByteArrayOutputStream changes = new ByteArrayOutputStream();
+		allocator.writeChanges(new DataOutputStream(changes));
+		BlockAllocator loaded = new BlockAllocator(1000);
+		loaded.applyChanges(new DataInputStream(new ByteArrayInputStream(changes.toByteArray())));
+		assertEquals(199, loaded.getUsedCount());
+		assertEquals(199, BlockAllocator.fromBytes(allocator.toBytes(), 1000).getUsedCount());
+	}
+
+	@Test
+	public void testNextFree() {
+		BlockAllocator allocator = new BlockAllocator(100);
+		allocator.markUsed(64);
+		allocator.markUsed(65);
+		assertEquals(66, allocator.nextFree(64));
+		assertEquals(3, allocator.nextFree(3));
+	}
+
+	@Test
+	public void testResize() throws IOException {
+		BlockAllocator allocator = new BlockAllocator(100);
+		allocator.markUsed(3);
+		allocator.markUsed(70);
+		assertEquals(70, allocator.lastUnavailable());
+		allocator.resize(300);
+		assertEquals(300, allocator.getBlockCount());
+		assertTrue(allocator.isUsed(70));
+		assertEquals(100, allocator.nextFree(100));
+		assertEquals(299, allocator.nextFree(299));
+		allocator.free(70);
+		//A freed block is still unavailable until it is released
+		assertEquals(70, allocator.lastUnavailable());
+		allocator.releaseFreedBlocks();
+		allocator.resize(10);
+		assertEquals(3, allocator.lastUnavailable());
+		assertEquals(-1, allocator.nextFree(10));
+		assertEquals(10, BlockAllocator.fromBytes(allocator.toBytes(), 10).getBlockCount());
+	}
+
+	@Test
+	public void testBytes() throws IOException {
+		BlockAllocator allocator = new BlockAllocator(1000);
+		allocator.markUsed(0);
+		allocator.markUsed(999);
+		allocator.markUsed(512);
+		BlockAllocator copy = BlockAllocator.fromBytes(allocator.toBytes(), 1000);
+		assertTrue(copy.isUsed(0));
+		assertTrue(copy.isUsed(512));
+		assertTrue(copy.isUsed(999));
+		assertFalse(copy.isUsed(1));
+		assertEquals(1, copy.allocate());
+	}
+}
@@ -0,0 +1,242 @@
+package vfsCore;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A BlockStorage keeping the most recently read blocks of the data partition in memory, in front of another BlockStorage.
+ * The cache is bounded : when it is full, the least recently used block is evicted, and its buffer is reused for the new block.
+ * Writes go directly to the underlying storage, and the cached copies of the blocks they touch are dropped,
+ * so that a removed or overwritten block is never read back from the cache.
+ * The numbers of hits, misses and evictions are counted, to evaluate the size of the cache.
+ *
+ */
+public class BlockCache implements BlockStorage {
+	/**
+	 * the storage where the blocks are really read and written
+	 */
+	private BlockStorage storage;
+	/**
+	 * the position of the first block in the .dsk file
+	 */
+	private long origin;
+	/**
+	 * the length of a block in the .dsk file, metadata included
+	 */
+	private int blockLength;
+	/**
+	 * the maximum number of blocks kept in memory
+	 */
+	private int capacity;
+	/**
+	 * the cached blocks, by address, from the least to the most recently used
+	 */
+	private LinkedHashMap<Long, byte[]> blocks = new LinkedHashMap<>(16, 0.75f, true);
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Constructor
+	 * @param storage the storage where the blocks are really read and written
+	 * @param blockLength the length of a block in the .dsk file, metadata included
+	 * @param capacity the maximum number of blocks kept in memory
+	 */
+	public BlockCache(BlockStorage storage, int blockLength, int capacity) {
+		this(storage, 0, blockLength, capacity);
+	}
+
+	/**
+	 * Constructor, for a data partition whose first block is not at the beginning of the .dsk file
+	 * @param storage the storage where the blocks are really read and written
+	 * @param origin the position of the first block in the .dsk file
+	 * @param blockLength the length of a block in the .dsk file, metadata included
+	 * @param capacity the maximum number of blocks kept in memory
+	 */
+	public BlockCache(BlockStorage storage, long origin, int blockLength, int capacity) {
+		super();
+		this.storage = storage;
+		this.origin = origin;
+		this.blockLength = blockLength;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the maximum number of blocks kept in memory
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * changes the maximum number of blocks kept in memory, evicting the least recently used blocks if needed
+	 * @param capacity the new capacity, 0 to disable the cache
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+		while (blocks.size() > capacity){
+			evictEldest();
+		}
+	}
+
+	/**
+	 * @return the number of blocks currently in memory
+	 */
+	public int getSize() {
+		return blocks.size();
+	}
+
+	/**
+	 * @return the number of blocks read from the cache
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of blocks which had to be read from the underlying storage
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of blocks evicted from the cache to make room for other ones
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+
+
+	//--------------------------//
+	//READING AND WRITING BLOCKS//
+	//--------------------------//
+
+	@Override
+	public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0){
+			return;
+		}
+		long first = blockAt(position);
+		long last = blockAt(position + length - 1);
+		//If all the blocks are in memory, we don't need to access the disk at all
+		boolean cached = true;
+		for (long block = first; block <= last && cached; block++){
+			cached = blocks.containsKey(block);
+		}
+		if (cached){
+			for (long block = first; block <= last; block++){
+				byte[] content = blocks.get(block);
+				long start = Math.max(position, startOf(block));
+				long end = Math.min(position + length, startOf(block + 1));
+				System.arraycopy(content, (int)(start - startOf(block)), buffer, offset + (int)(start - position), (int)(end - start));
+				hits++;
+			}
+			return;
+		}
+		//Else the whole range is read at once, and the blocks it completely covers are kept
+		storage.read(position, buffer, offset, length);
+		for (long block = first; block <= last; block++){
+			if (blocks.containsKey(block)){
+				hits++;
+				continue;
+			}
+			misses++;
+			if (capacity > 0 && startOf(block) >= position && startOf(block + 1) <= position + length){
+				byte[] content = allocateBlock();
+				System.arraycopy(buffer, offset + (int)(startOf(block) - position), content, 0, blockLength);
+				blocks.put(block, content);
+			}
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+		invalidate(position, length);
+		storage.write(position, buffer, offset, length);
+	}
+
+	/**
+	 * drops the cached copies of the blocks overlapping a range of the data partition
+	 * @param position the position of the range in the .dsk file
+	 * @param length the length of the range
+	 */
+	public void invalidate(long position, long length) {
+		if (length <= 0 || blocks.isEmpty()){
+			return;
+		}
+		long first = blockAt(position);
+		long last = blockAt(position + length - 1);
+		if (last - first + 1 > blocks.size()){
+			//Faster to browse the cache than the range
+			Iterator<Long> cachedBlocks = blocks.keySet().iterator();
+			while (cachedBlocks.hasNext()){
+				long block = cachedBlocks.next();
+				if (block >= first && block <= last){
+					cachedBlocks.remove();
+				}
+			}
+		} else {
+			for (long block = first; block <= last; block++){
+				blocks.remove(block);
+			}
+		}
+	}
+
+	/**
+	 * empties the cache, keeping the counters
+	 */
+	public void clear() {
+		blocks.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		clear();
+		storage.close();
+	}
+
+	/**
+	 * @param position a position in the .dsk file
+	 * @return the block containing this position
+	 */
+	private long blockAt(long position) {
+		long relative = position - origin;
+		//Rounding towards minus infinity, even before the first block
+		return (relative >= 0) ? relative / blockLength : (relative - blockLength + 1) / blockLength;
+	}
+
+	/**
+	 * @param block a block
+	 * @return the position of its first byte in the .dsk file
+	 */
+	private long startOf(long block) {
+		return origin + block * blockLength;
+	}
+
+	/**
+	 * returns a buffer for a new cached block, reusing the one of the least recently used block if the cache is full
+	 * @return a buffer of the length of a block
+	 */
+	private byte[] allocateBlock() {
+		if (blocks.size() < capacity){
+			return new byte[blockLength];
+		}
+		return evictEldest();
+	}
+
+	/**
+	 * removes the least recently used block from the cache
+	 * @return the buffer of the evicted block
+	 */
+	private byte[] evictEldest() {
+		Iterator<Map.Entry<Long, byte[]>> eldest = blocks.entrySet().iterator();
+		byte[] content = eldest.next().getValue();
+		eldest.remove();
+		evictions++;
+		return content;
+	}
+}
@@ -0,0 +1,75 @@
+package vfsCore;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class BlockCacheTest {
+	
+	/**
+	 * a data partition stored in memory, counting the reads
+	 */
+	private static class MemoryStorage implements BlockStorage {
+		byte[] data = new byte[100*10];
+		int reads = 0;
+		@Override
+		public void read(long position, byte[] buffer, int offset, int length) {
+			System.arraycopy(data, (int)position, buffer, offset, length);
+			reads++;
+		}
+		@Override
+		public void write(long position, byte[] buffer, int offset, int length) {
+			System.arraycopy(buffer, offset, data, (int)position, length);
+		}
+		@Override
+		public void close() {
+		}
+	}
+
+	@Test
+	public void testHitsAndMisses() throws IOException {
+		MemoryStorage storage = new MemoryStorage();
+		BlockCache cache = new BlockCache(storage, 10, 4);
+		byte[] buffer = new byte[20];
+		cache.read(0, buffer, 0, 20);
+		assertEquals(2, cache.getMisses());
+		cache.read(0, buffer, 0, 20);
+		cache.read(12, buffer, 0, 4);
+		assertEquals(1, storage.reads);
+		assertEquals(3, cache.getHits());
+		assertEquals(2, cache.getSize());
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		MemoryStorage storage = new MemoryStorage();
+		BlockCache cache = new BlockCache(storage, 10, 2);
+		byte[] buffer = new byte[10];
+		cache.read(0, buffer, 0, 10);
+		cache.read(10, buffer, 0, 10);
+		//Block 0 becomes the most recently used one
+		cache.read(0, buffer, 0, 10);
+		cache.read(20, buffer, 0, 10);
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.getSize());
+		int reads = storage.reads;
+		cache.read(0, buffer, 0, 10);
+		assertEquals(reads, storage.reads);
+		cache.read(10, buffer, 0, 10);
+		assertEquals(reads + 1, storage.reads);
+	}
+
+	@Test
+	public void testWriteInvalidates() throws IOException {
+		MemoryStorage storage = new MemoryStorage();
+		BlockCache cache = new BlockCache(storage, 10, 8);
+		byte[] buffer = new byte[10];
+		cache.read(30, buffer, 0, 10);
+		cache.write(35, new byte[]{42}, 0, 1);
+		cache.read(30, buffer, 0, 10);
+		assertEquals(42, buffer[5]);
+		assertEquals(2, cache.getMisses());
+	}
+}
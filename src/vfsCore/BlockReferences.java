@@ -0,0 +1,146 @@
+package vfsCore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * The BlockReferences count the references to the blocks shared by several files of a VFS disk.
+ * Only the shared blocks are stored, with their number of extra references : a used block which is not in the table belongs to a single file.
+ * The table is saved in the .dsk file by the CoreIO, next to the bitmap of the used blocks, and its changes are written in the journal in between.
+ *
+ */
+public class BlockReferences {
+	/**
+	 * the number of references to each shared block, minus one
+	 */
+	private HashMap<Long, Long> extraReferences = new HashMap<>();
+	/**
+	 * the blocks whose count changed since the last save of the table or of its changes
+	 */
+	private HashSet<Long> changedBlocks = new HashSet<>();
+
+	/**
+	 * adds a reference to a block, when another file starts sharing it
+	 * @param block the address of the block
+	 */
+	public void addReference(long block) {
+		Long extra = extraReferences.get(block);
+		extraReferences.put(block, (extra == null) ? 1 : extra + 1);
+		changedBlocks.add(block);
+	}
+
+	/**
+	 * removes a reference to a block, when one of the files using it is removed
+	 * @param block the address of the block
+	 * @return true if this was the last reference, and the block can be freed
+	 */
+	public boolean removeReference(long block) {
+		Long extra = extraReferences.get(block);
+		if (extra == null){
+			return true;
+		}
+		if (extra == 1){
+			extraReferences.remove(block);
+		} else {
+			extraReferences.put(block, extra - 1);
+		}
+		changedBlocks.add(block);
+		return false;
+	}
+
+	/**
+	 * @param block the address of a used block
+	 * @return the number of files using this block
+	 */
+	public long getReferenceCount(long block) {
+		Long extra = extraReferences.get(block);
+		return (extra == null) ? 1 : extra + 1;
+	}
+
+	/**
+	 * @return the number of blocks shared by several files
+	 */
+	public int getSharedCount() {
+		return extraReferences.size();
+	}
+
+
+
+	//-----------------------------//
+	//SAVING AND LOADING THE COUNTS//
+	//-----------------------------//
+
+	/**
+	 * converts the table to a byte array, to store it in the .dsk file
+	 * @return an array of bytes
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + extraReferences.size()*16);
+		buffer.putInt(extraReferences.size());
+		for (Map.Entry<Long, Long> entry : extraReferences.entrySet()){
+			buffer.putLong(entry.getKey());
+			buffer.putLong(entry.getValue());
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * rebuilds a table from a byte array created by toBytes
+	 * @param referencesBytes the bytes of the table
+	 * @return the corresponding table
+	 */
+	public static BlockReferences fromBytes(byte[] referencesBytes) {
+		BlockReferences references = new BlockReferences();
+		ByteBuffer buffer = ByteBuffer.wrap(referencesBytes);
+		int count = buffer.getInt();
+		for (int i = 0; i < count; i++){
+			references.extraReferences.put(buffer.getLong(), buffer.getLong());
+		}
+		return references;
+	}
+
+	/**
+	 * writes the counts modified since the last call (or since the table was saved), to store them in the journal of the disk
+	 * @param out the output stream
+	 * @throws IOException
+	 */
+	public void writeChanges(DataOutputStream out) throws IOException {
+		out.writeInt(changedBlocks.size());
+		for (long block : changedBlocks){
+			Long extra = extraReferences.get(block);
+			out.writeLong(block);
+			out.writeLong((extra == null) ? 0 : extra);
+		}
+		changedBlocks.clear();
+	}
+
+	/**
+	 * applies the changes written by writeChanges, when the journal of the disk is replayed
+	 * @param in the input stream
+	 * @throws IOException
+	 */
+	public void applyChanges(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++){
+			long block = in.readLong();
+			long extra = in.readLong();
+			if (extra == 0){
+				extraReferences.remove(block);
+			} else {
+				extraReferences.put(block, extra);
+			}
+		}
+	}
+
+	/**
+	 * forgets the changes, once the whole table has been saved
+	 */
+	public void clearChanges() {
+		changedBlocks.clear();
+	}
+}
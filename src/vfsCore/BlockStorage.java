@@ -0,0 +1,34 @@
+package vfsCore;
+
+import java.io.IOException;
+
+/**
+ * A BlockStorage gives access to the data partition of a VFS disk, ie the part of the .dsk file where the blocks of the files are stored.
+ * The CoreIO reads and writes the blocks through this interface, which allows us to choose how the .dsk file is accessed.
+ *
+ */
+public interface BlockStorage {
+	/**
+	 * reads bytes from the data partition
+	 * @param position the position in the .dsk file
+	 * @param buffer the buffer where the bytes are copied
+	 * @param offset the position in the buffer
+	 * @param length the number of bytes to read
+	 * @throws IOException
+	 */
+	public void read(long position, byte[] buffer, int offset, int length) throws IOException;
+	/**
+	 * writes bytes to the data partition
+	 * @param position the position in the .dsk file
+	 * @param buffer the buffer containing the bytes
+	 * @param offset the position in the buffer
+	 * @param length the number of bytes to write
+	 * @throws IOException
+	 */
+	public void write(long position, byte[] buffer, int offset, int length) throws IOException;
+	/**
+	 * releases the resources used to access the .dsk file
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,101 @@
+package vfsCore;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The default BlockStorage, using a FileChannel opened once on the .dsk file and kept until the disk is closed.
+ * Reads and writes are positional, so no seek is needed, and the file is not reopened for each operation.
+ * The CoreIO also uses it to read and write the sections stored after the data partition.
+ *
+ */
+public class ChannelStorage implements BlockStorage {
+	private RandomAccessFile rAF;
+	private FileChannel channel;
+	
+	/**
+	 * Constructor, opening the .dsk file. If it can't be modified, it is opened in read-only mode.
+	 * @param diskName the path of the .dsk file
+	 * @throws FileNotFoundException if the .dsk file doesn't exist
+	 * @throws IOException
+	 */
+	public ChannelStorage(String diskName) throws FileNotFoundException, IOException {
+		super();
+		File disk = new File(diskName);
+		//We don't want to create the file if it doesn't exist, as a "rw" RandomAccessFile would do
+		if (!disk.exists()){
+			throw new FileNotFoundException(diskName);
+		}
+		try {
+			this.rAF = new RandomAccessFile(disk, "rw");
+		} catch (FileNotFoundException e){
+			this.rAF = new RandomAccessFile(disk, "r");
+		}
+		this.channel = rAF.getChannel();
+	}
+	
+	/**
+	 * @return the channel opened on the .dsk file
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+		ByteBuffer view = ByteBuffer.wrap(buffer, offset, length);
+		while (view.hasRemaining()){
+			if (channel.read(view, position + view.position() - offset) < 0){
+				throw new EOFException();
+			}
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+		ByteBuffer view = ByteBuffer.wrap(buffer, offset, length);
+		while (view.hasRemaining()){
+			channel.write(view, position + view.position() - offset);
+		}
+	}
+	
+	/**
+	 * @return the size of the .dsk file, in bytes
+	 * @throws IOException
+	 */
+	public long size() throws IOException {
+		return channel.size();
+	}
+	
+	/**
+	 * truncates the .dsk file
+	 * @param size the new size of the file, in bytes
+	 * @throws IOException
+	 */
+	public void truncate(long size) throws IOException {
+		channel.truncate(size);
+	}
+
+	/**
+	 * forces the data written so far to the storage device
+	 * @param metadata true if the size of the file has changed and must be forced too
+	 * @throws IOException
+	 */
+	public void sync(boolean metadata) throws IOException {
+		channel.force(metadata);
+	}
+
+	@Override
+	public void close() throws IOException {
+		//Making sure the modifications reach the .dsk file before closing it
+		if (channel.isOpen()){
+			channel.force(true);
+		}
+		rAF.close();
+	}
+}
@@ -2,8 +2,25 @@ package vfsCore.Compressor;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 public interface Compressor {
 	public File expand(File compressed, String destination) throws IOException;
 	public File compress(File original) throws IOException;
+	/**
+	 * expands compressed data on the fly, without any temporary file
+	 * @param compressed a stream giving the compressed data
+	 * @return a stream giving the expanded data
+	 * @throws IOException
+	 */
+	public InputStream expand(InputStream compressed) throws IOException;
+	/**
+	 * compresses data on the fly, without any temporary file
+	 * @param compressed the stream receiving the compressed data, closed with the returned stream
+	 * @param name the name of the original file, if the format stores it
+	 * @return a stream receiving the original data
+	 * @throws IOException
+	 */
+	public OutputStream compress(OutputStream compressed, String name) throws IOException;
 }
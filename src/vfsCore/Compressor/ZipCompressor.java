@@ -4,6 +4,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -76,4 +78,21 @@ public class ZipCompressor implements Compressor {
 			if (zIS != null){fIS.close();}
 		}
 	}
+	
+	public InputStream expand(InputStream compressed) throws IOException {
+		ZipInputStream zIS = new ZipInputStream(compressed);
+		//The stream is positioned at the beginning of the content of the only entry
+		if (zIS.getNextEntry() == null){
+			zIS.close();
+			throw new IOException();
+		}
+		return zIS;
+	}
+	
+	public OutputStream compress(OutputStream compressed, String name) throws IOException {
+		ZipOutputStream zOS = new ZipOutputStream(compressed);
+		//The written data will be the content of the only entry
+		zOS.putNextEntry(new ZipEntry(name));
+		return zOS;
+	}
 }
@@ -0,0 +1,232 @@
+package vfsCore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * The ContentIndex associates the hashes (SHA-256) of the contents stored on a VFS disk to their address,
+ * so that an identical content imported later is not written again, but shared thanks to the reference counts of the blocks.
+ * A deduplicated disk has two of them, stored in the .dsk file by the CoreIO : one for the whole files, one for the blocks of the files.
+ * An entry is removed when the blocks at its address are freed. Between two saves, the changes are written in the journal of the disk.
+ *
+ */
+public class ContentIndex {
+	/**
+	 * the address and the size of the content, by hash
+	 */
+	private HashMap<ByteBuffer, long[]> entries = new HashMap<>();
+	/**
+	 * the hash of the content, by address
+	 */
+	private HashMap<Long, ByteBuffer> hashes = new HashMap<>();
+	/**
+	 * the addresses added or removed since the last save of the index or of its changes
+	 */
+	private HashSet<Long> changedAddresses = new HashSet<>();
+
+	/**
+	 * @param hash the hash of a content
+	 * @return the address and the size of this content on the disk, or null if it is not stored yet
+	 */
+	public long[] find(byte[] hash) {
+		return entries.get(ByteBuffer.wrap(hash));
+	}
+
+	/**
+	 * adds a content to the index
+	 * @param hash the hash of the content
+	 * @param address the address of the content on the disk
+	 * @param size the size of the content
+	 */
+	public void put(byte[] hash, long address, long size) {
+		remove(address);
+		ByteBuffer key = ByteBuffer.wrap(hash.clone());
+		long[] previous = entries.put(key, new long[]{address, size});
+		if (previous != null){
+			//The hash now designates this address only
+			hashes.remove(previous[0]);
+			changedAddresses.add(previous[0]);
+		}
+		hashes.put(address, key);
+		changedAddresses.add(address);
+	}
+
+	/**
+	 * removes the content stored at an address, when its blocks are freed
+	 * @param address the address of the content
+	 */
+	public void remove(long address) {
+		ByteBuffer key = hashes.remove(address);
+		if (key != null){
+			entries.remove(key);
+			changedAddresses.add(address);
+		}
+	}
+
+	/**
+	 * moves a content indexed at an address to another one, when its blocks are relocated
+	 * @param from the previous address of the content
+	 * @param to its new address
+	 */
+	public void move(long from, long to) {
+		ByteBuffer key = hashes.remove(from);
+		if (key != null){
+			entries.get(key)[0] = to;
+			hashes.put(to, key);
+			changedAddresses.add(from);
+			changedAddresses.add(to);
+		}
+	}
+
+	/**
+	 * @return the number of contents in the index
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+
+
+	//--------------------//
+	//HASHING THE CONTENTS//
+	//--------------------//
+
+	/**
+	 * @return a new SHA-256 digest
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform provides SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * computes the hash of a content
+	 * @param digest the digest to use
+	 * @param data the buffer containing the content
+	 * @param offset the position of the content in the buffer
+	 * @param length the length of the content
+	 * @return the hash
+	 */
+	public static byte[] hash(MessageDigest digest, byte[] data, int offset, int length) {
+		digest.update(data, offset, length);
+		return digest.digest();
+	}
+
+	/**
+	 * computes the hash of all the content of a stream, which is not closed
+	 * @param in the stream
+	 * @return the hash
+	 * @throws IOException
+	 */
+	public static byte[] hash(InputStream in) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buff = new byte[64*1024];
+		int used;
+		while ((used = in.read(buff)) > 0){
+			digest.update(buff, 0, used);
+		}
+		return digest.digest();
+	}
+
+
+
+	//----------------------------//
+	//SAVING AND LOADING THE INDEX//
+	//----------------------------//
+
+	/**
+	 * converts the index to a byte array, to store it in the .dsk file
+	 * @return an array of bytes
+	 */
+	public byte[] toBytes() {
+		int length = 4;
+		for (ByteBuffer key : entries.keySet()){
+			length = length + 4 + key.remaining() + 16;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(entries.size());
+		for (Map.Entry<ByteBuffer, long[]> entry : entries.entrySet()){
+			buffer.putInt(entry.getKey().remaining());
+			buffer.put(entry.getKey().duplicate());
+			buffer.putLong(entry.getValue()[0]);
+			buffer.putLong(entry.getValue()[1]);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * rebuilds an index from a byte array created by toBytes
+	 * @param indexBytes the bytes of the index
+	 * @return the corresponding index
+	 */
+	public static ContentIndex fromBytes(byte[] indexBytes) {
+		ContentIndex index = new ContentIndex();
+		ByteBuffer buffer = ByteBuffer.wrap(indexBytes);
+		int count = buffer.getInt();
+		for (int i = 0; i < count; i++){
+			byte[] hash = new byte[buffer.getInt()];
+			buffer.get(hash);
+			index.put(hash, buffer.getLong(), buffer.getLong());
+		}
+		index.changedAddresses.clear();
+		return index;
+	}
+
+	/**
+	 * writes the entries added or removed since the last call (or since the index was saved), to store them in the journal of the disk
+	 * @param out the output stream
+	 * @throws IOException
+	 */
+	public void writeChanges(DataOutputStream out) throws IOException {
+		out.writeInt(changedAddresses.size());
+		for (long address : changedAddresses){
+			ByteBuffer key = hashes.get(address);
+			out.writeLong(address);
+			out.writeBoolean(key != null);
+			if (key != null){
+				out.writeInt(key.remaining());
+				out.write(key.array(), key.arrayOffset() + key.position(), key.remaining());
+				out.writeLong(entries.get(key)[1]);
+			}
+		}
+		changedAddresses.clear();
+	}
+
+	/**
+	 * applies the changes written by writeChanges, when the journal of the disk is replayed
+	 * @param in the input stream
+	 * @throws IOException
+	 */
+	public void applyChanges(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++){
+			long address = in.readLong();
+			remove(address);
+			if (in.readBoolean()){
+				byte[] hash = new byte[in.readInt()];
+				in.readFully(hash);
+				put(hash, address, in.readLong());
+			}
+		}
+		changedAddresses.clear();
+	}
+
+	/**
+	 * forgets the changes, once the whole index has been saved
+	 */
+	public void clearChanges() {
+		changedAddresses.clear();
+	}
+}
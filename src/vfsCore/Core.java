@@ -1,15 +1,28 @@
 package vfsCore;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
 
 import vfsCore.exceptions.AlreadyExistException;
 import vfsCore.exceptions.BadPathInstanceException;
+import vfsCore.exceptions.NoFreeBlockException;
+import vfsCore.exceptions.SharedBlockException;
 import vfsCore.exceptions.fileNotFound;
-import vfsCore.visitors.SearchVisitor;
 import vfsCore.visitors.SizeVisitor;
 
 /**
@@ -31,6 +44,10 @@ public class Core {
 	 */
 	private CoreIO cio;
 	private CoreImportExport cie;
+	/**
+	 * the scan of the files measuring their fragmentation, resumed by each call of defragment, even after the hierarchy has changed
+	 */
+	private FragmentationScan fragmentationScan;
 	
 	public String getDiskpath(){
 		if (cio != null){
@@ -51,34 +68,38 @@ public class Core {
 	 * @return true if the operation is successful
 	 */
 	public boolean createDisk(String diskPath, long size) {
-		size = size * (1024+8+1);
+		return createDisk(diskPath, size, new DiskFormat());
+	}
+	
+	/**
+	 * create a VFS disk at the specified path on the host system, with the specified size for the data partition and a specific format
+	 * @param diskPath the path where the Core should create
+	 * @param size the size of the VFS data partition, in kilobytes
+	 * @param format the format of the disk, for instance its allocation mode or its version and size of blocks
+	 * @return true if the operation is successful
+	 */
+	public boolean createDisk(String diskPath, long size, DiskFormat format) {
+		//The previously opened disk is released
+		closeDisk();
 		cio = new CoreIO(diskPath);
-		RandomAccessFile rAF = null;
+		//The import-export core must use the new CoreIO, which keeps the state of the disk
+		cie = null;
 		try {
-				rAF = new RandomAccessFile(new File(diskPath), "rw");
-				rAF.setLength(size);
-				rAF.seek(rAF.length());
-				rAF.writeLong(size);
-				fullHierarchy = new Folder(null, "", null);
-				currentHierarchy = fullHierarchy;
-				return saveFullHierarchyToFile();
-			} catch (FileNotFoundException e) {
-				System.out.println("Error with the file, maybe its name is already used");
-				return false;
-			} catch (IOException e) {
-				System.out.println("Error with the CoreIO");
-				return false;
-			} finally {
-				if (rAF != null){
-					try {
-						rAF.close();
-					} catch (IOException e) {
-						System.out.println("IO error");
-						return false;
-					}
-				}
-			}
-		
+			//The CoreIO lays out the .dsk file according to the format
+			cio.formatDisk(size, format);
+			fullHierarchy = new Folder(null, "", null);
+			fullHierarchy.setPathCache(new PathCache(PathCache.DEFAULT_CAPACITY));
+			//The names of the files are indexed from the start, the index being saved with the hierarchy
+			fullHierarchy.setNameIndex(new NameIndex());
+			currentHierarchy = fullHierarchy;
+			return saveFullHierarchyToFile();
+		} catch (FileNotFoundException e) {
+			System.out.println("Error with the file, maybe its name is already used");
+			return false;
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
+			return false;
+		}
 	}
 
 	/**
@@ -87,11 +108,25 @@ public class Core {
 	 * @return true if the operation is successful
 	 */
 	public boolean openDisk(String filePath) {
-		cio = new CoreIO(filePath);
+		return openDisk(filePath, false);
+	}
+	
+	/**
+	 * Open an already created disk and load its hierarchy in memory, choosing how its data partition is accessed
+	 * @param filePath the path to the .dsk file in the host file system
+	 * @param memoryMapped true to map the data partition in memory, which turns block reads and writes into memory copies
+	 * @return true if the operation is successful
+	 */
+	public boolean openDisk(String filePath, boolean memoryMapped) {
+		//The previously opened disk is released
+		closeDisk();
+		cio = new CoreIO(filePath, memoryMapped);
+		cie = null;
 		try {
 			
 			fullHierarchy = ((Folder)cio.loadHierarchyTreeFromFile());
-			
+			//The paths resolved from the root are kept, the folders telling the cache about their changes
+			fullHierarchy.setPathCache(new PathCache(PathCache.DEFAULT_CAPACITY));
 			currentHierarchy = fullHierarchy;
 			return true;
 		} catch (FileNotFoundException e) {
@@ -107,6 +142,99 @@ public class Core {
 		
 	}
 
+	/**
+	 * Close the currently opened disk, releasing the .dsk file. The hierarchy is already saved after each operation.
+	 * @return true if the operation is successful
+	 */
+	public boolean closeDisk() {
+		if (cio == null){
+			return true;
+		}
+		try {
+			cio.close();
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error while closing the disk");
+			return false;
+		} finally {
+			cio = null;
+			cie = null;
+			fragmentationScan = null;
+			//The hierarchy of the closed disk can't be browsed anymore
+			fullHierarchy = null;
+			currentHierarchy = null;
+		}
+	}
+
+	/**
+	 * checks that a disk is opened before an operation on its hierarchy
+	 * @return true if a disk is opened
+	 */
+	private boolean isOpened() {
+		if (fullHierarchy == null){
+			System.out.println("No disk is opened");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * sets the maximum number of blocks of the opened disk kept in memory, to avoid reading them again
+	 * @param blocks the number of blocks, 0 to disable the cache
+	 */
+	public void setCacheCapacity(int blocks) {
+		if (cio != null){
+			cio.setCacheCapacity(blocks);
+		}
+	}
+	
+	/**
+	 * returns the cache of the paths resolved from the root of the opened disk, giving its numbers of hits and misses
+	 * @return the path cache, or null if no disk is opened
+	 */
+	public PathCache getPathCache() {
+		return (fullHierarchy == null) ? null : fullHierarchy.getPathCache();
+	}
+	
+	/**
+	 * chooses how the blocks of the deleted files are reclaimed
+	 * @param deferred true to only mark them as free (the default), false to overwrite them with zeroes before the deletion returns
+	 */
+	public void setDeferredReclamation(boolean deferred) {
+		if (cio != null){
+			cio.setDeferredReclamation(deferred);
+		}
+	}
+	
+	/**
+	 * erases the content of the blocks freed by the deletions since the disk was opened, if they haven't been reused meanwhile.
+	 * This is meant to be called when the disk is idle, with a small budget each time.
+	 * @param maxBlocks the maximum number of blocks to erase
+	 * @return the number of blocks erased, or -1 if no disk is opened or the blocks can't be written
+	 */
+	public long scrubFreeBlocks(long maxBlocks) {
+		if (cio == null){
+			return -1;
+		}
+		try {
+			return cio.scrubFreeBlocks(maxBlocks);
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
+			return -1;
+		}
+	}
+	
+	/**
+	 * returns the block cache of the opened disk, giving its numbers of hits, misses and evictions
+	 * @return the block cache, or null if no block has been read or written yet, or if the disk is memory-mapped
+	 */
+	public BlockCache getBlockCache() {
+		if (cio != null){
+			return cio.getBlockCache();
+		}
+		return null;
+	}
+
 	/**
 	 * Delete a disk
 	 * @param filePath the path to the .dsk file in the host file system
@@ -117,6 +245,8 @@ public class Core {
 			File disk = new File(filePath);
 			if (disk.exists()){
 			disk.delete();
+			//The journal of the disk is deleted with it
+			new File(MetadataJournal.pathOf(filePath)).delete();
 			return true;
 			} else {
 				System.out.println("The file doesn't exist.");
@@ -127,7 +257,57 @@ public class Core {
 			return false;
 		}	
 	}
-
+	
+	/**
+	 * Change the size of the data partition of the opened disk, without recreating it. Growing only rewrites the metadata stored after the partition.
+	 * Before shrinking, the files using blocks after the new end are moved before it, each of them being saved at once.
+	 * @param size the new size of the data partition, in kilobytes
+	 * @return true if the operation is successful
+	 */
+	public boolean resizeDisk(long size) {
+		if (!isOpened()){
+			return false;
+		}
+		//The files may be moved, the fragmentation will be measured again
+		fragmentationScan = null;
+		try {
+			long blockCount = cio.getBlockCountOfSize(size);
+			if (blockCount < cio.getBlockCount()){
+				for (Map.Entry<Long, List<vfsCore.File>> entry : filesByAddress().entrySet()){
+					long newAddress = cio.evacuateFile(entry.getKey(), blockCount);
+					if (newAddress == entry.getKey()){
+						continue;
+					}
+					//The file and all its copies are saved in a single change, as with the defragmentation
+					for (vfsCore.File copy : entry.getValue()){
+						copy.setAddress(newAddress);
+					}
+					if (!saveChange(HierarchyChange.relocated(entry.getValue()))){
+						return false;
+					}
+				}
+			}
+		} catch (SharedBlockException e) {
+			System.out.println("Some blocks at the end of the disk are shared by deduplicated files, they can't be moved");
+			return false;
+		} catch (NoFreeBlockException e) {
+			System.out.println("Not enough free space at the beginning of the disk");
+			return false;
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
+			return false;
+		}
+		try {
+			cio.resizeDisk(size, fullHierarchy);
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
+			//The disk is opened again as it has been saved, with its previous size or the new one
+			boolean memoryMapped = cio.isMemoryMapped();
+			openDisk(getDiskpath(), memoryMapped);
+			return false;
+		}
+	}
 	
 	
 	//----------------------------------//
@@ -139,6 +319,9 @@ public class Core {
 	 * @return true if the save is successful
 	 */
 	public boolean saveFullHierarchyToFile(){
+		if (!isOpened()){
+			return false;
+		}
 		try {
 			cio.saveHierarchyToFile(fullHierarchy);
 			return true;
@@ -151,12 +334,37 @@ public class Core {
 		}
 	}
 	
+	/**
+	 * save a change of the hierarchy, already applied to it, in the journal of the currently opened VFS disk
+	 * @param change the change
+	 * @return true if the save is successful
+	 */
+	private boolean saveChange(HierarchyChange change){
+		//The files measured by the defragmentation may have been changed, the relocations of the defragmentation itself being already known
+		if (fragmentationScan != null && change.getType() != HierarchyChange.RELOCATED){
+			fragmentationScan.outdate();
+		}
+		try {
+			cio.saveHierarchyChange(fullHierarchy, change);
+			return true;
+		} catch (FileNotFoundException e) {
+			System.out.println("Disk doesn't exist");
+			return false;
+		} catch (IOException e) {
+			System.out.println("Error in the CoreIO");
+			return false;
+		}
+	}
+	
 	/**
 	 * moves to a folder
 	 * @param path the path to the sub-hierarchy, relative o
 	 * @return true if successful, false else
 	 */
 	public boolean goTo(String path){
+		if (!isOpened()){
+			return false;
+		}
 		try {
 			Hierarchy tempHierarchy;
 			//We check if the path is absolute or relative
@@ -187,6 +395,9 @@ public class Core {
 	 * @return true if move successful, false if we are at the root
 	 */
 	public  boolean goToParent() {
+		if (!isOpened()){
+			return false;
+		}
 		if (currentHierarchy.equals(fullHierarchy)){
 			System.out.println("You already are on the root of the vfs disk");
 			return false;
@@ -200,6 +411,9 @@ public class Core {
 	 * lists the elements stored in the current folder, giving the name of each element, its type (file (f) or Folder (F)), and the size of the files in bytes
 	 */
 	public void list(boolean showSizes){
+		if (!isOpened()){
+			return;
+		}
 			String s = "\nVFS "+cio.getDiskName()+"\n> "+(currentHierarchy.getName().equals("")?"root":currentHierarchy.getName())+"\n";
 			for(Hierarchy child:currentHierarchy.getChildren()){
 				s = s+"- "+child.getName()+" ";
@@ -234,9 +448,12 @@ public class Core {
 	 * @return true if the operation is successful
 	 */
 	public boolean createFolderAtPath(String path, String name) {
+		if (!isOpened()){
+			return false;
+		}
 		try {
-			fullHierarchy.createFolderAtPath(path, name);
-			return saveFullHierarchyToFile();
+			Folder created = fullHierarchy.createFolderAtPath(path, name);
+			return saveChange(HierarchyChange.added(created));
 		} catch (fileNotFound e) {
 			System.out.println("The file doesn't exist");
 			return false;
@@ -256,9 +473,14 @@ public class Core {
 	 * @return true if the operation is successful
 	 */
 	public boolean renameFolderAtPath(String path, String name) {
+		if (!isOpened()){
+			return false;
+		}
 		try {
+			Hierarchy renamed = fullHierarchy.findChild(path);
+			List<String> oldPath = HierarchyChange.pathOf(renamed);
 			fullHierarchy.renameFolderAtPath(path, name);
-			return saveFullHierarchyToFile();
+			return saveChange(HierarchyChange.moved(oldPath, renamed));
 		} catch (fileNotFound e) {
 			System.out.println("The file doesn't exist");
 			return false;
@@ -279,9 +501,12 @@ public class Core {
 	 * @return true if the operation is successful
 	 */
 	public boolean createFileAtPath(String path, String name) {
+		if (!isOpened()){
+			return false;
+		}
 		try {
-			fullHierarchy.createFileAtPath(path, name);
-			return saveFullHierarchyToFile();
+			vfsCore.File created = fullHierarchy.createFileAtPath(path, name);
+			return saveChange(HierarchyChange.added(created));
 		} catch (fileNotFound e) {
 			System.out.println("The file doesn't exist");
 			return false;
@@ -301,9 +526,14 @@ public class Core {
 	 * @return true if the operation is successful
 	 */
 	public boolean renameFileAtPath(String path, String name) {
+		if (!isOpened()){
+			return false;
+		}
 		try {
+			Hierarchy renamed = fullHierarchy.findChild(path);
+			List<String> oldPath = HierarchyChange.pathOf(renamed);
 			fullHierarchy.renameFileAtPath(path, name);
-			return saveFullHierarchyToFile();
+			return saveChange(HierarchyChange.moved(oldPath, renamed));
 		} catch (fileNotFound e) {
 			System.out.println("The file doesn't exist");
 			return false;
@@ -329,11 +559,10 @@ public class Core {
 	 * @return  true if the operation is successful
 	 */
 	public boolean importElement(String homePath, String VFSPath) {
-		File fileToAdd = new File(homePath);
-		//Lazily initializing the Import-Export Core
-		if (cie == null){
-			cie = new CoreImportExport(cio);
+		if (!isOpened()){
+			return false;
 		}
+		File fileToAdd = new File(homePath);
 		//Check if the file exists on the host
 		if (fileToAdd.exists()){
 			try {
@@ -361,11 +590,11 @@ public class Core {
 					}
 					try {
 						//We import it
-						vfsCore.File hFile = cie.importFile(fileToAdd, newName);
+						vfsCore.File hFile = getImportExport().importFile(fileToAdd, newName);
 						//We add it to its designated parent in the path argument
 						((Folder)destination).addChild(hFile);
 						//And we save the modified Hierarchy
-						return saveFullHierarchyToFile();
+						return saveChange(HierarchyChange.added(hFile));
 					} catch (FileNotFoundException e){
 						System.out.println("File not found !");
 						return false;
@@ -382,11 +611,11 @@ public class Core {
 					}
 					try {
 						//We import it
-						vfsCore.Folder hFolder = cie.importFolder(fileToAdd, newName);
+						vfsCore.Folder hFolder = getImportExport().importFolder(fileToAdd, newName);
 						//We add it to its designated parent in the path argument
 						((Folder)destination).addChild(hFolder);
 						//And we save the modified Hierarchy
-						return saveFullHierarchyToFile();
+						return saveChange(HierarchyChange.added(hFolder));
 					} catch (FileNotFoundException e){
 						System.out.println("Folder not found !");
 						return false;
@@ -415,23 +644,172 @@ public class Core {
 	 * @return true if the operation is successful
 	 */
 	public boolean exportElement(String VFSPath, String homePath){
+		if (!isOpened()){
+			return false;
+		}
 		try {
-			//Lazily initializing the Import-Export Core
-			if (cie == null){
-				cie = new CoreImportExport(cio);
-			}
 			//We find the pointer to the Hierarchy element at the given VFSPath
 			Hierarchy origin = ((Folder)fullHierarchy).findChild(VFSPath);
 			if (origin instanceof vfsCore.File){
-				return cie.exportFile((vfsCore.File)origin, homePath);
+				return getImportExport().exportFile((vfsCore.File)origin, homePath);
 			} else {
-				return cie.exportFolder((Folder)origin, homePath);
+				return getImportExport().exportFolder((Folder)origin, homePath);
 			}
 		} catch (fileNotFound e) {
 			System.out.println("The file doesn't exist");
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
 		}
 		return false;	
 	}
+	
+	/**
+	 * reads a range of a file of the VFS directly into a buffer, without exporting the file to the host file system
+	 * @param VFSPath the path of the file in the VFS hierarchy
+	 * @param offset the position of the first byte to read in the file
+	 * @param buffer the buffer, filled from its position up to its limit, or up to the end of the file
+	 * @return the number of bytes read (0 if the offset is after the end of the file), or -1 if the file can't be read
+	 */
+	public int readElement(String VFSPath, long offset, ByteBuffer buffer){
+		if (!isOpened()){
+			return -1;
+		}
+		try {
+			Hierarchy origin = fullHierarchy.findChild(VFSPath);
+			if (!(origin instanceof vfsCore.File)){
+				System.out.println("Please specify a *file*");
+				return -1;
+			}
+			return getImportExport().read((vfsCore.File)origin, offset, buffer);
+		} catch (fileNotFound e) {
+			System.out.println("The file doesn't exist");
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
+		}
+		return -1;
+	}
+	
+	/**
+	 * opens a stream reading the content of a file of the VFS, directly from the blocks of the disk, without exporting the file to the host file system
+	 * @param VFSPath the path of the file in the VFS hierarchy
+	 * @return the input stream, to be closed by the caller, or null if the file can't be read
+	 */
+	public InputStream openRead(String VFSPath){
+		if (!isOpened()){
+			return null;
+		}
+		try {
+			Hierarchy origin = fullHierarchy.findChild(VFSPath);
+			if (!(origin instanceof vfsCore.File)){
+				System.out.println("Please specify a *file*");
+				return null;
+			}
+			return getImportExport().openRead((vfsCore.File)origin);
+		} catch (fileNotFound e) {
+			System.out.println("The file doesn't exist");
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
+		}
+		return null;
+	}
+	
+	/**
+	 * opens a stream writing a file of the VFS, directly in the blocks of the disk, without any temporary file on the host file system.
+	 * The file appears in the hierarchy when the stream is closed. If a file with the same name already exists, it is replaced at this moment.
+	 * @param VFSPath the path of the file in the VFS hierarchy
+	 * @return the output stream, to be closed by the caller, or null if the file can't be written
+	 */
+	public OutputStream openWrite(String VFSPath){
+		if (!isOpened()){
+			return null;
+		}
+		try {
+			//First we split the path to extract the parent folder and the name of the file
+			int separator = VFSPath.lastIndexOf(File.separator);
+			final String path = VFSPath.substring(0, Math.max(separator, 0));
+			final String newName = VFSPath.substring(separator+1);
+			Hierarchy destination = fullHierarchy.findChild(path);
+			if (!(destination instanceof Folder) || newName.equalsIgnoreCase("") || (((Folder)destination).getChild(newName) instanceof Folder)){
+				System.out.println("Please specify a *file* in a folder");
+				return null;
+			}
+			final CoreIO.StoredOutputStream stored = cio.openStoredOutputStream();
+			return new FilterOutputStream(getImportExport().openWrite(stored, newName)) {
+				private boolean closed = false;
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+				
+				@Override
+				public void close() throws IOException {
+					if (closed){
+						return;
+					}
+					closed = true;
+					out.close();
+					addStoredFile(path, newName, stored.getAddress(), stored.getSize());
+				}
+			};
+		} catch (fileNotFound e) {
+			System.out.println("The folder doesn't exist");
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
+		}
+		return null;
+	}
+	
+	/**
+	 * adds a file whose content has already been written on the disk to the hierarchy, replacing the file with the same name if there is one
+	 * @param path the path of the parent folder
+	 * @param name the name of the file
+	 * @param address the address of the content of the file
+	 * @param size the size of the content of the file
+	 * @throws IOException
+	 */
+	private void addStoredFile(String path, String name, long address, long size) throws IOException {
+		Hierarchy destination;
+		try {
+			destination = fullHierarchy.findChild(path);
+		} catch (fileNotFound e) {
+			//The folder has been removed meanwhile, the content is dropped
+			cio.removeFileAtAddress(address);
+			throw new IOException("dossier inexistant");
+		}
+		Hierarchy existing = ((Folder)destination).getChild(name);
+		HierarchyChange change;
+		if (existing instanceof vfsCore.File){
+			//The old content is removed only once the new one is completely written
+			long oldAddress = ((vfsCore.File)existing).getAddress();
+			((vfsCore.File)existing).setAddress(address);
+			((vfsCore.File)existing).setSize(size);
+			cio.removeFileAtAddress(oldAddress);
+			change = HierarchyChange.updated((vfsCore.File)existing);
+		} else if (existing == null){
+			vfsCore.File added = new vfsCore.File(name, address, size, null);
+			((Folder)destination).addChild(added);
+			change = HierarchyChange.added(added);
+		} else {
+			cio.removeFileAtAddress(address);
+			throw new IOException("un dossier du meme nom existe deja");
+		}
+		if (!saveChange(change)){
+			throw new IOException("sauvegarde de la hiérarchie impossible");
+		}
+	}
+	
+	/**
+	 * returns the import-export core of the disk, lazily created with the compression setting of the disk
+	 * @return the import-export core
+	 * @throws IOException
+	 */
+	private CoreImportExport getImportExport() throws IOException {
+		if (cie == null){
+			cie = new CoreImportExport(cio, cio.getFormat().isCompressed());
+		}
+		return cie;
+	}
 
 	
 	
@@ -447,14 +825,17 @@ public class Core {
 	 * @throws BadPathInstanceException
 	 */
 	public boolean deleteElementAtPath(String path){
+		if (!isOpened()){
+			return false;
+		}
 		try {
 			Hierarchy child = fullHierarchy.findChild(path);
-			if (child instanceof Folder){
-				deleteFolderOfHierarchy(child);
-			} else if (child instanceof vfsCore.File){
-				deleteFileAtPath(path);
+			if (child instanceof vfsCore.File){
+				return deleteFileAtPath(path);
 			}
-			return saveFullHierarchyToFile();
+			List<String> oldPath = HierarchyChange.pathOf(child);
+			deleteFolderOfHierarchy(child);
+			return saveChange(HierarchyChange.removed(oldPath));
 		} catch (BadPathInstanceException e) {
 			System.out.println("Attention vous devez selectionner un DOSSIER a supprimer");
 			return false;
@@ -477,7 +858,8 @@ public class Core {
 	public void deleteFolderOfHierarchy(Hierarchy folder) throws BadPathInstanceException, FileNotFoundException, IOException{
 		if (folder instanceof Folder){
 			//deleting the sub-folders and subfiles
-			for(Hierarchy subpath : ((Folder)folder).getChildren())
+			//We browse a copy of the list, since the children are removed from it
+			for(Hierarchy subpath : new ArrayList<Hierarchy>(((Folder)folder).getChildren()))
 			{		
 				if(subpath instanceof Folder){
 					deleteFolderOfHierarchy(subpath);
@@ -503,12 +885,16 @@ public class Core {
 	 * @throws fileNotFound 
 	 */
 	public boolean deleteFileAtPath(String path){
+		if (!isOpened()){
+			return false;
+		}
 		try {
 			Hierarchy child = fullHierarchy.findChild(path);
 			if(child instanceof vfsCore.File){
+				List<String> oldPath = HierarchyChange.pathOf(child);
 				cio.removeFileAtAddress(((vfsCore.File) child).getAddress());			
 				child.getParent().removeChild(child);
-				return saveFullHierarchyToFile();
+				return saveChange(HierarchyChange.removed(oldPath));
 			} else {
 				throw new BadPathInstanceException("vous essayer de supprimer un dossier alors que vous devirez supprimer un fichier");
 			}
@@ -538,6 +924,9 @@ public class Core {
 	 * @return true if the operation is successful
 	 */
 	public boolean copyElementAtPath(String departure, String destination){
+		if (!isOpened()){
+			return false;
+		}
 		try {
 			Hierarchy toBeCopied = fullHierarchy.findChild(departure);
 			String path = destination.substring(0, destination.lastIndexOf(File.separator));
@@ -570,54 +959,50 @@ public class Core {
 	 * @return true if the operation is successful
 	 */
 	public boolean copyElement(Hierarchy original, Folder destinationFolder, String name){
+		if (!isOpened()){
+			return false;
+		}
 		//Thank to the check in copyElementAtPath, we are sure destinationFolder is a Folder
-			if (original instanceof vfsCore.File){
-				//we want to copy a single file
-				//We check its size
-				if (((vfsCore.File) original).getSize() >= getFreeSpace()){
-					System.out.println("Pas assez de place sur le disque");
-					return false;
-				}
-				long newAdress = -1;
-				try {
-					//We pass the copy order to the CoreIO
-					destinationFolder.alreadyExist(name);
-					newAdress = cio.copyFileAtAddress(((vfsCore.File) original).getAddress());
-				} catch (FileNotFoundException e){
-					System.out.println("The file doesn't exist");
-					return false;
-				} catch (IOException e) {
-					System.out.println("Error in the CoreIO");
-					return false;
-				} catch (AlreadyExistException e){
-					System.out.println("Please, change the name of the file, this name is already used here");
-					return false;
-				}
-				//We add the element to the Hierarchy
-				destinationFolder.addChild(new vfsCore.File(name, newAdress, ((vfsCore.File) original).getSize(), destinationFolder));
-				return saveFullHierarchyToFile();
-			} else {
-				//We want to copy a folder
-				//The availability of the name in the parent folder has already been tested in copyElementAtPath
-				Folder original1 = ((Folder)original);
-				//First we check the available size
-				SizeVisitor sz = new SizeVisitor();
-				sz.visit(original1);
-				if(sz.getSizeUsed() >= getFreeSpace()){
-					System.out.println("Pas assez de place sur le disque");
-					return false;
-				}
-				//Then we create the new folder, empty
-				Folder copyFolder = new Folder(new ArrayList<Hierarchy>(),name,destinationFolder);
-				//And we add its children
-				for(Hierarchy child:original1.getChildren()){
-					copyElement(child, copyFolder, child.getName());
-				}
-				//Finally we add the newly constructed hierarchy to the destination folder
-				destinationFolder.addChild(copyFolder);
-				return saveFullHierarchyToFile();
-			}
-			
+		Hierarchy copy;
+		try {
+			destinationFolder.alreadyExist(name);
+			//The copy is built apart, then added to the Hierarchy in a single change
+			copy = copyHierarchy(original, name);
+		} catch (FileNotFoundException e){
+			System.out.println("The file doesn't exist");
+			return false;
+		} catch (IOException e) {
+			System.out.println("Error in the CoreIO");
+			return false;
+		} catch (AlreadyExistException e){
+			System.out.println("Please, change the name of the file, this name is already used here");
+			return false;
+		}
+		destinationFolder.addChild(copy);
+		return saveChange(HierarchyChange.added(copy));
+	}
+	
+	/**
+	 * builds a copy of a Hierarchy element, which isn't added to any folder yet
+	 * @param original the Hierarchy to copy
+	 * @param name the name of the copy
+	 * @return the copy
+	 * @throws IOException
+	 */
+	private Hierarchy copyHierarchy(Hierarchy original, String name) throws IOException {
+		if (original instanceof vfsCore.File){
+			//The copy shares the blocks of the original file, so it doesn't need any space
+			//We pass the copy order to the CoreIO
+			long newAdress = cio.copyFileAtAddress(((vfsCore.File) original).getAddress());
+			return new vfsCore.File(name, newAdress, ((vfsCore.File) original).getSize(), null);
+		}
+		//We want to copy a folder : we create the new folder, empty
+		Folder copyFolder = new Folder(new ArrayList<Hierarchy>(), name, null);
+		//And we add its children
+		for(Hierarchy child:((Folder)original).getChildren()){
+			copyFolder.addChild(copyHierarchy(child, child.getName()));
+		}
+		return copyFolder;
 	}
 	
 	/**
@@ -628,6 +1013,9 @@ public class Core {
 	 * @throws BadPathInstanceException
 	 */
 	public boolean moveElement(String departure, String destination){
+		if (!isOpened()){
+			return false;
+		}
 		Hierarchy toBeMoved;
 		try {
 			toBeMoved = fullHierarchy.findChild(departure);
@@ -643,10 +1031,12 @@ public class Core {
 					return false;
 				}
 				//Then we can execute the move
+				List<String> oldPath = HierarchyChange.pathOf(toBeMoved);
 				toBeMoved.getParent().removeChild(toBeMoved);
-				((Folder)finalStop).addChild(toBeMoved);
+				//Renamed while it is removed, so that it is added under its new name : an element of its destination may have its old name
 				toBeMoved.setName(newName);
-				return saveFullHierarchyToFile();
+				((Folder)finalStop).addChild(toBeMoved);
+				return saveChange(HierarchyChange.moved(oldPath, toBeMoved));
 			}else{
 				throw new BadPathInstanceException("attention vous essayer de deplacer un element dans un fichier !!");
 			}
@@ -669,13 +1059,19 @@ public class Core {
 	//-----------------//
 	
 	/**
-	 * return the size, in bytes, used on the vfs data partition
-	 * @return the size, in bytes, used on the vfs data partition
+	 * return the size, in bytes, used on the vfs data partition : the size of its used blocks, known without browsing the hierarchy
+	 * @return the size, in bytes, used on the vfs data partition, or -1 if it can't be read
 	 */
 	public long getUsedSpace() {
-		SizeVisitor sz = new SizeVisitor();
-		sz.visit((Folder)fullHierarchy);
-		return sz.getSizeUsed();	
+		if (!isOpened()){
+			return -1;
+		}
+		try {
+			return cio.usedSizeOfDisk();
+		} catch (IOException e) {
+			System.out.println("Error reading the size of the disk");
+			return -1;
+		}
 	}
 	
 	/**
@@ -683,6 +1079,9 @@ public class Core {
 	 * @return return the size, in bytes, of the vfs data partition
 	 */
 	public long getTotalSpace(){
+		if (!isOpened()){
+			return -1;
+		}
 		try {
 			return cio.sizeOfDisk();
 		} catch (IOException e) {
@@ -696,7 +1095,208 @@ public class Core {
 	 * @return return the size, in bytes, of the unused space on the vfs data partition
 	 */
 	public long getFreeSpace(){
-		return getTotalSpace()-getUsedSpace();
+		if (!isOpened()){
+			return -1;
+		}
+		long total = getTotalSpace();
+		long used = getUsedSpace();
+		if (total < 0 || used < 0){
+			return -1;
+		}
+		return total-used;
+	}
+
+	/**
+	 * prints the total size and the number of files of an element and of each of its sub-folders, known by the folders without browsing their content
+	 * @param path the path of the element, absolute or relative to the current folder
+	 * @return true if successful, false if the element doesn't exist
+	 */
+	public boolean printDiskUsage(String path){
+		if (!isOpened()){
+			return false;
+		}
+		Hierarchy element;
+		try {
+			if (path.isEmpty()){
+				element = currentHierarchy;
+			} else if (path.charAt(0) == File.separatorChar){
+				element = fullHierarchy.findChild(path);
+			} else {
+				element = currentHierarchy.findChild(path);
+			}
+		} catch (fileNotFound e) {
+			System.out.println("Sorry, the element doesn't exist");
+			return false;
+		}
+		String s = "";
+		if (element instanceof Folder){
+			for (Hierarchy child:((Folder)element).getChildren()){
+				if (child instanceof Folder){
+					s = s + ((Folder)child).getSubtreeSize()+"B\t"+((Folder)child).getFileCount()+" file(s)\t"+getPath(child)+"\n";
+				}
+			}
+			s = s + ((Folder)element).getSubtreeSize()+"B\t"+((Folder)element).getFileCount()+" file(s)\t";
+		} else {
+			s = s + ((vfsCore.File)element).getSize()+"B\t1 file(s)\t";
+		}
+		String elementPath = getPath(element);
+		System.out.println(s + (elementPath.isEmpty() ? File.separator : elementPath));
+		return true;
+	}
+
+	
+	
+	//----------------------//
+	//DEFRAGMENTING THE DISK//
+	//----------------------//
+	
+	/**
+	 * measures the fragmentation of the files of the disk : the proportion of their blocks which don't directly follow the previous block of the file.
+	 * The files not measured yet by the current scan of the defragmentation are measured first : the metadata of all the files is only read once,
+	 * until the hierarchy is changed by another operation, all the files being then measured again.
+	 * @return a score between 0 (the content of each file is contiguous) and 1, or -1 if no disk is opened or it can't be read
+	 */
+	public double getFragmentation() {
+		if (!isOpened()){
+			return -1;
+		}
+		try {
+			if (fragmentationScan != null && fragmentationScan.isOutdated()){
+				fragmentationScan = null;
+			}
+			FragmentationScan scan = getFragmentationScan();
+			while (!scan.isComplete()){
+				scan.scanNext(cio);
+			}
+			return scan.getScore();
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the fragmentation of the files measured so far by the current scan of the defragmentation, without reading anything (see getFragmentation),
+	 * or -1 if no disk is opened
+	 */
+	public double getScannedFragmentation() {
+		if (!isOpened()){
+			return -1;
+		}
+		return getFragmentationScan().getScore();
+	}
+
+	/**
+	 * @return the proportion of the files of the disk measured so far by the current scan of the defragmentation, 1 once it has browsed all of them,
+	 * or -1 if no disk is opened
+	 */
+	public double getScannedProportion() {
+		if (!isOpened()){
+			return -1;
+		}
+		FragmentationScan scan = getFragmentationScan();
+		long files = fullHierarchy.getFileCount();
+		if (scan.isComplete() || files == 0){
+			return 1;
+		}
+		return Math.min(1, (double) scan.getMeasured() / files);
+	}
+	
+	/**
+	 * moves the content of the most fragmented files to contiguous blocks, until a budget of blocks is spent.
+	 * The files are measured one at a time by a scan of the hierarchy, which is resumed by the next call : the blocks whose metadata is read count in the budget,
+	 * as the blocks copied. The most fragmented file found so far is moved first, once all its copies have been found.
+	 * The scan isn't lost when the hierarchy is changed between two calls : it is only started again once it has browsed all the files and they have all been moved.
+	 * Each file moved is saved at once, so the defragmentation can be interrupted and resumed by another call at any time.
+	 * @param maxBlocks the maximum number of blocks read or copied by this call. A file bigger than the budget is only moved if it is the first one.
+	 * @return the number of blocks copied, or -1 if no disk is opened or an error occurred
+	 */
+	public long defragment(long maxBlocks) {
+		if (!isOpened()){
+			return -1;
+		}
+		try {
+			FragmentationScan scan = getFragmentationScan();
+			long spent = 0;
+			long moved = 0;
+			while (spent < maxBlocks){
+				FragmentationScan.Candidate candidate = scan.nextCandidate((moved == 0) ? Long.MAX_VALUE : maxBlocks - spent);
+				if (candidate == null){
+					if (scan.isComplete()){
+						//The files changed since the scan started are browsed again
+						FragmentationScan next = getFragmentationScan();
+						if (next == scan){
+							break;
+						}
+						scan = next;
+						continue;
+					}
+					spent = spent + scan.scanNext(cio);
+					continue;
+				}
+				if (!scan.isValid(candidate, cio.getReferences())){
+					//The file has been removed or replaced since it was measured, or copied in a folder already browsed
+					scan.done(candidate, false);
+					continue;
+				}
+				long newAddress = cio.relocateFile(candidate.getAddress());
+				if (newAddress == candidate.getAddress()){
+					//Its blocks are shared with other files, or there is no run of free blocks long enough
+					scan.done(candidate, false);
+					continue;
+				}
+				//The file and all its copies are saved in a single change, since they share the blocks
+				for (vfsCore.File copy : candidate.getCopies()){
+					copy.setAddress(newAddress);
+				}
+				if (!saveChange(HierarchyChange.relocated(candidate.getCopies()))){
+					return -1;
+				}
+				scan.done(candidate, true);
+				spent = spent + candidate.getBlocks();
+				moved = moved + candidate.getBlocks();
+			}
+			return moved;
+		} catch (IOException e) {
+			System.out.println("Error with the CoreIO");
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the current scan of the files measuring their fragmentation, started if needed, or again if the hierarchy has changed since it browsed all the files
+	 * and all the fragmented files found have been moved
+	 */
+	private FragmentationScan getFragmentationScan() {
+		if (fragmentationScan == null || (fragmentationScan.isComplete() && fragmentationScan.isOutdated() && !fragmentationScan.hasCandidates())){
+			fragmentationScan = new FragmentationScan(fullHierarchy);
+		}
+		return fragmentationScan;
+	}
+	
+	/**
+	 * @return the files of the disk which have been written, grouped by address (the copies of a file share its address)
+	 */
+	private Map<Long, List<vfsCore.File>> filesByAddress() {
+		Map<Long, List<vfsCore.File>> files = new LinkedHashMap<>();
+		Deque<Folder> folders = new ArrayDeque<>();
+		folders.push(fullHierarchy);
+		while (!folders.isEmpty()){
+			for (Hierarchy child : folders.pop().getChildren()){
+				if (child instanceof Folder){
+					folders.push((Folder) child);
+				} else if (((vfsCore.File) child).getAddress() >= 0){
+					long address = ((vfsCore.File) child).getAddress();
+					List<vfsCore.File> copies = files.get(address);
+					if (copies == null){
+						copies = new ArrayList<>();
+						files.put(address, copies);
+					}
+					copies.add((vfsCore.File) child);
+				}
+			}
+		}
+		return files;
 	}
 	
 	
@@ -711,9 +1311,42 @@ public class Core {
 	 * @return an array containing all the Files objects whose name is equal to the string given as an argument
 	 */
 	public ArrayList<Hierarchy> searchFile(String search) {
-		SearchVisitor sv = new SearchVisitor(search);
-		sv.visit((Folder)fullHierarchy);
-		return sv.getElements();
+		return searchFile(search, NameIndex.MATCH_NAME);
+	}
+
+	/**
+	 * returns an array containing all the Files objects whose name matches the string given as an argument, found through the index of the names
+	 * @param search the name, the beginning of the name, the glob pattern (as "*.txt") or the regular expression searched
+	 * @param mode how the names are compared with the search, NameIndex.MATCH_NAME, MATCH_PREFIX, MATCH_GLOB or MATCH_REGEX
+	 * @return an array containing the matching files, sorted by path, or null if the regular expression is invalid or no disk is opened
+	 */
+	public ArrayList<Hierarchy> searchFile(String search, int mode) {
+		if (!isOpened()){
+			return null;
+		}
+		NameIndex index = fullHierarchy.getNameIndex();
+		if (index == null){
+			//The disks saved before the index was stored are browsed once, the index being saved at the next checkpoint
+			index = NameIndex.build(fullHierarchy);
+			fullHierarchy.setNameIndex(index);
+		}
+		List<String> paths;
+		try {
+			paths = index.find(search, mode);
+		} catch (PatternSyntaxException e) {
+			System.out.println("Invalid regular expression: " + e.getDescription());
+			return null;
+		}
+		ArrayList<Hierarchy> found = new ArrayList<Hierarchy>();
+		for (String path : paths){
+			try {
+				//The paths are followed without the cache, which would only keep the last ones of a long list
+				found.add(fullHierarchy.followPath(path));
+			} catch (fileNotFound e) {
+				System.out.println("The index of the names doesn't match the hierarchy at path "+path);
+			}
+		}
+		return found;
 	}
 	
 	/**
@@ -721,7 +1354,23 @@ public class Core {
 	 * @param search the string to search, including extension
 	 */
 	public void printSearch(String search){
-		ArrayList<Hierarchy> results = searchFile(search);
+		printSearch(search, NameIndex.MATCH_NAME);
+	}
+
+	/**
+	 * prints the list of files found using the searchFile method, with their size and path
+	 * @param search the string to search
+	 * @param mode how the names are compared with the search (see searchFile)
+	 * @return false if the search is invalid
+	 */
+	public boolean printSearch(String search, int mode){
+		if (!isOpened()){
+			return false;
+		}
+		ArrayList<Hierarchy> results = searchFile(search, mode);
+		if (results == null){
+			return false;
+		}
 		if (results.isEmpty()){
 			System.out.println("No file found.");
 		} else {
@@ -730,6 +1379,7 @@ public class Core {
 				System.out.println("- "+file.getName()+" of size "+((vfsCore.File)file).getSize()+"B at path "+getPath(file));
 			}
 		}
+		return true;
 	}
 	
 	public String getPath(Hierarchy origin){
@@ -2,27 +2,178 @@ package vfsCore;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import vfsCore.exceptions.NoFreeBlockException;
+import vfsCore.exceptions.SharedBlockException;
 /**
  * The CoreIO manages all the input/output methods. It is an interface between the Core manipulating the hierarchy, and the .dsk file where the VFS disk is stored
  * The .dsk has a specific structure, described in our report. It is composed of (and in this order) : 
- * - the data of the files stored on the VFS, 
- * - a serialized version of the hierarchy, 
+ * - the data of the files stored on the VFS, as blocks with their metadata (see DiskGeometry for the two versions of this part), 
+ * - the hierarchy, in the binary format of the HierarchyWriter (or serialized by Java for the disks saved before this format), 
+ * - the bitmap of the used blocks of the data partition,
+ * - the number of references to the blocks shared by several files (see BlockReferences),
+ * - for the deduplicated disks, the hashes of the files and of the blocks already stored (see ContentIndex),
+ * - the index of the names of the files (see NameIndex), for the disks whose index has been built, decoded the first time a file is searched,
+ * - the format of the disk (see DiskFormat), and the identifier of this save of the sections, the checkpoint,
+ * - a table giving the position and length of the previous sections, followed by the number of entries of this table and a magic number,
  * - the desired size of the disk (ie the size of the part of the file dedicated to storing the data).
+ * Disks created before the bitmap was introduced only contain the serialized hierarchy between the data and the size of the disk, 
+ * their bitmap is rebuilt from the dirty bytes of the blocks the first time it is needed.
+ * The .dsk file is opened once, the first time it is needed, and stays open until close() is called.
+ * Between two checkpoints, the changes of the hierarchy and of the other sections are appended to the journal of the disk (see MetadataJournal), 
+ * which is replayed when the hierarchy is loaded. A checkpoint is made when the journal becomes bigger than the sections.
  * 
  * @author Simon Rodriguez
  *
  */
 public class CoreIO {
+	/**
+	 * magic number marking the presence of the table of sections at the end of the .dsk ("VFST")
+	 */
+	private static final int TAIL_MAGIC = 0x56465354;
+	/**
+	 * tags of the sections stored after the data partition ("HIER", "BMAP", "INFO", "REFS", "FIDX", "BIDX", "JRNL" for the checkpoint, and "NAM2" below)
+	 */
+	private static final int SECTION_HIERARCHY = 0x48494552;
+	private static final int SECTION_BITMAP = 0x424D4150;
+	private static final int SECTION_FORMAT = 0x494E464F;
+	private static final int SECTION_REFERENCES = 0x52454653;
+	private static final int SECTION_FILE_INDEX = 0x46494458;
+	private static final int SECTION_BLOCK_INDEX = 0x42494458;
+	private static final int SECTION_JOURNAL = 0x4A524E4C;
+	/**
+	 * tag of the index of the names of the files ("NAM2", the first version "NAME" being ignored and built again)
+	 */
+	private static final int SECTION_NAME_INDEX = 0x4E414D32;
+	/**
+	 * size under which the journal doesn't trigger a checkpoint, even if the sections are smaller
+	 */
+	private static final int MIN_JOURNAL_SIZE = 64*1024;
+	/**
+	 * first int of the record of the journal containing a checkpoint being written, instead of the length of a change of the hierarchy
+	 */
+	private static final int CHECKPOINT_RECORD = -1;
+	/**
+	 * first int of the record of the journal containing a checkpoint which also changes the size of a version 2 disk : its header and the metadata of its blocks are written too
+	 */
+	private static final int RESIZE_RECORD = -2;
+	/**
+	 * magic number at the beginning of the index blocks of the files stored as extents ("EXT1")
+	 */
+	private static final int EXTENT_MAGIC = 0x45585431;
+	/**
+	 * magic number at the beginning of the inodes of the files stored with a block map ("INO1")
+	 */
+	private static final int INODE_MAGIC = 0x494E4F31;
+	/**
+	 * maximum number of bytes read or written in a single call, to bound the size of the buffers
+	 */
+	private static final int MAX_BYTES_PER_IO = 1024*1024;
+	/**
+	 * default size of the block cache, in bytes
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 4*1024*1024;
+	
 	//ATTRIBUTES, CONSTRUCTOR, GETTERS/SETTERS
 	private String diskName;
+	/**
+	 * the bitmap of the used blocks, lazily loaded from the .dsk file
+	 */
+	private BlockAllocator allocator;
+	/**
+	 * the number of references to the blocks shared by several files
+	 */
+	private BlockReferences references;
+	/**
+	 * for the deduplicated disks, the hashes of the files and of the blocks already stored
+	 */
+	private ContentIndex fileIndex;
+	private ContentIndex blockIndex;
+	/**
+	 * the format of the disk, lazily loaded from the .dsk file
+	 */
+	private DiskFormat format;
+	/**
+	 * the position of the blocks and of their metadata in the .dsk file, lazily loaded
+	 */
+	private DiskGeometry geometry;
+	/**
+	 * true if the data partition is accessed through a memory mapping, kept until the disk is closed
+	 */
+	private boolean memoryMapped = false;
+	private MappedStorage mappedStorage;
+	/**
+	 * the .dsk file, opened the first time it is needed and kept until the disk is closed
+	 */
+	private ChannelStorage diskFile;
+	/**
+	 * the .dsk file as seen by the HierarchyReader, which reads the children of the folders from the hierarchy section when they are needed
+	 */
+	private BlockStorage sectionStorage = new SectionStorage();
+	/**
+	 * the size of the data partition, read once from the .dsk file (-1 until then)
+	 */
+	private long partitionSize = -1;
+	/**
+	 * the most recently read blocks, in front of the .dsk file (not used with the memory mapping)
+	 */
+	private BlockCache blockCache;
+	/**
+	 * the number of blocks kept in memory by the cache, -1 for a cache of about DEFAULT_CACHE_SIZE bytes
+	 */
+	private int cacheCapacity = -1;
+	/**
+	 * buffer reused to interleave the blocks and their metadata
+	 */
+	private byte[] scratch;
+	/**
+	 * last position reached in the linked list of a file by getBlocksInRange : the file, the position of the block in the file and its address
+	 */
+	private long cursorAddress = -1;
+	private long cursorIndex;
+	private long cursorBlock;
+	/**
+	 * true if the blocks of a removed file are only marked as free, their content being erased later by scrubFreeBlocks
+	 */
+	private boolean deferredReclamation = true;
+	/**
+	 * the runs of blocks freed since the disk was opened, whose content hasn't been erased yet
+	 */
+	private List<Extent> unscrubbed = new ArrayList<>();
+	/**
+	 * the runs of blocks freed by the operation in progress, released once it is saved
+	 */
+	private List<Extent> freedRuns = new ArrayList<>();
+	/**
+	 * the journal of the changes made since the last checkpoint
+	 */
+	private MetadataJournal journal;
+	/**
+	 * the identifier of the last checkpoint (0 if the sections don't have one yet), and the size of the sections it saved
+	 */
+	private long checkpointId = 0;
+	private long checkpointSize = 0;
 	/**
 	 * Constructor, passing the name of the VFS disk to use as a parameter
 	 * @param diskName
@@ -31,6 +182,22 @@ public class CoreIO {
 		super();
 		this.diskName = diskName;
 	}
+	/**
+	 * Constructor, passing the name of the VFS disk to use and the way to access its data partition
+	 * @param diskName
+	 * @param memoryMapped true to map the data partition in memory, false to read and write it through the channel of the .dsk file
+	 */
+	public CoreIO(String diskName, boolean memoryMapped) {
+		super();
+		this.diskName = diskName;
+		this.memoryMapped = memoryMapped;
+	}
+	/**
+	 * @return true if the data partition is mapped in memory
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
 	protected String getDiskName() {
 		return diskName;
 	}
@@ -38,6 +205,181 @@ public class CoreIO {
 		this.diskName = diskName;
 	}
 	
+	/**
+	 * @return the maximum number of blocks kept in memory by the block cache, -1 if the default size is used and the cache has not been created yet
+	 */
+	public int getCacheCapacity() {
+		if (blockCache != null){
+			return blockCache.getCapacity();
+		}
+		return cacheCapacity;
+	}
+	
+	/**
+	 * sets the maximum number of blocks kept in memory by the block cache
+	 * @param cacheCapacity the number of blocks, 0 to disable the cache
+	 */
+	public void setCacheCapacity(int cacheCapacity) {
+		this.cacheCapacity = cacheCapacity;
+		if (blockCache != null){
+			blockCache.setCapacity(cacheCapacity);
+		}
+	}
+	
+	/**
+	 * @return true if the blocks of the removed files are only marked as free, and erased later by scrubFreeBlocks
+	 */
+	public boolean isDeferredReclamation() {
+		return deferredReclamation;
+	}
+	
+	/**
+	 * chooses how the blocks of the removed files are reclaimed
+	 * @param deferredReclamation true to only mark them as free (the default), false to overwrite them with zeroes as soon as the removal is saved
+	 */
+	public void setDeferredReclamation(boolean deferredReclamation) {
+		this.deferredReclamation = deferredReclamation;
+	}
+	
+	/**
+	 * returns the block cache, to get its statistics (hits, misses and evictions)
+	 * @return the block cache, or null if the disk hasn't been accessed yet or is memory-mapped
+	 */
+	public BlockCache getBlockCache() {
+		return blockCache;
+	}
+	
+	/**
+	 * returns the allocator of the disk, loading it from the .dsk file (or rebuilding it from the dirty bytes of the blocks) and the journal if needed
+	 * @return the allocator of the disk
+	 * @throws IOException
+	 */
+	protected BlockAllocator getAllocator() throws IOException {
+		if (allocator == null){
+			loadMetadata();
+		}
+		return allocator;
+	}
+	
+	/**
+	 * returns the reference counts of the shared blocks of the disk, loading them from the .dsk file and the journal if needed
+	 * @return the reference counts
+	 * @throws IOException
+	 */
+	protected BlockReferences getReferences() throws IOException {
+		if (references == null){
+			loadMetadata();
+		}
+		return references;
+	}
+	
+	/**
+	 * returns the format of the disk, loading it from the .dsk file if needed. Disks created before the format was stored use the default one.
+	 * @return the format of the disk
+	 * @throws IOException
+	 */
+	protected DiskFormat getFormat() throws IOException {
+		if (format == null){
+			format = loadFormat();
+		}
+		return format;
+	}
+	
+	/**
+	 * sets the format of the disk, which will be saved with the hierarchy. Used when creating a new disk.
+	 * @param format the format of the disk
+	 */
+	protected void setFormat(DiskFormat format) {
+		this.format = format;
+	}
+	
+	/**
+	 * returns the geometry of the disk, read from the header of the .dsk file for version 2 disks, or deduced from the size of the data partition
+	 * @return the geometry of the disk
+	 * @throws IOException
+	 */
+	protected DiskGeometry getGeometry() throws IOException {
+		if (geometry == null){
+			if (getFormat().getVersion() == DiskFormat.VERSION_2){
+				byte[] header = new byte[DiskGeometry.HEADER_SIZE];
+				getDiskFile().read(0, header, 0, header.length);
+				geometry = DiskGeometry.fromHeader(header);
+			} else {
+				geometry = DiskGeometry.inline(sizeOfPartition());
+			}
+		}
+		return geometry;
+	}
+	
+	/**
+	 * resets the allocator, marking all the blocks of the data partition as free.
+	 * The size of the data partition is read again from the .dsk file.
+	 * @throws IOException
+	 */
+	public void resetAllocator() throws IOException {
+		partitionSize = -1;
+		geometry = null;
+		allocator = new BlockAllocator(getGeometry().getBlockCount());
+		references = new BlockReferences();
+		fileIndex = new ContentIndex();
+		blockIndex = new ContentIndex();
+		unscrubbed.clear();
+		freedRuns.clear();
+	}
+	
+	/**
+	 * creates the .dsk file (or empties it if it exists), with an empty data partition laid out according to the format. 
+	 * The hierarchy must be saved afterwards.
+	 * @param size the size of the data partition, in kilobytes
+	 * @param format the format of the disk
+	 * @throws FileNotFoundException if the file can't be created
+	 * @throws IOException
+	 */
+	public void formatDisk(long size, DiskFormat format) throws FileNotFoundException, IOException {
+		close();
+		//A journal left by a previous disk with the same name is obsolete, it must not be replayed on the new disk
+		getJournal().delete();
+		DiskGeometry newGeometry = geometryOfSize(size, format);
+		RandomAccessFile rAF = null;
+		try {
+			rAF = new RandomAccessFile(new File(this.getDiskName()), "rw");
+			//The previous content of the file is dropped, the blocks are filled with zeroes
+			rAF.setLength(0);
+			rAF.setLength(newGeometry.getEnd());
+			if (!newGeometry.hasInlineMetadata()){
+				rAF.write(newGeometry.toHeader());
+			}
+			//We store the end of the data partition at the end of the file
+			rAF.seek(newGeometry.getEnd());
+			rAF.writeLong(newGeometry.getEnd());
+		} finally {
+			if (rAF!=null){rAF.close();}
+		}
+		this.geometry = newGeometry;
+		this.partitionSize = newGeometry.getEnd();
+		this.format = format;
+		//The disk is empty, so is its bitmap
+		this.allocator = new BlockAllocator(newGeometry.getBlockCount());
+		this.references = new BlockReferences();
+		this.fileIndex = new ContentIndex();
+		this.blockIndex = new ContentIndex();
+		this.unscrubbed.clear();
+		this.freedRuns.clear();
+		this.checkpointId = 0;
+	}
+	
+	/**
+	 * @param size the size of a data partition, in kilobytes
+	 * @param format the format of the disk
+	 * @return the geometry of a data partition of this size
+	 */
+	private static DiskGeometry geometryOfSize(long size, DiskFormat format) {
+		if (format.getVersion() == DiskFormat.VERSION_2){
+			return DiskGeometry.paged(format.getBlockSize(), (size*1024 + format.getBlockSize() - 1) / format.getBlockSize());
+		}
+		return DiskGeometry.inline(size*(1024+8+1));
+	}
+	
 	
 	
 	//--------------------------------//
@@ -46,40 +388,29 @@ public class CoreIO {
 	
 	/**
 	 * converts the Hierarchy to a byte array
-	 * Here we want to add the serialized version of the hierarchy to an already existing file (the .dsk), at an arbitrary position. 
-	 * Thus, we need to convert the serialized hierarchy to an array of bytes to be able to write it byte-by-byte.
+	 * Here we want to add the hierarchy to an already existing file (the .dsk), at an arbitrary position. 
+	 * Thus, we need to convert the hierarchy to an array of bytes to be able to write it byte-by-byte.
+	 * The compact binary format of the HierarchyWriter is used, the parent of h1 is not stored.
 	 * @param h1 : the hierarchy we want to convert
 	 * @return an array of bytes
 	 * @throws IOException 
 	 */
 	public byte[] getHierarchyBytes(Hierarchy h1) throws IOException{
-		byte[] hierarchyBytes = null;
-		ByteArrayOutputStream baos = null;
-		ObjectOutputStream out = null;
-		try {
-			//We want to get the serialized version of a hierarchy
-			baos = new ByteArrayOutputStream();
-			out = new ObjectOutputStream(baos);
-			//We write the object to an object output stream, which then transfers it to the byte stream.
-			out.writeObject(h1);
-			//We convert the bytes stored in the stream to an array
-			hierarchyBytes = baos.toByteArray();
-		} finally {
-			//Closing the streams
-			if (baos !=null){baos.close();}
-			if (out !=null){out.close();}
-		}
-		return hierarchyBytes;
+		return HierarchyWriter.toBytes(h1);
 	}
 	
 	/**
-	 * converts a correctly-formatted byte array to a Hierarchy object, de-serializing it.
-	 * @param hierarchyBytes the bytes composing the hierarchy serialized representation
-	 * @return the de-serialized Hierarchy object
+	 * converts a correctly-formatted byte array to a Hierarchy object, decoding it.
+	 * The hierarchies of the disks saved before the binary format was introduced are de-serialized by Java.
+	 * @param hierarchyBytes the bytes composing the hierarchy representation
+	 * @return the decoded Hierarchy object
 	 * @throws IOException 
 	 * @throws ClassNotFoundException 
 	 */
 	public Hierarchy getHierarchyFromBytes(byte[] hierarchyBytes) throws IOException, ClassNotFoundException{
+		if (HierarchyReader.isEncoded(hierarchyBytes)){
+			return new HierarchyReader(hierarchyBytes).read();
+		}
 		Hierarchy h1 = null;
 		ByteArrayInputStream bis = null;
 		ObjectInputStream oin = null;
@@ -101,252 +432,2404 @@ public class CoreIO {
 	
 	/**
 	 * Allows us to save a hierarchy object in a .dsk file, without damaging the data already stored in it.
+	 * All the sections are saved, this is a checkpoint : the journal is emptied.
+	 * The new sections are first appended to the journal and synced, so that if the .dsk file is only partially rewritten,
+	 * they are written again when the disk is opened (see recoverCheckpoint).
 	 * @param h1 the hierarchy we want to save in the .dsk file 
 	 * @throws FileNotFoundException
 	 * @throws IOException 
 	 */
 	public void saveHierarchyToFile(Hierarchy h1) throws FileNotFoundException, IOException{
-		//RandomAccessFile allows us to arbitrarily move a pointer in the content of the file
-		RandomAccessFile rAF = null;
-		try {
-			rAF = new RandomAccessFile(new File(this.getDiskName()), "rw");
-			//We read the size of the data partition (stored as a long on 8 bytes, at the end of the file)
-			rAF.seek(rAF.length()-8);
-			long startingPosition = rAF.readLong();
-			//We place the file reader at the end of the data zone, and thus at the beginning of the serialized hierarchy part
-			rAF.seek(startingPosition);
-			//We write the byte array corresponding to serialized hierarchy
-			rAF.write(getHierarchyBytes(h1));
-			//We store the size of the data partition
-			rAF.writeLong(startingPosition);
-			//We truncate the file, thus deleting any previously stored serialization
-			rAF.setLength(rAF.getFilePointer());
-		} finally {
-			if (rAF!=null){rAF.close();}
+		saveSections(h1, null, null);
+	}
+	
+	/**
+	 * saves all the sections after the data partition, as a checkpoint (see saveHierarchyToFile).
+	 * When a version 2 disk is resized, its new header and the new metadata of its blocks, stored just before the sections, are saved with them.
+	 * @param h1 the hierarchy we want to save in the .dsk file
+	 * @param header the new header of the disk, or null if it doesn't change
+	 * @param metadata the new metadata of the blocks, or null if it doesn't change
+	 * @throws IOException
+	 */
+	private void saveSections(Hierarchy h1, byte[] header, byte[] metadata) throws IOException {
+		ChannelStorage disk = getDiskFile();
+		//The bitmap, the reference counts and the format must be loaded before we overwrite the previous version of the sections
+		if (allocator == null){
+			loadMetadata();
+		}
+		if (format == null){
+			format = loadFormat();
+		}
+		//The sections are written right after the data partition
+		long startingPosition = sizeOfPartition();
+		//The journal will only be replayed if it follows this checkpoint
+		long newCheckpointId = newCheckpointId();
+		//We prepare the byte array corresponding to the encoded hierarchy, then the bitmap of the used blocks and the format
+		//The subtrees of the folders never browsed are copied from the previous version of the hierarchy, before it is overwritten
+		HierarchyWriter writer = new HierarchyWriter();
+		byte[] hierarchyBytes = writer.write(h1);
+		Map<Integer, byte[]> sections = new LinkedHashMap<>();
+		sections.put(SECTION_HIERARCHY, hierarchyBytes);
+		sections.put(SECTION_BITMAP, allocator.toBytes());
+		sections.put(SECTION_REFERENCES, references.toBytes());
+		if (format.isDeduplicated()){
+			sections.put(SECTION_FILE_INDEX, fileIndex.toBytes());
+			sections.put(SECTION_BLOCK_INDEX, blockIndex.toBytes());
+		}
+		//An index never decoded is copied as is, before its section is overwritten
+		NameIndex nameIndex = (h1 instanceof Folder) ? ((Folder)h1).getNameIndex() : null;
+		if (nameIndex != null){
+			sections.put(SECTION_NAME_INDEX, nameIndex.toBytes());
+		}
+		sections.put(SECTION_FORMAT, format.toBytes());
+		sections.put(SECTION_JOURNAL, ByteBuffer.allocate(8).putLong(newCheckpointId).array());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		//The metadata of the blocks, if it changes, is written at once with the sections, just before them
+		long tailPosition = startingPosition;
+		if (metadata != null){
+			out.write(metadata);
+			tailPosition = startingPosition - metadata.length;
+		}
+		for (byte[] sectionBytes : sections.values()){
+			out.write(sectionBytes);
+		}
+		//The table of sections, so that we can find them back when opening the disk
+		long position = startingPosition;
+		long nameIndexPosition = -1;
+		for (Map.Entry<Integer, byte[]> section : sections.entrySet()){
+			if (section.getKey() == SECTION_NAME_INDEX){
+				nameIndexPosition = position;
+			}
+			out.writeInt(section.getKey());
+			out.writeLong(position);
+			out.writeLong(section.getValue().length);
+			position = position + section.getValue().length;
+		}
+		out.writeInt(sections.size());
+		out.writeInt(TAIL_MAGIC);
+		//We store the size of the data partition
+		out.writeLong(startingPosition);
+		out.close();
+		byte[] tail = baos.toByteArray();
+		//The blocks written by the operation must be on the disk before the sections referring to them
+		syncData();
+		ByteBuffer checkpoint;
+		if (header == null){
+			checkpoint = ByteBuffer.allocate(4+8+8+tail.length);
+			checkpoint.putInt(CHECKPOINT_RECORD).putLong(newCheckpointId);
+		} else {
+			checkpoint = ByteBuffer.allocate(4+8+header.length+8+tail.length);
+			checkpoint.putInt(RESIZE_RECORD).putLong(newCheckpointId).put(header);
+		}
+		checkpoint.putLong(tailPosition).put(tail);
+		getJournal().append(checkpointId, checkpoint.array());
+		getJournal().sync();
+		//Everything is written at once, then we truncate the file, thus deleting any previously stored serialization
+		if (header != null){
+			disk.write(0, header, 0, header.length);
+		}
+		disk.write(tailPosition, tail, 0, tail.length);
+		disk.truncate(tailPosition + tail.length);
+		disk.sync(true);
+		//The folders never browsed will read their children from the new version of the hierarchy, the first section
+		writer.bindCopiedFolders(new HierarchyReader(sectionStorage, startingPosition, hierarchyBytes.length));
+		//As the index of the names, if it still hasn't been decoded
+		if (nameIndex != null && !nameIndex.isLoaded()){
+			nameIndex.bind(sectionStorage, nameIndexPosition, sections.get(SECTION_NAME_INDEX).length);
+		}
+		//All the changes are saved, the journal can be emptied
+		allocator.clearChanges();
+		references.clearChanges();
+		fileIndex.clearChanges();
+		blockIndex.clearChanges();
+		checkpointId = newCheckpointId;
+		checkpointSize = tailPosition + tail.length - startingPosition;
+		getJournal().reset(checkpointId);
+		releaseFreedRuns();
+	}
+	
+	/**
+	 * saves a change of the hierarchy, already applied to it, and the changes of the other sections made since the last save, as a record of the journal.
+	 * If the journal has become bigger than the sections, or if the sections don't have a checkpoint yet, a checkpoint is made instead.
+	 * This is the commit of the operation : the blocks it wrote are synced, then its record, with a single sync for each file whatever the number of blocks.
+	 * If the disk crashes before, the operation is lost as a whole : the blocks it allocated are still free in the saved bitmap,
+	 * and the blocks it freed have been neither allocated again nor erased.
+	 * @param h1 the whole hierarchy, containing the change
+	 * @param change the change
+	 * @throws IOException
+	 */
+	public void saveHierarchyChange(Hierarchy h1, HierarchyChange change) throws IOException {
+		if (allocator == null){
+			loadMetadata();
+		}
+		if (checkpointId == 0 || getJournal().getSize() > Math.max(MIN_JOURNAL_SIZE, checkpointSize)){
+			saveHierarchyToFile(h1);
+			return;
+		}
+		ByteArrayOutputStream changeBytes = new ByteArrayOutputStream();
+		change.write(new DataOutputStream(changeBytes), this);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(changeBytes.size());
+		changeBytes.writeTo(out);
+		allocator.writeChanges(out);
+		references.writeChanges(out);
+		if (getFormat().isDeduplicated()){
+			fileIndex.writeChanges(out);
+			blockIndex.writeChanges(out);
 		}
+		out.close();
+		syncData();
+		getJournal().append(checkpointId, baos.toByteArray());
+		getJournal().sync();
+		releaseFreedRuns();
 	}
 	
 	/**
-	 * loads a Hierarchy from a .dsk file (VFS file on the host system)
+	 * loads a Hierarchy from a .dsk file (VFS file on the host system).
+	 * Only the root is read : the children of each folder are read from the .dsk file the first time they are needed,
+	 * so the time needed to open a disk doesn't depend on the number of elements it contains.
 	 * @return the hierarchy stored in the VFS, as a Hierarchy object
 	 * @throws FileNotFoundException
 	 * @throws IOException 
 	 * @throws ClassNotFoundException 
 	 */
 	public Hierarchy loadHierarchyTreeFromFile() throws FileNotFoundException, IOException, ClassNotFoundException{
-		RandomAccessFile rAF = null;
-		Hierarchy h1 = null;
-		try {
-			rAF= new RandomAccessFile(new File(this.getDiskName()), "r"); 
-			//Reading the size of the data partition
-			rAF.seek(rAF.length()-8);
-			long startingPosition = rAF.readLong();
-			//Setting the position at the beginning of the serialized hierarchy part of the .dsk file
-			rAF.seek(startingPosition);
-			//Length of the portion of the .dsk to read
-			long sizeOfArray = rAF.length() - 8 - startingPosition;
-			//Array to store the byte representation of the serialization
-			byte[] hierarchyBytes = new byte[(int) sizeOfArray];
-			//Reading the bytes into the array
-			rAF.read(hierarchyBytes);
-			//Convert the byte array to a Hierarchy object, and returning it
-			h1 = getHierarchyFromBytes(hierarchyBytes);
-		} finally {
-			if (rAF!=null){rAF.close();}
+		//Reading the beginning of the hierarchy part of the .dsk file, to know how it has been saved
+		long[] section = readSectionTable().get(SECTION_HIERARCHY);
+		byte[] magic = new byte[(int) Math.min(4, section[1])];
+		getDiskFile().read(section[0], magic, 0, magic.length);
+		Hierarchy h1;
+		if (HierarchyReader.isEncoded(magic)){
+			h1 = new HierarchyReader(sectionStorage, section[0], section[1]).read();
+		} else {
+			//Convert the whole serialized hierarchy to a Hierarchy object
+			h1 = getHierarchyFromBytes(readSection(SECTION_HIERARCHY));
+		}
+		//The bitmap of the used blocks, the reference counts and the format are loaded at the same time, with the journal
+		format = loadFormat();
+		List<byte[]> changes = loadMetadata();
+		//The index of the names is attached to the root before the changes are applied, so that the folders keep it up to date.
+		//It is only decoded when a file is searched, with the changes followed until then.
+		long[] nameIndexSection = readSectionTable().get(SECTION_NAME_INDEX);
+		if (nameIndexSection != null && h1 instanceof Folder){
+			((Folder)h1).setNameIndex(new NameIndex(sectionStorage, nameIndexSection[0], (int) nameIndexSection[1]));
+		}
+		//The changes of the hierarchy made since the last checkpoint are applied again, in order
+		for (byte[] changeBytes : changes){
+			HierarchyChange.read(new DataInputStream(new ByteArrayInputStream(changeBytes)), this).apply((Folder) h1);
 		}
 		return h1;	
 	}
 	
-	
-	
-	
-	//-------------------------------------//
-	//READING AND WRITING FILES ON THE DISK//
-	//-------------------------------------//
-	
 	/**
-	 * read the content of a file stored on the VFS disk, using the adress of the first 1kB block and following a linked list.
-	 * the content is written through a buffer to the project folder on the host file system
-	 * @param adress the address of the first block of the file
-	 * @param destination the path where to export the file
-	 * @param size size of the file
-	 * @throws IOException 
-	 * @throws FileNotFoundException
+	 * loads the bitmap, the reference counts and the indexes of the contents from the .dsk file, then replays the changes of the journal on them
+	 * @return the changes of the hierarchy found in the journal, to be applied on the saved hierarchy
+	 * @throws IOException
 	 */
-	public void readFromAdress(long adress, String destination, long size) throws IOException, FileNotFoundException{
-		RandomAccessFile rAF = null;
-		FileOutputStream fOS = null;
-		try {
-			rAF = new RandomAccessFile(new File(this.getDiskName()), "r");
-			File exportFile = new File(destination);
-			fOS =  new FileOutputStream(exportFile); 
-			long position = adress;
-			while (position >= 0){
-				rAF.seek(position*(1024+8+1));
-				//Buffer
-				byte[] store = new byte[1024];
-				//Read from the VFS, write to the host
-				rAF.read(store);
-				fOS.write(store);
-				//get the next position
-				position = rAF.readLong();
+	private List<byte[]> loadMetadata() throws IOException {
+		allocator = loadAllocator();
+		references = loadReferences();
+		boolean deduplicated = getFormat().isDeduplicated();
+		fileIndex = deduplicated ? loadContentIndex(SECTION_FILE_INDEX) : new ContentIndex();
+		blockIndex = deduplicated ? loadContentIndex(SECTION_BLOCK_INDEX) : new ContentIndex();
+		byte[] checkpointBytes = readSection(SECTION_JOURNAL);
+		checkpointId = (checkpointBytes == null) ? 0 : ByteBuffer.wrap(checkpointBytes).getLong();
+		checkpointSize = getDiskFile().size() - sizeOfPartition();
+		List<byte[]> changes = new ArrayList<>();
+		for (byte[] record : getJournal().readRecords(checkpointId)){
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			int changeLength = in.readInt();
+			if (changeLength == CHECKPOINT_RECORD || changeLength == RESIZE_RECORD){
+				//Already written again in the .dsk file when it was opened
+				continue;
+			}
+			byte[] changeBytes = new byte[changeLength];
+			in.readFully(changeBytes);
+			changes.add(changeBytes);
+			allocator.applyChanges(in);
+			references.applyChanges(in);
+			if (deduplicated){
+				fileIndex.applyChanges(in);
+				blockIndex.applyChanges(in);
 			}
-			//Truncating the extra zeroes at the end of the file
-			fOS.getChannel().truncate(size);
-		} finally {
-			if (rAF!=null){rAF.close();}
-			if (fOS!=null){fOS.close();}
 		}
+		return changes;
 	}
 	
 	/**
-	 * write the content of a java.io.File to the VFS disk, by blocks of 1kB
-	 * @param file a File object containing the information about the file to import
-	 * @return the address of the first block of the file on the VFS disk
+	 * forces the blocks written by the operation in progress to the .dsk file, before the operation is saved
 	 * @throws IOException
-	 * @throws FileNotFoundException
 	 */
-	public long writeToDisk(File file) throws IOException, FileNotFoundException {
-		long firstAdress = -1;
-		RandomAccessFile rAF = null;
-		FileInputStream fIS = null;
-		try {
-			rAF = new RandomAccessFile(new File(this.getDiskName()), "rw");
-			//We'll need the size of the partition for safety reason
-			rAF.seek(rAF.length()-8);
-			long diskSize = rAF.readLong();
-			rAF.seek(0);
-			//New input stream
-			fIS = new FileInputStream(file);
-			byte[] readTemp = new byte[1024];
-			//getting the next available block of 1kB
-			long currentAdress=getNextEmptyBlockStartingFrom(0, rAF,diskSize);
-			firstAdress = currentAdress;
-			int i = 0;
-			//If the file is bigger than 1kB
-			if (file.length()>1024){
-				//We loop to write 1kB block at a time
-				while (i*1024 < file.length()){
-					rAF.seek(currentAdress * (1024 + 8 +1));
-					//New buffer
-					readTemp = new byte[1024];
-					//Reading and writing
-					fIS.read(readTemp);
-					rAF.write(readTemp);
-					//Getting the address of the next empty block
-					long nextAdress=getNextEmptyBlockStartingFrom(currentAdress+1, rAF, diskSize);
-					//(just a small position reset because of the method call on previous line (shared RandomAccessFile)
-					rAF.seek(currentAdress * (1024 + 8 +1)+1024);
-					//Storing the address and a "dirty bit"
-					rAF.writeLong(nextAdress);
-					rAF.write(1);
-					currentAdress = nextAdress;
-					i++;
-				}
-			}
-			//Last kilobyte of the file, with special treatment
-			rAF.seek(currentAdress * (1024 + 8+1));
-			readTemp = new byte[1024];
-			fIS.read(readTemp);
-			rAF.write(readTemp);
-			//Convention : EndOfFile -> address = -1
-			rAF.writeLong(-1);
-			rAF.write(1);
-			//The file is now completely written
-		} finally {
-			if (rAF !=null){rAF.close();}
-			if (fIS !=null){fIS.close();}
+	private void syncData() throws IOException {
+		if (mappedStorage != null){
+			mappedStorage.sync();
+		}
+		if (diskFile != null){
+			diskFile.sync(false);
 		}
-		//We return the address of the first block of the file
-		return firstAdress;
 	}
 	
-	
-	
-	//--------------------------//
-	//DELETING AND COPYING FILES//
-	//--------------------------//
-	
 	/**
-	 * removes the file at the specified address, overwriting its blocks with zeroes and marking them as free
-	 * @param address the adress of the first block of the file to delete
+	 * once the operation in progress is saved, makes the blocks it freed available again, and erases them if the reclamation is not deferred
 	 * @throws IOException
-	 * @throws FileNotFoundException
 	 */
-	public void removeFileAtAddress(long address) throws IOException, FileNotFoundException {
-		RandomAccessFile rAF = null;
-		try {
-			rAF = new RandomAccessFile(new File(this.getDiskName()), "rw");
-			long position = address;
-			while (position >= 0){
-				rAF.seek(position*(1024+8+1));
-				//We erase all bytes because when writing a new file over this block, we won't be sure the block will be entirely re-filled
-				byte[] eraser = new byte[1024];
-				rAF.write(eraser);
-				//Getting the next position
-				position = rAF.readLong();
-				//erasing the position (safety measure)
-				rAF.seek(rAF.getFilePointer()-8);
-				rAF.writeLong(-1);
-				//marking the block as empty
-				rAF.write(0);
-			}
-		}  finally {
-			if (rAF!=null){rAF.close();}
+	private void releaseFreedRuns() throws IOException {
+		if (!freedRuns.isEmpty()){
+			if (deferredReclamation){
+				unscrubbed.addAll(freedRuns);
+			} else {
+				eraseRuns(getStorage(), freedRuns);
+			}
+			freedRuns = new ArrayList<>();
 		}
+		getAllocator().releaseFreedBlocks();
 	}
 	
 	/**
-	 * duplicates a file on the disk, and returns the address of the first block of the duplicated file
-	 * @param address the address of the file to copy
-	 * @return the adress of the copy of the file
+	 * if the last record of the journal is a checkpoint, the .dsk file may have been only partially rewritten : 
+	 * its sections (and the header and the metadata of the blocks of a resized disk) are written again from the record, then the journal is emptied
 	 * @throws IOException
-	 * @throws FileNotFoundException
 	 */
-	public long copyFileAtAddress(long address) throws IOException, FileNotFoundException {
-		long firstAddress = -1;
-		RandomAccessFile rAF = null;
-		try {
-			rAF = new RandomAccessFile(new File(this.getDiskName()), "rw");
-			//We'll need the size of the partition for safety reason
-			rAF.seek(rAF.length()-8);
-			long diskSize = rAF.readLong();
-			rAF.seek(0);
-			//Initialization
-			long positionOriginal = address;
-			long positionCopy = getNextEmptyBlockStartingFrom(0, rAF, diskSize);
-			firstAddress = positionCopy;
-			while (positionOriginal >= 0){
-				//New buffer
-				byte[] readTemp = new byte[1024];
-				//Reading the original version of the file
-				rAF.seek(positionOriginal * (1024+8+1));
-				rAF.read(readTemp);
-				//Next block of the original version
-				positionOriginal = rAF.readLong();
-				//Writing to the copy version
-				rAF.seek(positionCopy * (1024+8+1));
-				rAF.write(readTemp);
-				//Next block of the copy version, if we need it (ie positionOriginal != -1)
-				if (positionOriginal >=0){
-					positionCopy = getNextEmptyBlockStartingFrom(positionCopy, rAF, diskSize);
-				} else {
-					positionCopy = -1;
-				}
-				rAF.writeLong(positionCopy);
-				rAF.write(1);
-			}
-			//The file is now completely copied
-		}finally { 
-			if (rAF !=null){rAF.close();}
+	private void recoverCheckpoint() throws IOException {
+		byte[] record = getJournal().readLastRecord();
+		if (record == null || record.length < 4+8+8){
+			return;
 		}
-		//We return the address of the first block of the copied file
+		ByteBuffer in = ByteBuffer.wrap(record);
+		int type = in.getInt();
+		if (type != CHECKPOINT_RECORD && type != RESIZE_RECORD){
+			return;
+		}
+		long newCheckpointId = in.getLong();
+		if (type == RESIZE_RECORD){
+			diskFile.write(0, record, in.position(), DiskGeometry.HEADER_SIZE);
+			in.position(in.position() + DiskGeometry.HEADER_SIZE);
+		}
+		long startingPosition = in.getLong();
+		diskFile.write(startingPosition, record, in.position(), in.remaining());
+		diskFile.truncate(startingPosition + in.remaining());
+		diskFile.sync(true);
+		getJournal().reset(newCheckpointId);
+		getJournal().sync();
+	}
+	
+	/**
+	 * @return the journal of the disk
+	 */
+	private MetadataJournal getJournal() {
+		if (journal == null){
+			journal = new MetadataJournal(getDiskName());
+		}
+		return journal;
+	}
+	
+	/**
+	 * @return a new identifier for a checkpoint, never 0
+	 */
+	private static long newCheckpointId() {
+		Random random = new Random();
+		long id;
+		do {
+			id = random.nextLong();
+		} while (id == 0);
+		return id;
+	}
+	
+	/**
+	 * reads the table of sections stored at the end of the .dsk file.
+	 * For disks created before the table was introduced, the only section is the serialized hierarchy, between the data partition and the last 8 bytes.
+	 * @return a map associating each section tag to its position and its length in the .dsk file
+	 * @throws IOException
+	 */
+	private Map<Integer, long[]> readSectionTable() throws IOException {
+		ChannelStorage disk = getDiskFile();
+		Map<Integer, long[]> sections = new HashMap<>();
+		long length = disk.size();
+		long startingPosition = sizeOfPartition();
+		if (length - startingPosition >= 16){
+			ByteBuffer footer = ByteBuffer.allocate(8);
+			disk.read(length-16, footer.array(), 0, 8);
+			int count = footer.getInt();
+			if (footer.getInt() == TAIL_MAGIC){
+				ByteBuffer table = ByteBuffer.allocate(count*20);
+				disk.read(length - 16 - count*20, table.array(), 0, count*20);
+				for (int i = 0; i < count; i++){
+					int tag = table.getInt();
+					sections.put(tag, new long[]{table.getLong(), table.getLong()});
+				}
+				return sections;
+			}
+		}
+		//Old disk, only the serialized hierarchy
+		sections.put(SECTION_HIERARCHY, new long[]{startingPosition, length - 8 - startingPosition});
+		return sections;
+	}
+	
+	/**
+	 * reads a section stored after the data partition of the .dsk file
+	 * @param tag the tag of the section
+	 * @return the bytes of the section, or null if the disk doesn't contain this section
+	 * @throws IOException
+	 */
+	private byte[] readSection(int tag) throws IOException {
+		long[] section = readSectionTable().get(tag);
+		if (section == null){
+			return null;
+		}
+		byte[] sectionBytes = new byte[(int) section[1]];
+		getDiskFile().read(section[0], sectionBytes, 0, sectionBytes.length);
+		return sectionBytes;
+	}
+	
+	/**
+	 * loads the format of the disk from the .dsk file
+	 * @return the format of the disk, or the default one for disks created before the format was stored
+	 * @throws IOException
+	 */
+	private DiskFormat loadFormat() throws IOException {
+		byte[] formatBytes = readSection(SECTION_FORMAT);
+		if (formatBytes == null){
+			return new DiskFormat();
+		}
+		return DiskFormat.fromBytes(formatBytes);
+	}
+	
+	/**
+	 * loads the reference counts of the shared blocks from the .dsk file
+	 * @return the reference counts, empty for disks created before the files could share blocks
+	 * @throws IOException
+	 */
+	private BlockReferences loadReferences() throws IOException {
+		byte[] referencesBytes = readSection(SECTION_REFERENCES);
+		if (referencesBytes == null){
+			return new BlockReferences();
+		}
+		return BlockReferences.fromBytes(referencesBytes);
+	}
+	
+	/**
+	 * loads an index of the contents of a deduplicated disk from the .dsk file
+	 * @param tag the tag of the section of the index
+	 * @return the index, empty if the disk doesn't contain it
+	 * @throws IOException
+	 */
+	private ContentIndex loadContentIndex(int tag) throws IOException {
+		byte[] indexBytes = readSection(tag);
+		if (indexBytes == null){
+			return new ContentIndex();
+		}
+		return ContentIndex.fromBytes(indexBytes);
+	}
+	
+	/**
+	 * loads the bitmap of the used blocks from the .dsk file. If the disk doesn't contain a bitmap yet, 
+	 * it is rebuilt by reading the dirty byte of every block, in big sequential chunks.
+	 * @return the allocator of the disk
+	 * @throws IOException
+	 */
+	private BlockAllocator loadAllocator() throws IOException {
+		long blockCount = getGeometry().getBlockCount();
+		byte[] bitmapBytes = readSection(SECTION_BITMAP);
+		if (bitmapBytes != null){
+			return BlockAllocator.fromBytes(bitmapBytes, blockCount);
+		}
+		//Only the version 1 disks may lack a bitmap
+		BlockAllocator rebuilt = new BlockAllocator(blockCount);
+		//1024 blocks at a time
+		byte[] chunk = new byte[1024*(1024+8+1)];
+		for (long block = 0; block < blockCount; block += 1024){
+			int blocksInChunk = (int) Math.min(1024, blockCount - block);
+			getDiskFile().read(block*(1024+8+1), chunk, 0, blocksInChunk*(1024+8+1));
+			for (int i = 0; i < blocksInChunk; i++){
+				if (chunk[i*(1024+8+1)+1024+8] != 0){
+					rebuilt.markUsed(block + i);
+				}
+			}
+		}
+		return rebuilt;
+	}
+	
+	
+	
+	
+	//-------------------------------------//
+	//READING AND WRITING FILES ON THE DISK//
+	//-------------------------------------//
+	
+	/**
+	 * read the content of a file stored on the VFS disk, using the adress of the first block and following a linked list.
+	 * the content is written through a buffer to the project folder on the host file system
+	 * @param adress the address of the first block of the file
+	 * @param destination the path where to export the file
+	 * @param size size of the file
+	 * @throws IOException 
+	 * @throws FileNotFoundException
+	 */
+	public void readFromAdress(long adress, String destination, long size) throws IOException, FileNotFoundException{
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_EXTENTS){
+			readExtentsFromAdress(adress, destination, size);
+			return;
+		}
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_BLOCK_MAP){
+			readMappedFromAdress(adress, destination, size);
+			return;
+		}
+		BlockStorage storage = getStorage();
+		if (isTransferPossible()){
+			//The blocks of the list are grouped as runs of contiguous blocks, whose content is transferred directly
+			exportRuns(storage, toRuns(readChain(storage, adress)), destination, size);
+			return;
+		}
+		FileOutputStream fOS = null;
+		try {
+			File exportFile = new File(destination);
+			fOS =  new FileOutputStream(exportFile); 
+			//Buffer, containing the content of a block
+			byte[] store = new byte[getGeometry().getBlockSize()];
+			long position = adress;
+			while (position >= 0){
+				//Read from the VFS, getting the next position, and write to the host
+				long next = readBlock(storage, position, store, 0);
+				fOS.write(store);
+				position = next;
+			}
+			//Truncating the extra zeroes at the end of the file
+			fOS.getChannel().truncate(size);
+		} finally {
+			if (fOS!=null){fOS.close();}
+		}
+	}
+	
+	/**
+	 * write the content of a java.io.File to the VFS disk, block by block
+	 * @param file a File object containing the information about the file to import
+	 * @return the address of the first block of the file on the VFS disk
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	public long writeToDisk(File file) throws IOException, FileNotFoundException {
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_EXTENTS){
+			return writeExtentsToDisk(file);
+		}
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_BLOCK_MAP){
+			return writeMappedToDisk(file);
+		}
+		long firstAdress = -1;
+		BlockStorage storage = getStorage();
+		FileInputStream fIS = null;
+		try {
+			BlockAllocator blocks = getAllocator();
+			int blockSize = getGeometry().getBlockSize();
+			//New input stream
+			fIS = new FileInputStream(file);
+			//Even an empty file uses one block
+			long blockCount = Math.max(1, (file.length() + blockSize - 1) / blockSize);
+			if (isTransferPossible()){
+				//The list is made of a few runs of contiguous blocks, whose content is transferred directly
+				List<Extent> runs = allocateRuns(blockCount);
+				transferToRuns(runs, fIS.getChannel(), true);
+				return runs.get(0).getStart();
+			}
+			byte[] block = new byte[blockSize];
+			//getting the next available block
+			long currentAdress = blocks.allocate();
+			firstAdress = currentAdress;
+			//We loop to write one block at a time
+			for (long i = 0; i < blockCount; i++){
+				fillBlock(fIS, block, 0, blockSize);
+				//Getting the address of the next empty block
+				//Convention : EndOfFile -> address = -1
+				long nextAdress = (i + 1 < blockCount) ? blocks.allocate() : -1;
+				//Storing the block with the address of the next one
+				writeBlocks(storage, currentAdress, 1, block, 0, nextAdress, 1);
+				currentAdress = nextAdress;
+			}
+			//The file is now completely written
+		} finally {
+			if (fIS !=null){fIS.close();}
+		}
+		//We return the address of the first block of the file
+		return firstAdress;
+	}
+	
+	
+	
+	/**
+	 * finds the block of the disk containing a given byte of a file. 
+	 * With a block map, only one block per level of the map is read, whatever the offset. 
+	 * With the other allocation modes, the list of the blocks (or of the extents) has to be browsed from the beginning.
+	 * @param address the address of the file
+	 * @param offset the position of the byte in the file
+	 * @return the address of the block, or -1 if the offset is after the last block of the file
+	 * @throws IOException
+	 */
+	public long getBlockAtOffset(long address, long offset) throws IOException {
+		if (address < 0 || offset < 0){
+			return -1;
+		}
+		BlockStorage storage = getStorage();
+		long index = offset / getGeometry().getBlockSize();
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_BLOCK_MAP){
+			return resolveMappedBlock(storage, address, index);
+		}
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_EXTENTS){
+			for (Extent extent : readExtentIndex(storage, address, null)){
+				if (index < extent.getLength()){
+					return extent.getStart() + index;
+				}
+				index = index - extent.getLength();
+			}
+			return -1;
+		}
+		//Following the linked list
+		long position = address;
+		for (long i = 0; i < index && position >= 0; i++){
+			position = readNext(storage, position);
+		}
+		return position;
+	}
+	
+	
+	
+	//------------------------//
+	//READING A PART OF A FILE//
+	//------------------------//
+	
+	/**
+	 * reads a range of the content of a file, as stored on the disk, directly into a buffer, without exporting the whole file.
+	 * Contiguous blocks are read in a single call when their metadata doesn't separate them.
+	 * @param address the address of the file
+	 * @param size the size of the file
+	 * @param offset the position of the first byte to read in the file
+	 * @param buffer the buffer, filled from its position up to its limit, or up to the end of the file
+	 * @return the number of bytes read, 0 if the offset is after the end of the file
+	 * @throws IOException
+	 */
+	public int read(long address, long size, long offset, ByteBuffer buffer) throws IOException {
+		if (offset < 0 || offset >= size || !buffer.hasRemaining()){
+			return 0;
+		}
+		int length = (int) Math.min(buffer.remaining(), size - offset);
+		DiskGeometry geometry = getGeometry();
+		int blockSize = geometry.getBlockSize();
+		BlockStorage storage = getStorage();
+		long[] blocks = getBlocksInRange(storage, address, offset / blockSize, (offset + length - 1) / blockSize);
+		//We read directly in the array of the buffer if it has one
+		byte[] target = buffer.hasArray() ? buffer.array() : new byte[length];
+		int targetOffset = buffer.hasArray() ? buffer.arrayOffset() + buffer.position() : 0;
+		int done = 0;
+		int i = 0;
+		while (done < length){
+			int inBlock = (int)((offset + done) % blockSize);
+			int runLength = 1;
+			while (!geometry.hasInlineMetadata() && i + runLength < blocks.length && blocks[i + runLength] == blocks[i] + runLength){
+				runLength++;
+			}
+			int chunk = (int) Math.min(length - done, (long) runLength * blockSize - inBlock);
+			storage.read(geometry.blockPosition(blocks[i]) + inBlock, target, targetOffset + done, chunk);
+			done = done + chunk;
+			i = i + runLength;
+		}
+		if (buffer.hasArray()){
+			buffer.position(buffer.position() + length);
+		} else {
+			buffer.put(target, 0, length);
+		}
+		return length;
+	}
+	
+	/**
+	 * returns the addresses of a range of blocks of a file.
+	 * For the files stored as linked lists, the position reached in the list is remembered, so that successive ranges are found without browsing the list again.
+	 * @param storage the data partition of the disk
+	 * @param address the address of the file
+	 * @param first the position in the file of the first block of the range
+	 * @param last the position in the file of the last block of the range
+	 * @return the addresses of the blocks
+	 * @throws IOException if the file doesn't have enough blocks
+	 */
+	private long[] getBlocksInRange(BlockStorage storage, long address, long first, long last) throws IOException {
+		long[] blocks = new long[(int)(last - first + 1)];
+		int mode = getFormat().getAllocationMode();
+		if (mode == DiskFormat.ALLOCATION_BLOCK_MAP){
+			for (int i = 0; i < blocks.length; i++){
+				blocks[i] = resolveMappedBlock(storage, address, first + i);
+			}
+		} else if (mode == DiskFormat.ALLOCATION_EXTENTS){
+			long index = 0;
+			int i = 0;
+			for (Extent extent : readExtentIndex(storage, address, null)){
+				for (long block = Math.max(first, index); block < index + extent.getLength() && block <= last; block++){
+					blocks[i++] = extent.getStart() + block - index;
+				}
+				index = index + extent.getLength();
+			}
+			if (i < blocks.length){
+				blocks[i] = -1;
+			}
+		} else {
+			//We start from the last position reached in the list if possible
+			long index = 0;
+			long position = address;
+			if (cursorAddress == address && cursorIndex <= first){
+				index = cursorIndex;
+				position = cursorBlock;
+			}
+			for (; index < first && position >= 0; index++){
+				position = readNext(storage, position);
+			}
+			for (int i = 0; i < blocks.length; i++){
+				blocks[i] = position;
+				cursorAddress = address;
+				cursorIndex = first + i;
+				cursorBlock = position;
+				if (position < 0){
+					break;
+				}
+				if (i + 1 < blocks.length){
+					position = readNext(storage, position);
+				}
+			}
+		}
+		for (long block : blocks){
+			if (block < 0){
+				throw new IOException("fichier trop court");
+			}
+		}
+		return blocks;
+	}
+	
+	
+	
+	//---------------//
+	//STREAMING FILES//
+	//---------------//
+	
+	/**
+	 * returns a stream reading the content of a file, as stored on the disk, from its beginning
+	 * @param address the address of the file
+	 * @param size the size of the file
+	 * @return the input stream
+	 */
+	public InputStream openStoredStream(final long address, final long size) {
+		return new InputStream() {
+			private long position = 0;
+			
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return (read(single, 0, 1) > 0) ? (single[0] & 0xFF) : -1;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0){
+					return 0;
+				}
+				int read = CoreIO.this.read(address, size, position, ByteBuffer.wrap(b, off, len));
+				if (read == 0){
+					return -1;
+				}
+				position = position + read;
+				return read;
+			}
+			
+			@Override
+			public long skip(long n) {
+				long skipped = Math.max(0, Math.min(n, size - position));
+				position = position + skipped;
+				return skipped;
+			}
+		};
+	}
+	
+	/**
+	 * returns a stream writing a new file on the disk as its content arrives, without any temporary file on the host
+	 * @return the output stream, giving the address and the size of the file once closed
+	 * @throws IOException
+	 */
+	public StoredOutputStream openStoredOutputStream() throws IOException {
+		return new StoredOutputStream();
+	}
+	
+	/**
+	 * An output stream writing a new file directly in the blocks of the disk, with the allocation mode of the disk.
+	 * The content is buffered, and written by groups of blocks allocated as runs of contiguous blocks.
+	 * The file is complete only once the stream is closed : its index (or its inode) is written, and its address and size are known.
+	 * If the stream is never closed, its blocks stay allocated.
+	 * @author Simon Rodriguez
+	 *
+	 */
+	public class StoredOutputStream extends OutputStream {
+		private byte[] buffer;
+		private int filled = 0;
+		private long size = 0;
+		private long address = -1;
+		private boolean closed = false;
+		/**
+		 * the runs of blocks already written, for the files stored as extents or with a block map
+		 */
+		private List<Extent> runs = new ArrayList<>();
+		/**
+		 * for the files stored as linked lists : the first block, and the last block, which is written once the address of the next one is known
+		 */
+		private long firstBlock = -1;
+		private long pendingBlock = -1;
+		private byte[] pending;
+		
+		private StoredOutputStream() throws IOException {
+			super();
+			this.buffer = new byte[getBlocksPerIO()*getGeometry().getBlockSize()];
+		}
+		
+		/**
+		 * @return the address of the file, once the stream is closed
+		 */
+		public long getAddress() {
+			return address;
+		}
+		
+		/**
+		 * @return the number of bytes written
+		 */
+		public long getSize() {
+			return size;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed){
+				throw new IOException("flux fermé");
+			}
+			while (len > 0){
+				int used = Math.min(len, buffer.length - filled);
+				System.arraycopy(b, off, buffer, filled, used);
+				filled = filled + used;
+				off = off + used;
+				len = len - used;
+				size = size + used;
+				if (filled == buffer.length){
+					writeBuffer();
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (closed){
+				return;
+			}
+			closed = true;
+			if (filled > 0){
+				writeBuffer();
+			}
+			BlockStorage storage = getStorage();
+			int mode = getFormat().getAllocationMode();
+			if (mode == DiskFormat.ALLOCATION_EXTENTS){
+				address = writeExtentIndex(storage, runs);
+			} else if (mode == DiskFormat.ALLOCATION_BLOCK_MAP){
+				address = writeBlockMap(storage, toBlocks(runs));
+			} else {
+				//Even an empty file uses one block
+				if (pendingBlock < 0){
+					linkBlock(storage, getAllocator().allocate(), new byte[getGeometry().getBlockSize()], 0);
+				}
+				writeBlocks(storage, pendingBlock, 1, pending, 0, -1, 1);
+				address = firstBlock;
+			}
+		}
+		
+		/**
+		 * writes the content of the buffer in newly allocated blocks
+		 * @throws IOException
+		 */
+		private void writeBuffer() throws IOException {
+			int blockSize = getGeometry().getBlockSize();
+			int count = (filled + blockSize - 1) / blockSize;
+			//The last block is completed with zeroes
+			Arrays.fill(buffer, filled, count*blockSize, (byte) 0);
+			BlockStorage storage = getStorage();
+			List<Extent> allocated = allocateRuns(count);
+			if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_LINKED){
+				long[] blocks = toBlocks(allocated);
+				for (int i = 0; i < count; i++){
+					linkBlock(storage, blocks[i], buffer, i*blockSize);
+				}
+			} else {
+				int done = 0;
+				for (Extent run : allocated){
+					writeBlocks(storage, run.getStart(), (int) run.getLength(), buffer, done*blockSize, -1, 1);
+					done = done + (int) run.getLength();
+					//A run following the previous one extends it
+					Extent last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+					if (last != null && last.getStart() + last.getLength() == run.getStart()){
+						last.setLength(last.getLength() + run.getLength());
+					} else {
+						runs.add(run);
+					}
+				}
+			}
+			filled = 0;
+		}
+		
+		/**
+		 * adds a block to a linked list : the previous block is written, now that we know the address of the next one, and this one is kept
+		 * @param storage the data partition of the disk
+		 * @param block the address of the new block
+		 * @param data the buffer containing the content of the new block
+		 * @param offset the position of the block in the buffer
+		 * @throws IOException
+		 */
+		private void linkBlock(BlockStorage storage, long block, byte[] data, int offset) throws IOException {
+			int blockSize = getGeometry().getBlockSize();
+			if (pendingBlock >= 0){
+				writeBlocks(storage, pendingBlock, 1, pending, 0, block, 1);
+			} else {
+				firstBlock = block;
+				pending = new byte[blockSize];
+			}
+			System.arraycopy(data, offset, pending, 0, blockSize);
+			pendingBlock = block;
+		}
+	}
+	
+	
+	
+	//--------------------------//
+	//DELETING AND COPYING FILES//
+	//--------------------------//
+	
+	/*
+	 * The blocks of a removed file are marked as free in the bitmap, which is enough for them to be allocated again :
+	 * every block is always written entirely (the last block of a file being completed with zeroes), so their old content is never read back.
+	 * By default the content is left in place, and erased later, when scrubFreeBlocks is called.
+	 * With setDeferredReclamation(false), the blocks are overwritten with zeroes as soon as the removal is saved.
+	 * In both cases, the freed blocks are neither erased nor allocated again before the removal is saved in the journal or by a checkpoint,
+	 * so that the saved hierarchy stays valid if the disk crashes meanwhile.
+	 *
+	 * A copy of a file shares the blocks of the original one : a reference is added to the first block of the file (or to its index block, or its inode),
+	 * which stands for all its blocks, so the copy takes a constant time and no space whatever the size of the file.
+	 * The files are never modified in place, writing a file always writes new blocks, so the shared blocks are never overwritten.
+	 * When one of the files is removed, it only drops its reference, and the blocks are freed with the last one.
+	 * duplicateFileAtAddress still makes a copy with its own blocks.
+	 */
+	
+	/**
+	 * removes the file at the specified address, marking its blocks as free
+	 * @param address the adress of the first block of the file to delete
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	public void removeFileAtAddress(long address) throws IOException, FileNotFoundException {
+		//Another file could be written at the same address
+		cursorAddress = -1;
+		//A file shared with copies only loses a reference
+		if (address >= 0 && !getReferences().removeReference(address)){
+			return;
+		}
+		if (getFormat().isDeduplicated()){
+			getFileIndex().remove(address);
+		}
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_EXTENTS){
+			removeExtentsAtAddress(address);
+			return;
+		}
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_BLOCK_MAP){
+			removeMappedAtAddress(address);
+			return;
+		}
+		BlockStorage storage = getStorage();
+		//We follow the whole list before releasing its blocks, they are grouped as runs of contiguous blocks
+		releaseRuns(storage, toRuns(readChain(storage, address)));
+	}
+	
+	/**
+	 * erases the content of the blocks freed by the removals since the disk was opened, if they haven't been allocated again meanwhile.
+	 * This can be done when the disk is idle, a few blocks at a time.
+	 * @param maxBlocks the maximum number of blocks to erase
+	 * @return the number of blocks erased
+	 * @throws IOException
+	 */
+	public long scrubFreeBlocks(long maxBlocks) throws IOException {
+		BlockStorage storage = getStorage();
+		BlockAllocator blocks = getAllocator();
+		long scrubbed = 0;
+		while (!unscrubbed.isEmpty() && scrubbed < maxBlocks){
+			Extent run = unscrubbed.get(unscrubbed.size() - 1);
+			long count = Math.min(run.getLength(), maxBlocks - scrubbed);
+			//The blocks allocated again meanwhile are skipped, the others are erased by runs
+			List<Extent> free = new ArrayList<>();
+			Extent current = null;
+			for (long block = run.getStart(); block < run.getStart() + count; block++){
+				if (blocks.isUsed(block)){
+					current = null;
+				} else if (current != null){
+					current.setLength(current.getLength() + 1);
+				} else {
+					current = new Extent(block, 1);
+					free.add(current);
+				}
+			}
+			eraseRuns(storage, free);
+			scrubbed = scrubbed + count;
+			unscrubbed.remove(unscrubbed.size() - 1);
+			if (count < run.getLength()){
+				unscrubbed.add(new Extent(run.getStart() + count, run.getLength() - count));
+			}
+		}
+		return scrubbed;
+	}
+	
+	/**
+	 * @return the number of blocks freed since the disk was opened whose content hasn't been erased yet
+	 */
+	public long getUnscrubbedBlockCount() {
+		return countBlocks(unscrubbed);
+	}
+	
+	/**
+	 * copies a file on the disk, the copy sharing the blocks of the original file
+	 * @param address the address of the file to copy
+	 * @return the adress of the copy of the file, the same as the original one
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	public long copyFileAtAddress(long address) throws IOException, FileNotFoundException {
+		//A file which has never been written doesn't have any block to share
+		if (address < 0){
+			return -1;
+		}
+		getReferences().addReference(address);
+		return address;
+	}
+	
+	/**
+	 * duplicates a file on the disk, and returns the address of the first block of the duplicated file, which doesn't share any block with the original one
+	 * @param address the address of the file to copy
+	 * @return the adress of the copy of the file
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	public long duplicateFileAtAddress(long address) throws IOException, FileNotFoundException {
+		//A file which has never been written doesn't have any block to copy
+		if (address < 0){
+			return -1;
+		}
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_EXTENTS){
+			return copyExtentsAtAddress(address);
+		}
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_BLOCK_MAP){
+			return copyMappedAtAddress(address);
+		}
+		BlockAllocator blocks = getAllocator();
+		BlockStorage storage = getStorage();
+		//Initialization
+		long positionOriginal = address;
+		long positionCopy = blocks.allocate();
+		long firstAddress = positionCopy;
+		//New buffer
+		byte[] readTemp = new byte[getGeometry().getBlockSize()];
+		while (positionOriginal >= 0){
+			//Reading the original version of the file, and the next block of the original version
+			positionOriginal = readBlock(storage, positionOriginal, readTemp, 0);
+			//Next block of the copy version, if we need it (ie positionOriginal != -1)
+			long nextCopy = (positionOriginal >= 0) ? blocks.allocate() : -1;
+			//Writing to the copy version
+			writeBlocks(storage, positionCopy, 1, readTemp, 0, nextCopy, 1);
+			positionCopy = nextCopy;
+		}
+		//The file is now completely copied
+		//We return the address of the first block of the copied file
 		return firstAddress;
 	}
 	
 	
 	
 	
+	//--------------------------------//
+	//FILES STORED AS LISTS OF EXTENTS//
+	//--------------------------------//
+	
+	/*
+	 * With the ALLOCATION_EXTENTS format, the address of a file is the address of its index block.
+	 * An index block contains a magic number, the number of extents it describes, the address of the next index block (or -1), 
+	 * and then the first and the number of blocks of each extent. 
+	 * The blocks keep their metadata (next address, always -1), so that an extent of n blocks is read or written 
+	 * in a single call.
+	 */
+	
+	/**
+	 * write the content of a java.io.File to the VFS disk, as a list of extents
+	 * @param file a File object containing the information about the file to import
+	 * @return the address of the index block of the file on the VFS disk
+	 * @throws IOException
+	 */
+	private long writeExtentsToDisk(File file) throws IOException {
+		BlockStorage storage = getStorage();
+		int blockSize = getGeometry().getBlockSize();
+		FileInputStream fIS = null;
+		try {
+			fIS = new FileInputStream(file);
+			if (isBlockDeduplication()){
+				return writeExtentIndex(storage, toRuns(writeDeduplicatedBlocks(storage, fIS, (file.length() + blockSize - 1) / blockSize)));
+			}
+			//We allocate all the blocks we need, as a few runs of contiguous blocks
+			List<Extent> extents = allocateRuns((file.length() + blockSize - 1) / blockSize);
+			importRuns(storage, extents, fIS);
+			return writeExtentIndex(storage, extents);
+		} finally {
+			if (fIS !=null){fIS.close();}
+		}
+	}
+	
+	/**
+	 * read the content of a file stored as a list of extents, and write it on the host file system
+	 * @param address the address of the index block of the file
+	 * @param destination the path where to export the file
+	 * @param size size of the file
+	 * @throws IOException
+	 */
+	private void readExtentsFromAdress(long address, String destination, long size) throws IOException {
+		BlockStorage storage = getStorage();
+		exportRuns(storage, readExtentIndex(storage, address, null), destination, size);
+	}
+	
+	/**
+	 * removes a file stored as a list of extents, overwriting its blocks with zeroes and marking them as free
+	 * @param address the address of the index block of the file
+	 * @throws IOException
+	 */
+	private void removeExtentsAtAddress(long address) throws IOException {
+		if (address < 0){
+			return;
+		}
+		BlockStorage storage = getStorage();
+		List<Long> indexBlocks = new ArrayList<>();
+		List<Extent> extents = readExtentIndex(storage, address, indexBlocks);
+		for (Long indexBlock : indexBlocks){
+			extents.add(new Extent(indexBlock, 1));
+		}
+		releaseRuns(storage, extents);
+	}
+	
+	/**
+	 * duplicates a file stored as a list of extents
+	 * @param address the address of the index block of the file to copy
+	 * @return the address of the index block of the copy
+	 * @throws IOException
+	 */
+	private long copyExtentsAtAddress(long address) throws IOException {
+		BlockStorage storage = getStorage();
+		List<Extent> originals = readExtentIndex(storage, address, null);
+		List<Extent> copies = allocateRuns(countBlocks(originals));
+		copyRuns(storage, originals, copies);
+		return writeExtentIndex(storage, copies);
+	}
+	
+	/**
+	 * writes the list of extents of a file in newly allocated index blocks
+	 * @param storage the data partition of the disk
+	 * @param extents the extents of the file
+	 * @return the address of the first index block
+	 * @throws IOException
+	 */
+	private long writeExtentIndex(BlockStorage storage, List<Extent> extents) throws IOException {
+		BlockAllocator blocks = getAllocator();
+		int blockSize = getGeometry().getBlockSize();
+		//16 bytes of header, then 16 bytes per extent
+		int extentsPerIndex = (blockSize-16)/16;
+		int indexCount = Math.max(1, (extents.size() + extentsPerIndex - 1) / extentsPerIndex);
+		long[] indexBlocks = new long[indexCount];
+		for (int i = 0; i < indexCount; i++){
+			indexBlocks[i] = blocks.allocate();
+		}
+		for (int i = 0; i < indexCount; i++){
+			ByteBuffer index = ByteBuffer.allocate(blockSize);
+			int count = Math.min(extentsPerIndex, extents.size() - i*extentsPerIndex);
+			index.putInt(EXTENT_MAGIC);
+			index.putInt(count);
+			index.putLong(i + 1 < indexCount ? indexBlocks[i+1] : -1);
+			for (int j = 0; j < count; j++){
+				Extent extent = extents.get(i*extentsPerIndex + j);
+				index.putLong(extent.getStart());
+				index.putLong(extent.getLength());
+			}
+			writeBlocks(storage, indexBlocks[i], 1, index.array(), 0, -1, 1);
+		}
+		return indexBlocks[0];
+	}
+	
+	/**
+	 * reads the list of extents of a file from its index blocks
+	 * @param storage the data partition of the disk
+	 * @param address the address of the first index block, or -1 for a file which has never been written
+	 * @param indexBlocks if not null, the addresses of the index blocks are added to this list
+	 * @return the extents of the file
+	 * @throws IOException
+	 */
+	private List<Extent> readExtentIndex(BlockStorage storage, long address, List<Long> indexBlocks) throws IOException {
+		List<Extent> extents = new ArrayList<>();
+		byte[] indexBytes = new byte[getGeometry().getBlockSize()];
+		while (address >= 0){
+			readBlocks(storage, address, 1, indexBytes, 0);
+			ByteBuffer index = ByteBuffer.wrap(indexBytes);
+			if (index.getInt() != EXTENT_MAGIC){
+				throw new IOException("bloc d'index invalide");
+			}
+			if (indexBlocks != null){
+				indexBlocks.add(address);
+			}
+			int count = index.getInt();
+			address = index.getLong();
+			for (int i = 0; i < count; i++){
+				extents.add(new Extent(index.getLong(), index.getLong()));
+			}
+		}
+		return extents;
+	}
+	
+	
+	
+	
+	//-----------------------------//
+	//FILES STORED WITH A BLOCK MAP//
+	//-----------------------------//
+	
+	/*
+	 * With the ALLOCATION_BLOCK_MAP format, the address of a file is the address of its inode.
+	 * An inode contains a magic number, its depth, the number of blocks of the file, and then as many addresses as the block can hold.
+	 * With a depth of 1, these addresses are the ones of the blocks of the file, in order. With a bigger depth, they are the addresses 
+	 * of map blocks, each one filled with the addresses of the blocks (or of the map blocks) of the next level.
+	 * The block containing the byte n of a file is thus found by reading at most one block per level, whatever the size of the file.
+	 */
+	
+	/**
+	 * write the content of a java.io.File to the VFS disk, with a block map
+	 * @param file a File object containing the information about the file to import
+	 * @return the address of the inode of the file on the VFS disk
+	 * @throws IOException
+	 */
+	private long writeMappedToDisk(File file) throws IOException {
+		BlockStorage storage = getStorage();
+		int blockSize = getGeometry().getBlockSize();
+		FileInputStream fIS = null;
+		try {
+			fIS = new FileInputStream(file);
+			if (isBlockDeduplication()){
+				return writeBlockMap(storage, writeDeduplicatedBlocks(storage, fIS, (file.length() + blockSize - 1) / blockSize));
+			}
+			//The blocks of the file are still allocated as runs of contiguous blocks, to read and write them in a few calls
+			List<Extent> runs = allocateRuns((file.length() + blockSize - 1) / blockSize);
+			importRuns(storage, runs, fIS);
+			return writeBlockMap(storage, toBlocks(runs));
+		} finally {
+			if (fIS !=null){fIS.close();}
+		}
+	}
+	
+	/**
+	 * read the content of a file stored with a block map, and write it on the host file system
+	 * @param address the address of the inode of the file
+	 * @param destination the path where to export the file
+	 * @param size size of the file
+	 * @throws IOException
+	 */
+	private void readMappedFromAdress(long address, String destination, long size) throws IOException {
+		BlockStorage storage = getStorage();
+		exportRuns(storage, toRuns(readBlockMap(storage, address, null)), destination, size);
+	}
+	
+	/**
+	 * removes a file stored with a block map, overwriting its blocks, its map blocks and its inode with zeroes and marking them as free
+	 * @param address the address of the inode of the file
+	 * @throws IOException
+	 */
+	private void removeMappedAtAddress(long address) throws IOException {
+		if (address < 0){
+			return;
+		}
+		BlockStorage storage = getStorage();
+		List<Long> mapBlocks = new ArrayList<>();
+		List<Extent> runs = toRuns(readBlockMap(storage, address, mapBlocks));
+		for (Long mapBlock : mapBlocks){
+			runs.add(new Extent(mapBlock, 1));
+		}
+		releaseRuns(storage, runs);
+	}
+	
+	/**
+	 * duplicates a file stored with a block map
+	 * @param address the address of the inode of the file to copy
+	 * @return the address of the inode of the copy
+	 * @throws IOException
+	 */
+	private long copyMappedAtAddress(long address) throws IOException {
+		BlockStorage storage = getStorage();
+		List<Extent> originals = toRuns(readBlockMap(storage, address, null));
+		List<Extent> copies = allocateRuns(countBlocks(originals));
+		copyRuns(storage, originals, copies);
+		return writeBlockMap(storage, toBlocks(copies));
+	}
+	
+	/**
+	 * writes the block map of a file in newly allocated map blocks and inode
+	 * @param storage the data partition of the disk
+	 * @param blocks the addresses of the blocks of the file, in order
+	 * @return the address of the inode
+	 * @throws IOException
+	 */
+	private long writeBlockMap(BlockStorage storage, long[] blocks) throws IOException {
+		int blockSize = getGeometry().getBlockSize();
+		int perInode = (blockSize - 16) / 8;
+		int perMapBlock = blockSize / 8;
+		//We build the map from the bottom, until the addresses of the last level fit in the inode
+		long[] level = blocks;
+		int depth = 1;
+		while (level.length > perInode){
+			long[] upperLevel = new long[(level.length + perMapBlock - 1) / perMapBlock];
+			for (int i = 0; i < upperLevel.length; i++){
+				ByteBuffer map = ByteBuffer.allocate(blockSize);
+				for (int j = i*perMapBlock; j < Math.min(level.length, (i+1)*perMapBlock); j++){
+					map.putLong(level[j]);
+				}
+				upperLevel[i] = getAllocator().allocate();
+				writeBlocks(storage, upperLevel[i], 1, map.array(), 0, -1, 1);
+			}
+			level = upperLevel;
+			depth++;
+		}
+		ByteBuffer inode = ByteBuffer.allocate(blockSize);
+		inode.putInt(INODE_MAGIC);
+		inode.putInt(depth);
+		inode.putLong(blocks.length);
+		for (long address : level){
+			inode.putLong(address);
+		}
+		long inodeAddress = getAllocator().allocate();
+		writeBlocks(storage, inodeAddress, 1, inode.array(), 0, -1, 1);
+		return inodeAddress;
+	}
+	
+	/**
+	 * reads the whole block map of a file
+	 * @param storage the data partition of the disk
+	 * @param address the address of the inode, or -1 for a file which has never been written
+	 * @param mapBlocks if not null, the addresses of the inode and of the map blocks are added to this list
+	 * @return the addresses of the blocks of the file, in order
+	 * @throws IOException
+	 */
+	private long[] readBlockMap(BlockStorage storage, long address, List<Long> mapBlocks) throws IOException {
+		if (address < 0){
+			return new long[0];
+		}
+		int blockSize = getGeometry().getBlockSize();
+		ByteBuffer inode = readInode(storage, address);
+		int depth = inode.getInt();
+		long blockCount = inode.getLong();
+		if (mapBlocks != null){
+			mapBlocks.add(address);
+		}
+		//Number of blocks described by each address of the inode
+		long span = 1;
+		for (int i = 1; i < depth; i++){
+			span = span * (blockSize / 8);
+		}
+		long[] level = new long[(int)((blockCount + span - 1) / span)];
+		for (int i = 0; i < level.length; i++){
+			level[i] = inode.getLong();
+		}
+		//We go down one level at a time, reading all its map blocks
+		byte[] mapBytes = new byte[blockSize];
+		for (int d = depth; d > 1; d--){
+			span = span / (blockSize / 8);
+			long[] lowerLevel = new long[(int)((blockCount + span - 1) / span)];
+			for (int i = 0; i < level.length; i++){
+				readBlocks(storage, level[i], 1, mapBytes, 0);
+				if (mapBlocks != null){
+					mapBlocks.add(level[i]);
+				}
+				ByteBuffer map = ByteBuffer.wrap(mapBytes);
+				for (int j = i*(blockSize/8); j < Math.min(lowerLevel.length, (i+1)*(blockSize/8)); j++){
+					lowerLevel[j] = map.getLong();
+				}
+			}
+			level = lowerLevel;
+		}
+		return level;
+	}
+	
+	/**
+	 * finds the block of a file stored with a block map containing its n-th block, reading one block per level of the map
+	 * @param storage the data partition of the disk
+	 * @param address the address of the inode
+	 * @param index the position of the block in the file
+	 * @return the address of the block, or -1 if the file is shorter
+	 * @throws IOException
+	 */
+	private long resolveMappedBlock(BlockStorage storage, long address, long index) throws IOException {
+		int perMapBlock = getGeometry().getBlockSize() / 8;
+		ByteBuffer inode = readInode(storage, address);
+		int depth = inode.getInt();
+		long blockCount = inode.getLong();
+		if (index < 0 || index >= blockCount){
+			return -1;
+		}
+		long span = 1;
+		for (int i = 1; i < depth; i++){
+			span = span * perMapBlock;
+		}
+		long block = inode.getLong(16 + (int)(index / span) * 8);
+		byte[] pointer = new byte[8];
+		for (int d = depth; d > 1; d--){
+			index = index % span;
+			span = span / perMapBlock;
+			//Only the address we need is read in the map block
+			storage.read(getGeometry().blockPosition(block) + (index / span) * 8, pointer, 0, 8);
+			block = ByteBuffer.wrap(pointer).getLong();
+		}
+		return block;
+	}
+	
+	/**
+	 * reads the inode of a file, and checks its magic number
+	 * @param storage the data partition of the disk
+	 * @param address the address of the inode
+	 * @return the content of the inode, positioned after the magic number
+	 * @throws IOException
+	 */
+	private ByteBuffer readInode(BlockStorage storage, long address) throws IOException {
+		byte[] inodeBytes = new byte[getGeometry().getBlockSize()];
+		readBlocks(storage, address, 1, inodeBytes, 0);
+		ByteBuffer inode = ByteBuffer.wrap(inodeBytes);
+		if (inode.getInt() != INODE_MAGIC){
+			throw new IOException("inode invalide");
+		}
+		return inode;
+	}
+		
+	
+	
+	
+	//---------------------//
+	//DEDUPLICATED CONTENTS//
+	//---------------------//
+	
+	/*
+	 * On a deduplicated disk, the hashes of the stored contents are kept in two indexes, saved with the hierarchy.
+	 * A file identical to a file already stored (same content before compression) is a copy of it, sharing all its blocks.
+	 * For the uncompressed files stored as extents or with a block map, each block identical to a block already stored
+	 * is shared too, with a reference added to the block : only the new blocks are written.
+	 * The linked lists can't share their blocks, since each block stores the address of the next one.
+	 */
+	
+	/**
+	 * @return the index of the files of the disk, by hash of their content
+	 * @throws IOException
+	 */
+	private ContentIndex getFileIndex() throws IOException {
+		if (fileIndex == null){
+			loadMetadata();
+		}
+		return fileIndex;
+	}
+	
+	/**
+	 * @return the index of the blocks of the disk, by hash of their content
+	 * @throws IOException
+	 */
+	private ContentIndex getBlockIndex() throws IOException {
+		if (blockIndex == null){
+			loadMetadata();
+		}
+		return blockIndex;
+	}
+	
+	/**
+	 * looks for a file already stored on the disk with the same content, and shares it
+	 * @param hash the hash of the content of the file
+	 * @return the address and the size of the new reference to the stored file, or null if there is none
+	 * @throws IOException
+	 */
+	public long[] shareStoredFile(byte[] hash) throws IOException {
+		long[] stored = getFileIndex().find(hash);
+		if (stored == null){
+			return null;
+		}
+		return new long[]{copyFileAtAddress(stored[0]), stored[1]};
+	}
+	
+	/**
+	 * adds a file written on the disk to the index of the files, so that it can be shared by the next identical files
+	 * @param hash the hash of the content of the file
+	 * @param address the address of the file
+	 * @param size the size of the file as stored on the disk
+	 * @throws IOException
+	 */
+	public void indexStoredFile(byte[] hash, long address, long size) throws IOException {
+		if (address >= 0){
+			getFileIndex().put(hash, address, size);
+		}
+	}
+	
+	/**
+	 * @return true if the blocks of the imported files are deduplicated
+	 * @throws IOException
+	 */
+	private boolean isBlockDeduplication() throws IOException {
+		DiskFormat format = getFormat();
+		return format.isDeduplicated() && !format.isCompressed() && format.getAllocationMode() != DiskFormat.ALLOCATION_LINKED;
+	}
+	
+	/**
+	 * writes the content of an input stream in the blocks of the disk, sharing the blocks already stored with the same content
+	 * @param storage the data partition of the disk
+	 * @param in the input stream
+	 * @param blockCount the number of blocks of the content
+	 * @return the addresses of the blocks of the content
+	 * @throws IOException
+	 */
+	private long[] writeDeduplicatedBlocks(BlockStorage storage, InputStream in, long blockCount) throws IOException {
+		int blockSize = getGeometry().getBlockSize();
+		int blocksPerIO = getBlocksPerIO();
+		byte[] buffer = new byte[blocksPerIO*blockSize];
+		boolean[] written = new boolean[blocksPerIO];
+		long[] blocks = new long[(int) blockCount];
+		MessageDigest digest = ContentIndex.newDigest();
+		for (int first = 0; first < blocks.length; first += blocksPerIO){
+			int count = Math.min(blocksPerIO, blocks.length - first);
+			for (int i = 0; i < count; i++){
+				fillBlock(in, buffer, i*blockSize, blockSize);
+				byte[] hash = ContentIndex.hash(digest, buffer, i*blockSize, blockSize);
+				long[] stored = getBlockIndex().find(hash);
+				written[i] = (stored == null);
+				if (stored != null){
+					getReferences().addReference(stored[0]);
+					blocks[first + i] = stored[0];
+				} else {
+					//The next identical blocks, even in this group, will share this one
+					blocks[first + i] = getAllocator().allocate();
+					getBlockIndex().put(hash, blocks[first + i], blockSize);
+				}
+			}
+			//The new blocks are written by runs of contiguous blocks
+			int i = 0;
+			while (i < count){
+				int end = i + 1;
+				if (written[i]){
+					while (end < count && written[end] && blocks[first + end] == blocks[first + end - 1] + 1){
+						end++;
+					}
+					writeBlocks(storage, blocks[first + i], end - i, buffer, i*blockSize, -1, 1);
+				}
+				i = end;
+			}
+		}
+		return blocks;
+	}
+	
+	
+	
+	//-----------------------------------//
+	//RUNS OF CONTIGUOUS BLOCKS OF A FILE//
+	//-----------------------------------//
+	
+	/**
+	 * allocates blocks as a few runs of contiguous blocks
+	 * @param count the number of blocks to allocate
+	 * @return the allocated runs
+	 * @throws IOException if there are not enough free blocks
+	 */
+	private List<Extent> allocateRuns(long count) throws IOException {
+		List<Extent> runs = new ArrayList<>();
+		while (count > 0){
+			Extent run = getAllocator().allocateRun(count);
+			runs.add(run);
+			count = count - run.getLength();
+		}
+		return runs;
+	}
+	
+	/**
+	 * fills runs of blocks with the content of an input stream, completing the last block with zeroes
+	 * @param storage the data partition of the disk
+	 * @param runs the runs of blocks
+	 * @param in the input stream
+	 * @throws IOException
+	 */
+	private void writeRuns(BlockStorage storage, List<Extent> runs, InputStream in) throws IOException {
+		int blockSize = getGeometry().getBlockSize();
+		int blocksPerIO = getBlocksPerIO();
+		byte[] buffer = new byte[blocksPerIO*blockSize];
+		for (Extent run : runs){
+			for (long done = 0; done < run.getLength(); done += blocksPerIO){
+				int count = (int) Math.min(blocksPerIO, run.getLength() - done);
+				//We fill the buffer with the content of the file
+				for (int i = 0; i < count; i++){
+					fillBlock(in, buffer, i*blockSize, blockSize);
+				}
+				writeBlocks(storage, run.getStart() + done, count, buffer, 0, -1, 1);
+			}
+		}
+	}
+	
+	/**
+	 * writes the content of runs of blocks to an output stream
+	 * @param storage the data partition of the disk
+	 * @param runs the runs of blocks
+	 * @param out the output stream
+	 * @throws IOException
+	 */
+	private void readRuns(BlockStorage storage, List<Extent> runs, OutputStream out) throws IOException {
+		int blockSize = getGeometry().getBlockSize();
+		int blocksPerIO = getBlocksPerIO();
+		byte[] buffer = new byte[blocksPerIO*blockSize];
+		for (Extent run : runs){
+			for (long done = 0; done < run.getLength(); done += blocksPerIO){
+				int count = (int) Math.min(blocksPerIO, run.getLength() - done);
+				readBlocks(storage, run.getStart() + done, count, buffer, 0);
+				out.write(buffer, 0, count*blockSize);
+			}
+		}
+	}
+	
+	/**
+	 * marks the runs of blocks of a removed file as free, overwriting them with zeroes at once or later depending on the reclamation mode
+	 * @param storage the data partition of the disk
+	 * @param runs the runs of blocks
+	 * @throws IOException
+	 */
+	private void releaseRuns(BlockStorage storage, List<Extent> runs) throws IOException {
+		if (getReferences().getSharedCount() > 0){
+			//The blocks shared with other files (deduplicated blocks) only lose a reference
+			List<Long> released = new ArrayList<>();
+			for (long block : toBlocks(runs)){
+				if (getReferences().removeReference(block)){
+					released.add(block);
+				}
+			}
+			long[] releasedBlocks = new long[released.size()];
+			for (int i = 0; i < releasedBlocks.length; i++){
+				releasedBlocks[i] = released.get(i);
+			}
+			runs = toRuns(releasedBlocks);
+		}
+		if (getFormat().isDeduplicated()){
+			for (Extent run : runs){
+				for (long block = run.getStart(); block < run.getStart() + run.getLength(); block++){
+					getBlockIndex().remove(block);
+				}
+			}
+		}
+		freeRuns(runs);
+	}
+	
+	/**
+	 * marks runs of blocks as free. They are erased or left to the scrubbing once the operation is saved, until then the saved hierarchy may still use them.
+	 * @param runs the runs of blocks
+	 * @throws IOException
+	 */
+	private void freeRuns(List<Extent> runs) throws IOException {
+		BlockAllocator blocks = getAllocator();
+		for (Extent run : runs){
+			for (long block = run.getStart(); block < run.getStart() + run.getLength(); block++){
+				blocks.free(block);
+			}
+			freedRuns.add(run);
+		}
+	}
+	
+	/**
+	 * overwrites runs of free blocks with zeroes
+	 * @param storage the data partition of the disk
+	 * @param runs the runs of blocks
+	 * @throws IOException
+	 */
+	private void eraseRuns(BlockStorage storage, List<Extent> runs) throws IOException {
+		int blocksPerIO = getBlocksPerIO();
+		//An empty buffer, written with the metadata of a free block
+		byte[] eraser = new byte[blocksPerIO*getGeometry().getBlockSize()];
+		for (Extent run : runs){
+			for (long done = 0; done < run.getLength(); done += blocksPerIO){
+				int count = (int) Math.min(blocksPerIO, run.getLength() - done);
+				writeBlocks(storage, run.getStart() + done, count, eraser, 0, -1, 0);
+			}
+		}
+	}
+	
+	/**
+	 * copies the content of runs of blocks to other runs of blocks, containing the same number of blocks
+	 * @param storage the data partition of the disk
+	 * @param originals the runs to copy
+	 * @param copies the runs where the blocks are copied
+	 * @throws IOException
+	 */
+	private void copyRuns(BlockStorage storage, List<Extent> originals, List<Extent> copies) throws IOException {
+		int blocksPerIO = getBlocksPerIO();
+		//The runs of the copy don't have the same lengths as the original ones, so we move forward in both lists at the same time
+		byte[] buffer = new byte[blocksPerIO*getGeometry().getBlockSize()];
+		int originalIndex = 0, copyIndex = 0;
+		long originalDone = 0, copyDone = 0;
+		while (originalIndex < originals.size()){
+			Extent original = originals.get(originalIndex);
+			Extent copy = copies.get(copyIndex);
+			int count = (int) Math.min(blocksPerIO, Math.min(original.getLength() - originalDone, copy.getLength() - copyDone));
+			readBlocks(storage, original.getStart() + originalDone, count, buffer, 0);
+			writeBlocks(storage, copy.getStart() + copyDone, count, buffer, 0, -1, 1);
+			originalDone = originalDone + count;
+			copyDone = copyDone + count;
+			if (originalDone == original.getLength()){ originalIndex++; originalDone = 0;}
+			if (copyDone == copy.getLength()){ copyIndex++; copyDone = 0;}
+		}
+	}
+	
+	/**
+	 * @param runs runs of blocks
+	 * @return the total number of blocks of the runs
+	 */
+	private static long countBlocks(List<Extent> runs) {
+		long count = 0;
+		for (Extent run : runs){
+			count = count + run.getLength();
+		}
+		return count;
+	}
+	
+	/**
+	 * @param runs runs of blocks
+	 * @return the addresses of all the blocks of the runs, in order
+	 */
+	private static long[] toBlocks(List<Extent> runs) {
+		long[] blocks = new long[(int) countBlocks(runs)];
+		int i = 0;
+		for (Extent run : runs){
+			for (long block = run.getStart(); block < run.getStart() + run.getLength(); block++){
+				blocks[i++] = block;
+			}
+		}
+		return blocks;
+	}
+	
+	/**
+	 * @param blocks addresses of blocks
+	 * @return the same blocks, grouped as runs of contiguous blocks
+	 */
+	private static List<Extent> toRuns(long[] blocks) {
+		List<Extent> runs = new ArrayList<>();
+		Extent run = null;
+		for (long block : blocks){
+			if (run != null && block == run.getStart() + run.getLength()){
+				run.setLength(run.getLength() + 1);
+			} else {
+				run = new Extent(block, 1);
+				runs.add(run);
+			}
+		}
+		return runs;
+	}
+	
+	/**
+	 * fills runs of blocks with the content of a host file, marking them as the blocks of a file stored as extents or with a block map
+	 * @param storage the data partition of the disk
+	 * @param runs the runs of blocks
+	 * @param in the input stream of the host file, at its beginning
+	 * @throws IOException
+	 */
+	private void importRuns(BlockStorage storage, List<Extent> runs, FileInputStream in) throws IOException {
+		if (isTransferPossible()){
+			transferToRuns(runs, in.getChannel(), false);
+		} else {
+			writeRuns(storage, runs, in);
+		}
+	}
+	
+	/**
+	 * writes the content of runs of blocks to a host file
+	 * @param storage the data partition of the disk
+	 * @param runs the runs of blocks
+	 * @param destination the path of the host file
+	 * @param size the size of the file, the extra zeroes of the last block being left out
+	 * @throws IOException
+	 */
+	private void exportRuns(BlockStorage storage, List<Extent> runs, String destination, long size) throws IOException {
+		FileOutputStream fOS = null;
+		try {
+			fOS =  new FileOutputStream(new File(destination));
+			if (isTransferPossible()){
+				transferFromRuns(runs, size, fOS.getChannel());
+			} else {
+				readRuns(storage, runs, fOS);
+			}
+			//Truncating the extra zeroes at the end of the file
+			fOS.getChannel().truncate(size);
+		} finally {
+			if (fOS!=null){fOS.close();}
+		}
+	}
+	
+	
+	
+	
+	//-----------------------//
+	//DEFRAGMENTING THE FILES//
+	//-----------------------//
+	
+	/*
+	 * A file is fragmented when its blocks are not contiguous : reading it from the beginning then jumps across the data partition.
+	 * relocateFile copies all the blocks of a file to the first run of free blocks long enough, and frees the previous ones,
+	 * which also packs the files towards the beginning of the partition. The index blocks, the map blocks or the inode are written again.
+	 * The previous blocks can't be allocated again before the new address of the file is saved, so a crash leaves the file intact.
+	 */
+	
+	/**
+	 * returns the runs of contiguous blocks containing the content of a file, without its index blocks, map blocks or inode
+	 * @param address the address of the file
+	 * @return the runs, in the order of the content
+	 * @throws IOException
+	 */
+	public List<Extent> getRunsOfFile(long address) throws IOException {
+		if (address < 0){
+			return new ArrayList<>();
+		}
+		BlockStorage storage = getStorage();
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_EXTENTS){
+			//Two successive extents may be contiguous
+			return toRuns(toBlocks(readExtentIndex(storage, address, null)));
+		}
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_BLOCK_MAP){
+			return toRuns(readBlockMap(storage, address, null));
+		}
+		return toRuns(readChain(storage, address));
+	}
+	
+	/**
+	 * moves the content of a file to a single run of contiguous blocks. The copies sharing the file must then all use its new address.
+	 * A file is not moved if some of its blocks are shared with other files by the deduplication, or if there is no run of free blocks long enough.
+	 * @param address the address of the file
+	 * @return the new address of the file, or the same one if it hasn't been moved
+	 * @throws IOException
+	 */
+	public long relocateFile(long address) throws IOException {
+		if (address < 0){
+			return address;
+		}
+		List<Long> indexBlocks = new ArrayList<>();
+		long[] blocks = readBlocksOfFile(address, indexBlocks);
+		if (blocks.length == 0){
+			return address;
+		}
+		if (isBlockDeduplication()){
+			for (long block : blocks){
+				if (getReferences().getReferenceCount(block) > 1){
+					return address;
+				}
+			}
+		}
+		long start = getAllocator().allocateContiguous(blocks.length);
+		if (start < 0){
+			return address;
+		}
+		long[] newBlocks = new long[blocks.length];
+		for (int i = 0; i < blocks.length; i++){
+			newBlocks[i] = start + i;
+		}
+		return moveFile(address, blocks, indexBlocks, newBlocks);
+	}
+	
+	/**
+	 * reads the addresses of the blocks of a file
+	 * @param address the address of the file
+	 * @param indexBlocks the list where the addresses of the index blocks, map blocks or inode of the file are added
+	 * @return the blocks containing the content of the file, in order
+	 * @throws IOException
+	 */
+	private long[] readBlocksOfFile(long address, List<Long> indexBlocks) throws IOException {
+		BlockStorage storage = getStorage();
+		int mode = getFormat().getAllocationMode();
+		if (mode == DiskFormat.ALLOCATION_EXTENTS){
+			return toBlocks(readExtentIndex(storage, address, indexBlocks));
+		}
+		if (mode == DiskFormat.ALLOCATION_BLOCK_MAP){
+			return readBlockMap(storage, address, indexBlocks);
+		}
+		return readChain(storage, address);
+	}
+	
+	/**
+	 * copies the blocks of a file to their new addresses, writes its index blocks, its block map or its inode again, then frees its previous blocks.
+	 * The blocks which keep their address are not copied, but all the blocks of a file stored as a linked list must move,
+	 * since the previous version of the list must stay intact until the new address of the file is saved.
+	 * @param address the address of the file
+	 * @param blocks the blocks containing the content of the file
+	 * @param indexBlocks the index blocks, map blocks or inode of the file
+	 * @param newBlocks the new blocks of the content, already allocated
+	 * @return the new address of the file
+	 * @throws IOException
+	 */
+	private long moveFile(long address, long[] blocks, List<Long> indexBlocks, long[] newBlocks) throws IOException {
+		BlockStorage storage = getStorage();
+		int mode = getFormat().getAllocationMode();
+		List<Long> moved = new ArrayList<>();
+		List<Long> destinations = new ArrayList<>();
+		for (int i = 0; i < blocks.length; i++){
+			if (blocks[i] != newBlocks[i]){
+				moved.add(blocks[i]);
+				destinations.add(newBlocks[i]);
+			}
+		}
+		long newAddress;
+		if (mode == DiskFormat.ALLOCATION_LINKED){
+			//Each block is written with the address of the following one
+			byte[] data = new byte[getGeometry().getBlockSize()];
+			for (int i = 0; i < blocks.length; i++){
+				readBlock(storage, blocks[i], data, 0);
+				writeBlocks(storage, newBlocks[i], 1, data, 0, (i + 1 < blocks.length) ? newBlocks[i + 1] : -1, 1);
+			}
+			newAddress = newBlocks[0];
+		} else {
+			copyRuns(storage, toRuns(toArray(moved)), toRuns(toArray(destinations)));
+			newAddress = (mode == DiskFormat.ALLOCATION_EXTENTS) ? writeExtentIndex(storage, toRuns(newBlocks)) : writeBlockMap(storage, newBlocks);
+		}
+		//The references of the copies of the file move to the new address
+		BlockReferences references = getReferences();
+		for (long extra = references.getReferenceCount(address) - 1; extra > 0; extra--){
+			references.removeReference(address);
+			references.addReference(newAddress);
+		}
+		if (getFormat().isDeduplicated()){
+			getFileIndex().move(address, newAddress);
+			for (int i = 0; i < moved.size(); i++){
+				getBlockIndex().move(moved.get(i), destinations.get(i));
+			}
+		}
+		//The previous blocks are freed directly, the references have already been moved
+		List<Extent> previous = toRuns(toArray(moved));
+		for (Long indexBlock : indexBlocks){
+			previous.add(new Extent(indexBlock, 1));
+		}
+		freeRuns(previous);
+		cursorAddress = -1;
+		return newAddress;
+	}
+	
+	/**
+	 * @param blocks a list of addresses
+	 * @return the same addresses, in an array
+	 */
+	private static long[] toArray(List<Long> blocks) {
+		long[] array = new long[blocks.size()];
+		for (int i = 0; i < array.length; i++){
+			array[i] = blocks.get(i);
+		}
+		return array;
+	}
+	
+	
+	
+	
+	//---------------------------//
+	//RESIZING THE DATA PARTITION//
+	//---------------------------//
+	
+	/*
+	 * The data partition can grow or shrink without recreating the disk. Growing only rewrites the metadata :
+	 * the sections are saved again after the new end of the partition, with the metadata of the blocks for a version 2 disk,
+	 * and the new blocks are free. Before shrinking, the files using blocks after the new end are moved to free blocks before it (see evacuateFile),
+	 * each move being saved like any operation. The new size is saved as a checkpoint, so a crash leaves the disk either with its previous size or the new one.
+	 */
+	
+	/**
+	 * @return the number of blocks of the data partition
+	 * @throws IOException
+	 */
+	public long getBlockCount() throws IOException {
+		return getGeometry().getBlockCount();
+	}
+	
+	/**
+	 * @param size a size of data partition, in kilobytes
+	 * @return the number of blocks of a data partition of this size, with the format of the disk
+	 * @throws IOException
+	 */
+	public long getBlockCountOfSize(long size) throws IOException {
+		return geometryOfSize(size, getFormat()).getBlockCount();
+	}
+	
+	/**
+	 * moves the blocks of a file which are after a limit to free blocks before it, to shrink the data partition.
+	 * The other blocks of a file stored as extents or with a block map stay in place, its index blocks, map blocks or inode are written again.
+	 * A file stored as a linked list is completely copied. The copies sharing the file must then all use its new address.
+	 * @param address the address of the file
+	 * @param limit the first block which must not be used anymore
+	 * @return the new address of the file, or the same one if it hasn't been moved
+	 * @throws NoFreeBlockException if there aren't enough free blocks before the limit
+	 * @throws SharedBlockException if a block to move is shared with other files by the deduplication
+	 * @throws IOException
+	 */
+	public long evacuateFile(long address, long limit) throws IOException {
+		if (address < 0){
+			return address;
+		}
+		List<Long> indexBlocks = new ArrayList<>();
+		long[] blocks = readBlocksOfFile(address, indexBlocks);
+		boolean outside = false;
+		for (long indexBlock : indexBlocks){
+			outside = outside || indexBlock >= limit;
+		}
+		int count = 0;
+		for (long block : blocks){
+			if (block >= limit){
+				if (isBlockDeduplication() && getReferences().getReferenceCount(block) > 1){
+					throw new SharedBlockException("bloc partagé après la fin de la partition");
+				}
+				count++;
+			}
+		}
+		if (!outside && count == 0){
+			return address;
+		}
+		if (getFormat().getAllocationMode() == DiskFormat.ALLOCATION_LINKED){
+			count = blocks.length;
+		}
+		//The free blocks are allocated from the beginning of the partition
+		List<Extent> runs = new ArrayList<>();
+		try {
+			for (long allocated = 0; allocated < count; ){
+				Extent run = getAllocator().allocateRun(count - allocated);
+				runs.add(run);
+				allocated = allocated + run.getLength();
+				if (run.getStart() + run.getLength() > limit){
+					throw new NoFreeBlockException("plus de blocs libres");
+				}
+			}
+		} catch (IOException e) {
+			//The blocks already allocated are given back
+			freeRuns(runs);
+			throw e;
+		}
+		long[] destinations = toBlocks(runs);
+		long[] newBlocks = blocks.clone();
+		for (int i = 0, j = 0; i < blocks.length; i++){
+			if (count == blocks.length || blocks[i] >= limit){
+				newBlocks[i] = destinations[j++];
+			}
+		}
+		return moveFile(address, blocks, indexBlocks, newBlocks);
+	}
+	
+	/**
+	 * changes the size of the data partition, and saves all the sections as a checkpoint.
+	 * When shrinking, the blocks after the new end must have been freed before (see evacuateFile), and the operations which freed them saved.
+	 * @param size the new size of the data partition, in kilobytes
+	 * @param h1 the whole hierarchy, saved with the other sections
+	 * @throws IOException if some blocks after the new end are still used
+	 */
+	public void resizeDisk(long size, Hierarchy h1) throws IOException {
+		DiskGeometry previous = getGeometry();
+		DiskGeometry next = geometryOfSize(size, getFormat());
+		BlockAllocator blocks = getAllocator();
+		if (blocks.lastUnavailable() >= next.getBlockCount()){
+			throw new IOException("blocs utilisés après la fin de la partition");
+		}
+		ChannelStorage disk = getDiskFile();
+		long previousLength = disk.size();
+		//The mapping covers the previous data partition, it will be created again with the new one
+		if (mappedStorage != null){
+			mappedStorage.close();
+			mappedStorage = null;
+		}
+		byte[] header = null;
+		byte[] metadata = null;
+		if (!previous.hasInlineMetadata()){
+			//The addresses of the next blocks follow the last block, they are moved with it. The new blocks don't have any.
+			header = next.toHeader();
+			metadata = new byte[(int)(next.getBlockCount()*8)];
+			disk.read(previous.nextPosition(0), metadata, 0, (int)(Math.min(previous.getBlockCount(), next.getBlockCount())*8));
+		}
+		blocks.resize(next.getBlockCount());
+		//The removed blocks don't need to be erased anymore
+		List<Extent> kept = new ArrayList<>();
+		for (Extent run : unscrubbed){
+			if (run.getStart() < next.getBlockCount()){
+				kept.add(new Extent(run.getStart(), Math.min(run.getLength(), next.getBlockCount() - run.getStart())));
+			}
+		}
+		unscrubbed = kept;
+		geometry = next;
+		partitionSize = next.getEnd();
+		saveSections(h1, header, metadata);
+		//The new blocks may contain the previous metadata or sections : they are erased, like the blocks of a new disk
+		byte[] eraser = new byte[MAX_BYTES_PER_IO];
+		long end = Math.min(next.blockPosition(next.getBlockCount()), previousLength);
+		for (long position = previous.blockPosition(previous.getBlockCount()); position < end; position += eraser.length){
+			disk.write(position, eraser, 0, (int) Math.min(eraser.length, end - position));
+		}
+		if (blockCache != null){
+			blockCache.clear();
+		}
+		cursorAddress = -1;
+	}
+	
+	
+	
+	
+	//---------------------------------------//
+	//TRANSFERRING FILES BETWEEN THE CHANNELS//
+	//---------------------------------------//
+	
+	/*
+	 * On a version 2 disk, the content of the contiguous blocks of a run is contiguous in the .dsk file, their metadata being stored apart.
+	 * The content of a run can then be transferred by the kernel between the channel of the .dsk file and the channel of a host file,
+	 * without being copied in the Java heap. The blocks cached by the BlockCache are dropped when they are overwritten this way.
+	 */
+	
+	/**
+	 * @return true if the content of the runs of blocks can be transferred directly between the channels (version 2 disks)
+	 * @throws IOException
+	 */
+	private boolean isTransferPossible() throws IOException {
+		return !getGeometry().hasInlineMetadata();
+	}
+	
+	/**
+	 * fills runs of blocks with the content of a host file, transferred directly from its channel, and completes the last block with zeroes
+	 * @param runs the runs of blocks
+	 * @param source the channel of the host file, at its beginning
+	 * @param linked true to chain the blocks as a linked list, false to mark them as the blocks of a file stored as extents or with a block map
+	 * @throws IOException
+	 */
+	private void transferToRuns(List<Extent> runs, FileChannel source, boolean linked) throws IOException {
+		DiskGeometry geometry = getGeometry();
+		ChannelStorage disk = getDiskFile();
+		int blockSize = geometry.getBlockSize();
+		for (int r = 0; r < runs.size(); r++){
+			Extent run = runs.get(r);
+			long position = geometry.blockPosition(run.getStart());
+			long length = run.getLength()*blockSize;
+			long done = 0;
+			while (done < length){
+				long used = disk.getChannel().transferFrom(source, position + done, length - done);
+				if (used <= 0){
+					//End of the host file
+					break;
+				}
+				done = done + used;
+			}
+			//The end of the last block is completed with zeroes
+			byte[] zeroes = new byte[(int) Math.min(blockSize, length - done)];
+			while (done < length){
+				int used = (int) Math.min(zeroes.length, length - done);
+				disk.write(position + done, zeroes, 0, used);
+				done = done + used;
+			}
+			if (blockCache != null){
+				blockCache.invalidate(position, length);
+			}
+			//Metadata of the blocks : the address of the next block of the list, or -1
+			long nextRun = (linked && r + 1 < runs.size()) ? runs.get(r + 1).getStart() : -1;
+			int perIO = MAX_BYTES_PER_IO / 8;
+			for (long first = 0; first < run.getLength(); first += perIO){
+				int count = (int) Math.min(perIO, run.getLength() - first);
+				ByteBuffer metadata = ByteBuffer.allocate(count*8);
+				for (long block = run.getStart() + first; block < run.getStart() + first + count; block++){
+					boolean last = (block == run.getStart() + run.getLength() - 1);
+					metadata.putLong(!linked ? -1 : (last ? nextRun : block + 1));
+				}
+				getStorage().write(geometry.nextPosition(run.getStart() + first), metadata.array(), 0, count*8);
+			}
+		}
+	}
+	
+	/**
+	 * writes the content of runs of blocks to a host file, transferred directly to its channel
+	 * @param runs the runs of blocks
+	 * @param size the number of bytes to transfer, the extra zeroes of the last block being left out
+	 * @param destination the channel of the host file, at the position where the content is written
+	 * @throws IOException
+	 */
+	private void transferFromRuns(List<Extent> runs, long size, FileChannel destination) throws IOException {
+		DiskGeometry geometry = getGeometry();
+		FileChannel disk = getDiskFile().getChannel();
+		long remaining = size;
+		for (Extent run : runs){
+			long position = geometry.blockPosition(run.getStart());
+			long length = Math.min(remaining, run.getLength()*geometry.getBlockSize());
+			long done = 0;
+			while (done < length){
+				long used = disk.transferTo(position + done, length - done, destination);
+				if (used <= 0){
+					throw new IOException("fichier trop court");
+				}
+				done = done + used;
+			}
+			remaining = remaining - length;
+		}
+	}
+	
+	/**
+	 * @param storage the data partition of the disk
+	 * @param address the address of the first block of a file stored as a linked list
+	 * @return the addresses of all the blocks of the list
+	 * @throws IOException
+	 */
+	private long[] readChain(BlockStorage storage, long address) throws IOException {
+		List<Long> chain = new ArrayList<>();
+		for (long block = address; block >= 0; block = readNext(storage, block)){
+			chain.add(block);
+		}
+		long[] blocks = new long[chain.size()];
+		for (int i = 0; i < blocks.length; i++){
+			blocks[i] = chain.get(i);
+		}
+		return blocks;
+	}
+
+	
+	
+	
+	//--------------------------------//
+	//ACCESSING THE BLOCKS OF THE DISK//
+	//--------------------------------//
+	
+	/**
+	 * returns the .dsk file, opening it if needed. The file stays open until the disk is closed.
+	 * @return the .dsk file
+	 * @throws FileNotFoundException if the .dsk file doesn't exist
+	 * @throws IOException
+	 */
+	private ChannelStorage getDiskFile() throws FileNotFoundException, IOException {
+		if (diskFile == null){
+			diskFile = new ChannelStorage(this.getDiskName());
+			//An interrupted checkpoint is completed before the sections are read
+			recoverCheckpoint();
+		}
+		return diskFile;
+	}
+	
+	/**
+	 * the .dsk file, reopened if needed, for the HierarchyReader (only reading is used)
+	 */
+	private class SectionStorage implements BlockStorage {
+		@Override
+		public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+			getDiskFile().read(position, buffer, offset, length);
+		}
+
+		@Override
+		public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+			getDiskFile().write(position, buffer, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			//The .dsk file is closed with the disk
+		}
+	}
+	
+	/**
+	 * gives access to the data partition of the disk, either through the block cache and the channel of the .dsk file, or through a memory mapping.
+	 * Both are kept during the whole life of the CoreIO, until the disk is closed.
+	 * @return the data partition of the disk
+	 * @throws IOException
+	 */
+	private BlockStorage getStorage() throws IOException {
+		if (!memoryMapped){
+			if (blockCache == null){
+				DiskGeometry geometry = getGeometry();
+				//By default, the cache uses about DEFAULT_CACHE_SIZE bytes, whatever the size of the blocks
+				int capacity = (cacheCapacity >= 0) ? cacheCapacity : Math.max(1, DEFAULT_CACHE_SIZE / geometry.getStride());
+				blockCache = new BlockCache(getDiskFile(), geometry.getDataOffset(), geometry.getStride(), capacity);
+			}
+			return blockCache;
+		}
+		if (mappedStorage == null){
+			mappedStorage = new MappedStorage(getDiskFile().getChannel(), sizeOfPartition());
+		}
+		return mappedStorage;
+	}
+	
+	/**
+	 * closes the disk, flushing the modifications to the .dsk file and releasing the mapping of the data partition if any.
+	 * The hierarchy should be saved before. The .dsk file will be opened again if the CoreIO is used afterwards.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			if (mappedStorage != null){
+				mappedStorage.close();
+			}
+		} finally {
+			mappedStorage = null;
+			cursorAddress = -1;
+			//The blocks not erased yet keep their content, which is never read back
+			unscrubbed.clear();
+			//The cache only needs to be emptied, the .dsk file is closed just after
+			if (blockCache != null){
+				blockCache.clear();
+				blockCache = null;
+			}
+			if (diskFile != null){
+				diskFile.close();
+				diskFile = null;
+			}
+			if (journal != null){
+				journal.close();
+			}
+		}
+	}
+	
+	/**
+	 * @return the maximum number of blocks read or written in a single call, to bound the size of the buffers
+	 * @throws IOException
+	 */
+	private int getBlocksPerIO() throws IOException {
+		return Math.max(1, MAX_BYTES_PER_IO / getGeometry().getBlockSize());
+	}
+	
+	/**
+	 * reads the content of a block and the address of the next one
+	 * @param storage the data partition of the disk
+	 * @param block the address of the block
+	 * @param data the buffer where the content of the block is copied
+	 * @param offset the position in the buffer
+	 * @return the address of the next block, -1 for the last block of a file
+	 * @throws IOException
+	 */
+	private long readBlock(BlockStorage storage, long block, byte[] data, int offset) throws IOException {
+		DiskGeometry geometry = getGeometry();
+		if (!geometry.hasInlineMetadata()){
+			storage.read(geometry.blockPosition(block), data, offset, geometry.getBlockSize());
+			return readNext(storage, block);
+		}
+		//The block and its metadata are read at once
+		byte[] buffer = getScratch(geometry.getStride());
+		storage.read(geometry.blockPosition(block), buffer, 0, geometry.getStride());
+		System.arraycopy(buffer, 0, data, offset, geometry.getBlockSize());
+		return ByteBuffer.wrap(buffer).getLong(geometry.getBlockSize());
+	}
+	
+	/**
+	 * reads the address of the next block in the metadata of a block
+	 * @param storage the data partition of the disk
+	 * @param block the address of the block
+	 * @return the address of the next block, -1 for the last block of a file
+	 * @throws IOException
+	 */
+	private long readNext(BlockStorage storage, long block) throws IOException {
+		byte[] next = new byte[8];
+		storage.read(getGeometry().nextPosition(block), next, 0, 8);
+		return ByteBuffer.wrap(next).getLong();
+	}
+	
+	/**
+	 * reads the content of contiguous blocks, packed in a buffer without their metadata
+	 * @param storage the data partition of the disk
+	 * @param first the address of the first block
+	 * @param count the number of blocks
+	 * @param data the buffer where the content of the blocks is copied
+	 * @param offset the position in the buffer
+	 * @throws IOException
+	 */
+	private void readBlocks(BlockStorage storage, long first, int count, byte[] data, int offset) throws IOException {
+		DiskGeometry geometry = getGeometry();
+		int blockSize = geometry.getBlockSize();
+		if (!geometry.hasInlineMetadata()){
+			//The blocks are contiguous in the .dsk file
+			storage.read(geometry.blockPosition(first), data, offset, count*blockSize);
+			return;
+		}
+		byte[] buffer = getScratch(count*geometry.getStride());
+		storage.read(geometry.blockPosition(first), buffer, 0, count*geometry.getStride());
+		//We pack the content of the blocks, leaving their metadata out
+		for (int i = 0; i < count; i++){
+			System.arraycopy(buffer, i*geometry.getStride(), data, offset + i*blockSize, blockSize);
+		}
+	}
+	
+	/**
+	 * writes the content of contiguous blocks and their metadata
+	 * @param storage the data partition of the disk
+	 * @param first the address of the first block
+	 * @param count the number of blocks
+	 * @param data the buffer containing the content of the blocks, packed
+	 * @param offset the position in the buffer
+	 * @param next the address of the next block, stored in the metadata of each block (-1 for the files stored as extents)
+	 * @param dirty 1 if the blocks are used, 0 else
+	 * @throws IOException
+	 */
+	private void writeBlocks(BlockStorage storage, long first, int count, byte[] data, int offset, long next, int dirty) throws IOException {
+		DiskGeometry geometry = getGeometry();
+		int blockSize = geometry.getBlockSize();
+		if (!geometry.hasInlineMetadata()){
+			//The content and the metadata are in two separate regions, the used blocks are only known thanks to the bitmap
+			storage.write(geometry.blockPosition(first), data, offset, count*blockSize);
+			ByteBuffer metadata = ByteBuffer.allocate(count*8);
+			for (int i = 0; i < count; i++){
+				metadata.putLong(next);
+			}
+			storage.write(geometry.nextPosition(first), metadata.array(), 0, count*8);
+			return;
+		}
+		byte[] buffer = getScratch(count*geometry.getStride());
+		for (int i = 0; i < count; i++){
+			System.arraycopy(data, offset + i*blockSize, buffer, i*geometry.getStride(), blockSize);
+			setBlockMetadata(buffer, i*geometry.getStride() + blockSize, next, dirty);
+		}
+		storage.write(geometry.blockPosition(first), buffer, 0, count*geometry.getStride());
+	}
+	
+	/**
+	 * returns a buffer reused between the operations, to interleave the content of the blocks and their metadata
+	 * @param length the minimal length of the buffer
+	 * @return the buffer
+	 */
+	private byte[] getScratch(int length) {
+		if (scratch == null || scratch.length < length){
+			scratch = new byte[length];
+		}
+		return scratch;
+	}
+	
+	/**
+	 * fills a block in a buffer with the content of an input stream, completing with zeroes at the end of the stream
+	 * @param in the input stream
+	 * @param buffer the buffer
+	 * @param offset the position of the block in the buffer
+	 * @param blockSize the size of the block
+	 * @throws IOException
+	 */
+	private static void fillBlock(InputStream in, byte[] buffer, int offset, int blockSize) throws IOException {
+		int filled = 0;
+		int read = 0;
+		while (filled < blockSize && (read = in.read(buffer, offset + filled, blockSize - filled)) > 0){
+			filled = filled + read;
+		}
+		for (int i = offset + filled; i < offset + blockSize; i++){
+			buffer[i] = 0;
+		}
+	}
+	
+	/**
+	 * writes the 9 bytes of metadata (address of the next block and dirty byte) of a block of a version 1 disk in a buffer
+	 * @param buffer the buffer
+	 * @param position the position of the metadata in the buffer
+	 * @param next the address of the next block
+	 * @param dirty 1 if the block is used, 0 else
+	 */
+	private static void setBlockMetadata(byte[] buffer, int position, long next, int dirty) {
+		ByteBuffer.wrap(buffer).putLong(position, next);
+		buffer[position + 8] = (byte) dirty;
+	}
+	
+	
+	
+	
 	//---------//
 	//UTILITIES//
 	//---------//
@@ -370,30 +2853,6 @@ public class CoreIO {
 		return size;
 	}
 	
-	/**
-	 * gets the next empty block of 1kB on the VFS disk file, starting from a specified adress
-	 * @param adress 
-	 * @param rAF a RandomAccessFile used to arbitrarily browse the file
-	 * @param size the size of the VFS partition, for bounds checking
-	 * @return the address of the next empty 1kB block
-	 * @throws IOException
-	 */
-	public long getNextEmptyBlockStartingFrom(long adress, RandomAccessFile rAF, long size) throws IOException {
-		long i = adress;
-		long savedPosition = rAF.getFilePointer();
-		int dirty = 1;
-		while ((dirty != 0)){
-			if (i*1024>=size){ throw new IOException("plus de blocs libres");}
-			rAF.seek(i*(1024 + 8+1)+1024+8);
-			dirty = rAF.read();
-			i = i + 1;
-		}
-		//Leaving the random access file positioned as we found it
-		rAF.seek(savedPosition);
-		//no need to close as this method is called on a already existing RandomAccessFile, in a try...finally loop
-		return i-1;
-	}
-
 	/**
 	 * returns the size of the vfs partition, in bytes
 	 * @return returns the size of the vfs partition, in bytes
@@ -401,18 +2860,36 @@ public class CoreIO {
 	 * @throws FileNotFoundException
 	 */
 	public long sizeOfDisk() throws IOException, FileNotFoundException {
-		RandomAccessFile rAF = null;
-		long diskSize = 0;
-		try {
-			rAF = new RandomAccessFile(new File(this.getDiskName()), "r");
-			//We'll need the size of the partition for safety reason
-			rAF.seek(rAF.length()-8);
-			//We want to return the size in true bytes (ie 1kB = 1024B)
-			diskSize =(rAF.readLong()/1033)*1024;
-		} finally {
-			if (rAF != null){rAF.close();}
+		//We want to return the size in true bytes (ie 1kB = 1024B), without the metadata of the blocks
+		DiskGeometry geometry = getGeometry();
+		return geometry.getBlockCount()*geometry.getBlockSize();
+	}
+	
+	/**
+	 * returns the space taken by the used blocks of the vfs partition, in bytes : the blocks shared by several files are only counted once,
+	 * and the index blocks, map blocks and inodes are counted too. The number of used blocks is kept by the allocator, nothing is browsed.
+	 * @return the space taken by the used blocks, in bytes
+	 * @throws IOException
+	 */
+	public long usedSizeOfDisk() throws IOException {
+		return getAllocator().getUsedCount()*getGeometry().getBlockSize();
+	}
+	
+	/**
+	 * returns the size of the data partition in the .dsk file, including the metadata of the blocks (and the header of version 2 disks), 
+	 * ie the position of the first section. It is read once, then cached.
+	 * @return the size of the data partition, in bytes
+	 * @throws IOException
+	 */
+	private long sizeOfPartition() throws IOException {
+		//The size of the partition is stored at the end of the file, it doesn't change while the disk is open
+		if (partitionSize < 0){
+			ChannelStorage disk = getDiskFile();
+			ByteBuffer size = ByteBuffer.allocate(8);
+			disk.read(disk.size()-8, size.array(), 0, 8);
+			partitionSize = size.getLong();
 		}
-		return diskSize;
+		return partitionSize;
 	}
 	
 }
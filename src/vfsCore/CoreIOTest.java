@@ -3,10 +3,16 @@ package vfsCore;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.junit.Test;
 
+import vfsCore.exceptions.NoFreeBlockException;
+import vfsCore.exceptions.SharedBlockException;
+
 public class CoreIOTest {
 	
 	@Test
@@ -22,7 +28,16 @@ public class CoreIOTest {
 		CoreIO cio = new CoreIO("test/testDisk.dsk");
 		
 		byte[] result = null;
-		byte[] test1 = {-84,-19,0,5,115,114,0,14,118,102,115,67,111,114,101,46,70,111,108,100,101,114,-61,-87,99,60,-110,-95,-123,-117,2,0,1,76,0,8,99,104,105,108,100,114,101,110,116,0,21,76,106,97,118,97,47,117,116,105,108,47,65,114,114,97,121,76,105,115,116,59,120,114,0,17,118,102,115,67,111,114,101,46,72,105,101,114,97,114,99,104,121,-114,11,-21,-65,-56,-9,-76,-36,2,0,2,76,0,4,110,97,109,101,116,0,18,76,106,97,118,97,47,108,97,110,103,47,83,116,114,105,110,103,59,76,0,6,112,97,114,101,110,116,116,0,16,76,118,102,115,67,111,114,101,47,70,111,108,100,101,114,59,120,112,116,0,0,112,115,114,0,19,106,97,118,97,46,117,116,105,108,46,65,114,114,97,121,76,105,115,116,120,-127,-46,29,-103,-57,97,-99,3,0,1,73,0,4,115,105,122,101,120,112,0,0,0,3,119,4,0,0,0,3,115,114,0,12,118,102,115,67,111,114,101,46,70,105,108,101,53,-27,-80,4,-92,-12,-110,17,2,0,2,74,0,7,97,100,100,114,101,115,115,74,0,4,115,105,122,101,120,113,0,126,0,2,116,0,9,102,105,108,101,49,46,116,120,116,113,0,126,0,5,0,0,0,0,0,0,32,-49,0,0,0,0,0,0,9,79,115,113,0,126,0,9,116,0,9,102,105,108,101,50,46,106,112,103,113,0,126,0,5,0,0,0,0,0,0,3,-122,0,0,0,0,0,6,-35,-48,115,113,0,126,0,0,116,0,7,102,111,108,100,101,114,49,113,0,126,0,5,115,113,0,126,0,7,0,0,0,1,119,4,0,0,0,1,115,113,0,126,0,9,116,0,9,116,101,115,116,51,46,109,112,51,113,0,126,0,14,0,0,0,0,0,0,0,56,0,0,0,0,0,65,74,116,120,120};
+		//Header ("VFSH", version 3, length of the entry of the root), then the entry of the root : type, name, position and length of its record, total size and number of files
+		//Then the record of each folder : length of its subtree, number of children, and their entries (address+1 and size for a file)
+		byte[] test1 = {86,70,83,72,3,0,0,0,15,
+				0,0,0,0,0,24,0,0,0,58,-109,-29,-96,2,3,
+				0,0,0,79,3,
+				1,9,102,105,108,101,49,46,116,120,116,-48,65,-49,18,
+				1,9,102,105,108,101,50,46,106,112,103,-121,7,-48,-69,27,
+				0,7,102,111,108,100,101,114,49,0,0,0,58,0,0,0,21,-12,-108,-123,2,1,
+				0,0,0,21,1,
+				1,9,116,101,115,116,51,46,109,112,51,57,-12,-108,-123,2};
 		
 		try {
 			result = cio.getHierarchyBytes(test);
@@ -54,10 +69,242 @@ public class CoreIOTest {
 		}
 	}
 
+	//A deep and wide hierarchy, encoded and decoded without recursion
+	@Test
+	public void testHierarchyFormat() throws Exception {
+		Folder root = new Folder(null, "", null);
+		Folder deepest = root;
+		for (int i = 0; i < 20000; i++){
+			Folder child = new Folder(null, "dossier n°"+i, deepest);
+			deepest.addChild(child);
+			deepest = child;
+		}
+		for (int i = 0; i < 1000; i++){
+			root.addChild(new File("fichier"+i+".txt", 1L << (i % 60), i, root));
+		}
+		deepest.addChild(new File("vide.txt", deepest));
+		CoreIO cio = new CoreIO("test/testDisk.dsk");
+		byte[] bytes = cio.getHierarchyBytes(deepest.getParent());
+		assertTrue(HierarchyReader.isEncoded(bytes));
+		Folder decoded = (Folder) cio.getHierarchyFromBytes(cio.getHierarchyBytes(root));
+		assertEquals(1001, decoded.getChildren().size());
+		File last = (File) decoded.getChildren().get(1000);
+		assertEquals("fichier999.txt", last.getName());
+		assertEquals(1L << (999 % 60), last.getAddress());
+		assertEquals(999, last.getSize());
+		assertEquals(decoded, last.getParent());
+		Hierarchy current = decoded.getChildren().get(0);
+		for (int i = 0; i < 19999; i++){
+			assertEquals("dossier n°"+i, current.getName());
+			current = ((Folder) current).getChildren().get(0);
+		}
+		File empty = (File) ((Folder) current).getChildren().get(0);
+		assertEquals(-1, empty.getAddress());
+		assertEquals(current, empty.getParent());
+		//The totals of the folders are read with their entry, without reading their children
+		Folder decodedAgain = (Folder) cio.getHierarchyFromBytes(cio.getHierarchyBytes(root));
+		assertEquals(1001, decodedAgain.getFileCount());
+		assertEquals(999*1000/2, decodedAgain.getSubtreeSize());
+		Folder first = (Folder) decodedAgain.getChildren().get(0);
+		assertEquals(1, first.getFileCount());
+		assertFalse(first.isLoaded());
+		//The hierarchies saved in the version 1 of the format are still read
+		byte[] version1 = {86,70,83,72,1,0,0,2,1,5,97,46,116,120,116,3,4,0,1,98,1,1,1,99,0,0};
+		Folder old = (Folder) cio.getHierarchyFromBytes(version1);
+		assertEquals(2, old.getChildren().size());
+		assertEquals(2, ((File) old.getChildren().get(0)).getAddress());
+		assertEquals(old, ((Folder) old.getChildren().get(1)).getChildren().get(0).getParent().getParent());
+		assertEquals(2, old.getFileCount());
+		//The version 2 doesn't store the totals, they are computed when needed
+		byte[] version2 = {86,70,83,72,2,0,0,0,10,0,0,0,0,0,19,0,0,0,16,0,0,0,26,1,0,1,97,0,0,0,16,0,0,0,10,0,0,0,10,1,1,1,98,1,5};
+		Folder previous = (Folder) cio.getHierarchyFromBytes(version2);
+		assertEquals(5, previous.getSubtreeSize());
+		assertEquals(1, previous.getFileCount());
+		assertEquals("b", ((Folder) previous.getChildren().get(0)).getChildren().get(0).getName());
+		//A newer version of the format is rejected
+		bytes[4] = 4;
+		try {
+			cio.getHierarchyFromBytes(bytes);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
 	@Test
 	public void testSizeOfFolder() {
 		CoreIO cio = new CoreIO("test/testDisk.dsk");
 		assertEquals(891716, cio.sizeOfFolder(new java.io.File("test/ressources")));
 	}
 
+	//A file of about 700 blocks, so that its block map needs two levels
+	@Test
+	public void testBlockMap() throws IOException {
+		CoreIO cio = new CoreIO("test/testDisk.dsk");
+		cio.formatDisk(8000, new DiskFormat(DiskFormat.ALLOCATION_BLOCK_MAP));
+		java.io.File file = new java.io.File("test/ressources/test2/t3.jpg");
+		long address = cio.writeToDisk(file);
+		long blockCount = (file.length() + 1023) / 1024;
+		//On an empty disk, the blocks of the file are contiguous
+		assertEquals(0, cio.getBlockAtOffset(address, 0));
+		assertEquals(500, cio.getBlockAtOffset(address, 500*1024 + 12));
+		assertEquals(blockCount - 1, cio.getBlockAtOffset(address, file.length() - 1));
+		assertEquals(-1, cio.getBlockAtOffset(address, blockCount*1024));
+		long copy = cio.copyFileAtAddress(address);
+		cio.removeFileAtAddress(address);
+		cio.readFromAdress(copy, "test/testExtent.jpg", file.length());
+		cio.close();
+		assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(Paths.get("test/testExtent.jpg")));
+	}
+	
+	//The blocks of a removed file are only marked as free, and erased later
+	@Test
+	public void testDeferredReclamation() throws IOException {
+		CoreIO cio = new CoreIO("test/testDisk.dsk");
+		cio.formatDisk(8000, new DiskFormat());
+		java.io.File file = new java.io.File("test/ressources/test2/t3.jpg");
+		long address = cio.writeToDisk(file);
+		long blockCount = (file.length() + 1023) / 1024;
+		cio.removeFileAtAddress(address);
+		assertFalse(cio.getAllocator().isUsed(address));
+		//The blocks can't be reused before the removal is saved
+		assertFalse(cio.getAllocator().isAvailable(address));
+		assertEquals(0, cio.getUnscrubbedBlockCount());
+		cio.saveHierarchyToFile(new Folder(null, "", null));
+		assertEquals(blockCount, cio.getUnscrubbedBlockCount());
+		//The content of the last block is still there (blocks of 1024 bytes, followed by 9 bytes of metadata)
+		byte[] lastBlock = Arrays.copyOfRange(Files.readAllBytes(Paths.get("test/testDisk.dsk")), (int)(blockCount - 1)*1033, (int)(blockCount - 1)*1033 + 1024);
+		assertFalse(Arrays.equals(new byte[1024], lastBlock));
+		//A file written over the freed blocks is read back correctly, and its blocks are not erased by the scrubbing
+		java.io.File text = new java.io.File("test/ressources/test1.txt");
+		long textAddress = cio.writeToDisk(text);
+		assertEquals(address, textAddress);
+		assertEquals(10, cio.scrubFreeBlocks(10));
+		assertEquals(blockCount - 10, cio.getUnscrubbedBlockCount());
+		assertEquals(blockCount - 10, cio.scrubFreeBlocks(blockCount));
+		assertEquals(0, cio.getUnscrubbedBlockCount());
+		cio.readFromAdress(textAddress, "test/testCopy1.txt", text.length());
+		assertArrayEquals(Files.readAllBytes(text.toPath()), Files.readAllBytes(Paths.get("test/testCopy1.txt")));
+		cio.close();
+		//The last block of the old file is now filled with zeroes
+		lastBlock = Arrays.copyOfRange(Files.readAllBytes(Paths.get("test/testDisk.dsk")), (int)(blockCount - 1)*1033, (int)(blockCount - 1)*1033 + 1024);
+		assertArrayEquals(new byte[1024], lastBlock);
+	}
+	
+	//The copies share the blocks of the original file, which are freed with the last copy
+	@Test
+	public void testSharedCopies() throws IOException {
+		for (int mode = DiskFormat.ALLOCATION_LINKED; mode <= DiskFormat.ALLOCATION_BLOCK_MAP; mode++){
+			CoreIO cio = new CoreIO("test/testDisk.dsk");
+			cio.formatDisk(8000, new DiskFormat(mode));
+			java.io.File file = new java.io.File("test/ressources/test2/t3.jpg");
+			long address = cio.writeToDisk(file);
+			long used = countUsedBlocks(cio);
+			long copy = cio.copyFileAtAddress(address);
+			assertEquals(address, copy);
+			assertEquals(used, countUsedBlocks(cio));
+			assertEquals(2, cio.getReferences().getReferenceCount(address));
+			//The counts are saved with the hierarchy
+			cio.saveHierarchyToFile(new Folder(null, "", null));
+			cio.close();
+			cio = new CoreIO("test/testDisk.dsk");
+			assertEquals(2, cio.getReferences().getReferenceCount(address));
+			cio.removeFileAtAddress(address);
+			assertEquals(used, countUsedBlocks(cio));
+			cio.readFromAdress(copy, "test/testExtent.jpg", file.length());
+			assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(Paths.get("test/testExtent.jpg")));
+			cio.removeFileAtAddress(copy);
+			assertEquals(0, countUsedBlocks(cio));
+			cio.close();
+		}
+	}
+	
+	//Identical blocks and files are stored once on a deduplicated disk
+	@Test
+	public void testDeduplication() throws IOException {
+		java.io.File file = new java.io.File("test/ressources/test2/t3.jpg");
+		for (int mode = DiskFormat.ALLOCATION_EXTENTS; mode <= DiskFormat.ALLOCATION_BLOCK_MAP; mode++){
+			CoreIO cio = new CoreIO("test/testDisk.dsk");
+			DiskFormat format = new DiskFormat(mode);
+			format.setCompressed(false);
+			format.setDeduplicated(true);
+			cio.formatDisk(8000, format);
+			long address = cio.writeToDisk(file);
+			long used = countUsedBlocks(cio);
+			long dataBlocks = (file.length() + 1023) / 1024;
+			//Only a new index block, or a new inode and its map blocks, are written
+			long other = cio.writeToDisk(file);
+			assertEquals(2*used - dataBlocks, countUsedBlocks(cio));
+			cio.removeFileAtAddress(address);
+			assertEquals(used, countUsedBlocks(cio));
+			cio.readFromAdress(other, "test/testExtent.jpg", file.length());
+			assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(Paths.get("test/testExtent.jpg")));
+			cio.removeFileAtAddress(other);
+			assertEquals(0, countUsedBlocks(cio));
+			cio.close();
+		}
+		//Whole files, compressed or not, in any mode
+		for (int mode = DiskFormat.ALLOCATION_LINKED; mode <= DiskFormat.ALLOCATION_BLOCK_MAP; mode++){
+			CoreIO cio = new CoreIO("test/testDisk.dsk");
+			DiskFormat format = new DiskFormat(mode);
+			format.setDeduplicated(true);
+			cio.formatDisk(8000, format);
+			CoreImportExport cie = new CoreImportExport(cio, true);
+			File first = cie.importFile(file, "t3.jpg");
+			long used = countUsedBlocks(cio);
+			//The index is saved with the hierarchy
+			cio.saveHierarchyToFile(new Folder(null, "", null));
+			cio.close();
+			cio = new CoreIO("test/testDisk.dsk");
+			cie = new CoreImportExport(cio, true);
+			File second = cie.importFile(file, "copy.jpg");
+			assertEquals(first.getAddress(), second.getAddress());
+			assertEquals(first.getSize(), second.getSize());
+			assertEquals(used, countUsedBlocks(cio));
+			assertTrue(cie.exportFile(second, "test/testExtent.jpg"));
+			assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(Paths.get("test/testExtent.jpg")));
+			cio.close();
+		}
+	}
+	
+	//The blocks which can't be moved before the new end of a shrunk disk, with the reason why
+	@Test
+	public void testEvacuationErrors() throws IOException {
+		java.io.File file = new java.io.File("test/ressources/test2/t3.jpg");
+		CoreIO cio = new CoreIO("test/testDisk.dsk");
+		DiskFormat format = new DiskFormat(DiskFormat.ALLOCATION_EXTENTS);
+		format.setCompressed(false);
+		format.setDeduplicated(true);
+		cio.formatDisk(8000, format);
+		cio.writeToDisk(file);
+		long other = cio.writeToDisk(file);
+		try {
+			cio.evacuateFile(other, 1);
+			fail();
+		} catch (SharedBlockException e) {
+		}
+		cio.close();
+		cio = new CoreIO("test/testDisk.dsk");
+		cio.formatDisk(8000, new DiskFormat(DiskFormat.ALLOCATION_EXTENTS));
+		long address = cio.writeToDisk(file);
+		long used = countUsedBlocks(cio);
+		try {
+			cio.evacuateFile(address, 1);
+			fail();
+		} catch (NoFreeBlockException e) {
+		}
+		//The blocks allocated meanwhile are given back
+		assertEquals(used, countUsedBlocks(cio));
+		cio.close();
+	}
+
+	private static long countUsedBlocks(CoreIO cio) throws IOException {
+		long used = 0;
+		for (long block = 0; block < cio.getAllocator().getBlockCount(); block++){
+			if (cio.getAllocator().isUsed(block)){
+				used++;
+			}
+		}
+		return used;
+	}
+
 }
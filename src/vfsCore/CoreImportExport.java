@@ -1,8 +1,12 @@
 package vfsCore;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import vfsCore.Compressor.Compressor;
@@ -59,6 +63,15 @@ public class CoreImportExport {
 	 * @throws FileNotFoundException
 	 */
 	public vfsCore.File importFile(File fileToAdd, String name) throws IOException, FileNotFoundException{
+		//On a deduplicated disk, a file identical to a stored one shares its blocks
+		byte[] hash = null;
+		if (cio.getFormat().isDeduplicated()){
+			hash = hashFile(fileToAdd);
+			long[] stored = cio.shareStoredFile(hash);
+			if (stored != null){
+				return new vfsCore.File(name, stored[0], stored[1], null);
+			}
+		}
 		File toImport;
 		if (!isCompressionEnabled){
 			//Without compression
@@ -71,6 +84,9 @@ public class CoreImportExport {
 		long address = cio.writeToDisk(toImport);
 		//We create a new File (subclass of Hierarchy) element ((we have not interest to the parent element in the case of a file)
 		vfsCore.File hFile = new vfsCore.File(name, address, toImport.length(),null);
+		if (hash != null){
+			cio.indexStoredFile(hash, address, toImport.length());
+		}
 		if (isCompressionEnabled){
 			//We delete the temp file
 			toImport.delete();
@@ -78,6 +94,22 @@ public class CoreImportExport {
 		return hFile;
 	}
 	
+	/**
+	 * computes the hash of the content of a file of the host file system
+	 * @param file the file
+	 * @return the hash of its content
+	 * @throws IOException
+	 */
+	private byte[] hashFile(File file) throws IOException {
+		FileInputStream fIS = null;
+		try {
+			fIS = new FileInputStream(file);
+			return ContentIndex.hash(fIS);
+		} finally {
+			if (fIS != null){fIS.close();}
+		}
+	}
+	
 	/**
 	 * imports a folder, and its files and sub-folders to the root of the VFS disk, preserving the hierarchy
 	 * @param folderToAdd a java.io.File element corresponding to the folder
@@ -136,6 +168,73 @@ public class CoreImportExport {
 		}
 	}
 	
+	/**
+	 * reads a range of the content of a file directly into a buffer, without exporting it. 
+	 * Without compression, only the blocks containing the range are read. 
+	 * With compression, the file is expanded on the fly from its beginning, but no temporary file is used.
+	 * @param file the file to read
+	 * @param offset the position of the first byte to read in the (expanded) file
+	 * @param buffer the buffer, filled from its position up to its limit, or up to the end of the file
+	 * @return the number of bytes read, 0 if the offset is after the end of the file
+	 * @throws IOException
+	 */
+	public int read(vfsCore.File file, long offset, ByteBuffer buffer) throws IOException {
+		if (!isCompressionEnabled){
+			return cio.read(file.getAddress(), file.getSize(), offset, buffer);
+		}
+		InputStream expanded = null;
+		try {
+			expanded = compressor.expand(cio.openStoredStream(file.getAddress(), file.getSize()));
+			//Skipping the beginning of the file
+			byte[] skipped = new byte[4096];
+			while (offset > 0){
+				int used = expanded.read(skipped, 0, (int) Math.min(skipped.length, offset));
+				if (used < 0){
+					return 0;
+				}
+				offset = offset - used;
+			}
+			int total = 0;
+			byte[] buff = new byte[4096];
+			int used;
+			while (buffer.hasRemaining() && (used = expanded.read(buff, 0, Math.min(buff.length, buffer.remaining()))) > 0){
+				buffer.put(buff, 0, used);
+				total = total + used;
+			}
+			return total;
+		} finally {
+			if (expanded != null){expanded.close();}
+		}
+	}
+	
+	/**
+	 * opens a stream reading the (expanded) content of a file, directly from the blocks of the disk
+	 * @param file the file to read
+	 * @return the input stream
+	 * @throws IOException
+	 */
+	public InputStream openRead(vfsCore.File file) throws IOException {
+		InputStream stored = cio.openStoredStream(file.getAddress(), file.getSize());
+		if (!isCompressionEnabled){
+			return stored;
+		}
+		return compressor.expand(stored);
+	}
+	
+	/**
+	 * opens a stream writing the content of a new file, compressed if needed, in a stream writing the blocks of the disk
+	 * @param stored the stream writing the blocks, closed with the returned stream
+	 * @param name the name of the file
+	 * @return the output stream
+	 * @throws IOException
+	 */
+	public OutputStream openWrite(OutputStream stored, String name) throws IOException {
+		if (!isCompressionEnabled){
+			return stored;
+		}
+		return compressor.compress(stored, name);
+	}
+	
 	/**
 	 * exports a folder from the VFS disk, and its files and subfolders, on the host file system. The hierarchy is conserved
 	 * @param folder the hierarchy Folder to export
@@ -2,7 +2,15 @@ package vfsCore;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.junit.Test;
 //TDD
@@ -239,12 +247,13 @@ public class CoreTest {
 	@Test
 	public void testFreeSpace(){
 		createDiskWithData();
-		assertEquals(8000*1024-739467,testCore.getFreeSpace());
+		assertEquals((8000-725)*1024,testCore.getFreeSpace());
 	}
 	@Test
 	public void testUsedSpace(){
 		createDiskWithData();
-		assertEquals(739467,testCore.getUsedSpace());
+		//The used blocks of 1kB, the last block of each file being partially filled
+		assertEquals(725*1024,testCore.getUsedSpace());
 		System.out.println("Used size : "+testCore.getUsedSpace());
 	}
 	@Test
@@ -285,6 +294,604 @@ public class CoreTest {
 		
 	}
 	
+	//Disks storing their files as extents
+	@Test
+	public void testExtentDisk() throws IOException{
+		testCore.deleteDisk("test/testDisk.dsk");
+		assertTrue(testCore.createDisk("test/testDisk.dsk", 8000, new DiskFormat(DiskFormat.ALLOCATION_EXTENTS)));
+		assertTrue(testCore.importElement("test/ressources/test1.txt","/file1.txt"));
+		assertTrue(testCore.importElement("test/ressources/test2","/folder2"));
+		assertTrue(testCore.copyElementAtPath("/folder2/t3.jpg","/t3.jpg"));
+		assertTrue(testCore.deleteFileAtPath("/folder2/t3.jpg"));
+		//Reopening the disk, the format must be kept
+		testCore.openDisk("test/testDisk.dsk");
+		assertTrue(testCore.exportElement("/t3.jpg", "test/testExtent.jpg"));
+		assertArrayEquals(Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg")), Files.readAllBytes(Paths.get("test/testExtent.jpg")));
+		//The copy of the image shares its blocks, and each file has an index block
+		assertEquals(731*1024,testCore.getUsedSpace());
+	}
+	
+	//Version 2 disks, with page-aligned blocks of 4kB
+	@Test
+	public void testPagedDisk() throws IOException{
+		testCore.deleteDisk("test/testDisk.dsk");
+		assertTrue(testCore.createDisk("test/testDisk.dsk", 8000, new DiskFormat(DiskFormat.ALLOCATION_LINKED, 4096)));
+		assertEquals(8000*1024,testCore.getTotalSpace());
+		assertTrue(testCore.importElement("test/ressources/test2","/folder2"));
+		assertTrue(testCore.copyElementAtPath("/folder2/t3.jpg","/t3.jpg"));
+		assertTrue(testCore.deleteFileAtPath("/folder2/t3.jpg"));
+		//Reopening the disk, the size of the blocks must be kept
+		assertTrue(testCore.openDisk("test/testDisk.dsk"));
+		assertEquals(8000*1024,testCore.getTotalSpace());
+		assertTrue(testCore.exportElement("/t3.jpg", "test/testExtent.jpg"));
+		assertArrayEquals(Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg")), Files.readAllBytes(Paths.get("test/testExtent.jpg")));
+	}
+	
+	//Uncompressed files of version 2 disks, transferred directly between the channels
+	@Test
+	public void testTransfer() throws IOException{
+		byte[] original = Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg"));
+		byte[] text = Files.readAllBytes(Paths.get("test/ressources/test1.txt"));
+		for (int mode = DiskFormat.ALLOCATION_LINKED; mode <= DiskFormat.ALLOCATION_BLOCK_MAP; mode++){
+			testCore.deleteDisk("test/testDisk.dsk");
+			DiskFormat format = new DiskFormat(mode, 4096);
+			format.setCompressed(false);
+			assertTrue(testCore.createDisk("test/testDisk.dsk", 8000, format));
+			assertTrue(testCore.importElement("test/ressources/test2/t3.jpg","/t3.jpg"));
+			assertTrue(testCore.exportElement("/t3.jpg", "test/testExtent.jpg"));
+			assertArrayEquals(original, Files.readAllBytes(Paths.get("test/testExtent.jpg")));
+			//The blocks cached while reading must be dropped when other content is transferred in them
+			ByteBuffer buffer = ByteBuffer.allocate(100);
+			assertEquals(100, testCore.readElement("/t3.jpg", 0, buffer));
+			assertTrue(testCore.deleteFileAtPath("/t3.jpg"));
+			assertTrue(testCore.importElement("test/ressources/test1.txt","/file1.txt"));
+			buffer = ByteBuffer.allocate(text.length);
+			assertEquals(text.length, testCore.readElement("/file1.txt", 0, buffer));
+			assertArrayEquals(text, buffer.array());
+			assertTrue(testCore.exportElement("/file1.txt", "test/testCopy1.txt"));
+			assertArrayEquals(text, Files.readAllBytes(Paths.get("test/testCopy1.txt")));
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBlockSize(){
+		new DiskFormat(DiskFormat.ALLOCATION_EXTENTS, 5000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidAllocationMode(){
+		new DiskFormat(DiskFormat.ALLOCATION_BLOCK_MAP + 1);
+	}
+	
+	//Disks opened with a memory mapping of their data partition
+	@Test
+	public void testMemoryMappedDisk() throws IOException{
+		createDiskWithData();
+		assertTrue(testCore.openDisk("test/testDisk.dsk", true));
+		assertTrue(testCore.copyElementAtPath("/folder2/t3.jpg","/t3.jpg"));
+		assertTrue(testCore.deleteFileAtPath("/folder2/t3.jpg"));
+		assertTrue(testCore.importElement("test/ressources/test1.txt","/file2.txt"));
+		assertTrue(testCore.exportElement("/t3.jpg", "test/testMapped.jpg"));
+		assertArrayEquals(Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg")), Files.readAllBytes(Paths.get("test/testMapped.jpg")));
+	}
+	
+	@Test
+	public void testCloseDisk() throws IOException{
+		createDiskWithData();
+		assertTrue(testCore.closeDisk());
+		assertEquals("", testCore.getDiskpath());
+		//Without an opened disk, the operations fail cleanly
+		assertFalse(testCore.goTo("/folder2"));
+		assertFalse(testCore.deleteFileAtPath("/folder2/t3.jpg"));
+		assertFalse(testCore.moveElement("/folder2/t3.jpg", "/t3.jpg"));
+		assertEquals(-1, testCore.getFreeSpace());
+		assertEquals(-1, testCore.readElement("/folder2/t3.jpg", 0, ByteBuffer.allocate(10)));
+		assertNull(testCore.searchFile("t3.jpg"));
+		assertNull(testCore.getPathCache());
+		assertTrue(testCore.closeDisk());
+		assertTrue(testCore.openDisk("test/testDisk.dsk"));
+		assertTrue(testCore.copyElementAtPath("/folder2/t3.jpg","/t3.jpg"));
+		assertTrue(testCore.closeDisk());
+		assertTrue(testCore.openDisk("test/testDisk.dsk"));
+		assertTrue(testCore.exportElement("/t3.jpg", "test/testMapped.jpg"));
+		assertArrayEquals(Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg")), Files.readAllBytes(Paths.get("test/testMapped.jpg")));
+	}
+	
+	//Exporting a file twice, the second time from the block cache
+	@Test
+	public void testBlockCache() throws IOException{
+		createDiskWithData();
+		assertTrue(testCore.exportElement("/folder2/t3.jpg", "test/testMapped.jpg"));
+		long misses = testCore.getBlockCache().getMisses();
+		long hits = testCore.getBlockCache().getHits();
+		assertTrue(testCore.exportElement("/folder2/t3.jpg", "test/testMapped.jpg"));
+		assertEquals(misses, testCore.getBlockCache().getMisses());
+		assertTrue(testCore.getBlockCache().getHits() > hits);
+		//The blocks of a removed file must not be read from the cache
+		assertTrue(testCore.deleteFileAtPath("/folder2/t3.jpg"));
+		assertTrue(testCore.importElement("test/ressources/test2/t3.jpg","/t3.jpg"));
+		assertTrue(testCore.exportElement("/t3.jpg", "test/testMapped.jpg"));
+		assertArrayEquals(Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg")), Files.readAllBytes(Paths.get("test/testMapped.jpg")));
+	}
+	
+	//Reading parts of a file, compressed or not
+	@Test
+	public void testReadElement() throws IOException{
+		byte[] original = Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg"));
+		createDiskWithData();
+		ByteBuffer buffer = ByteBuffer.allocate(3000);
+		assertEquals(3000, testCore.readElement("/folder2/t3.jpg", 100000, buffer));
+		assertArrayEquals(Arrays.copyOfRange(original, 100000, 103000), buffer.array());
+		testCore.deleteDisk("test/testDisk.dsk");
+		for (int mode = DiskFormat.ALLOCATION_LINKED; mode <= DiskFormat.ALLOCATION_BLOCK_MAP; mode++){
+			DiskFormat format = new DiskFormat(mode);
+			format.setCompressed(false);
+			assertTrue(testCore.createDisk("test/testDisk.dsk", 8000, format));
+			assertTrue(testCore.importElement("test/ressources/test2/t3.jpg","/t3.jpg"));
+			buffer = ByteBuffer.allocateDirect(3000);
+			assertEquals(3000, testCore.readElement("/t3.jpg", 100500, buffer));
+			buffer.flip();
+			byte[] read = new byte[3000];
+			buffer.get(read);
+			assertArrayEquals(Arrays.copyOfRange(original, 100500, 103500), read);
+			//Only the end of the file is read
+			buffer = ByteBuffer.allocate(3000);
+			assertEquals(35, testCore.readElement("/t3.jpg", original.length - 35, buffer));
+			assertEquals(0, testCore.readElement("/t3.jpg", original.length, buffer));
+		}
+	}
+	
+	@Test
+	public void testStreams() throws IOException{
+		byte[] original = Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg"));
+		for (int mode = DiskFormat.ALLOCATION_LINKED; mode <= DiskFormat.ALLOCATION_BLOCK_MAP; mode++){
+			for (int compressed = 0; compressed < 2; compressed++){
+				testCore.deleteDisk("test/testDisk.dsk");
+				DiskFormat format = new DiskFormat(mode);
+				format.setCompressed(compressed == 1);
+				assertTrue(testCore.createDisk("test/testDisk.dsk", 8000, format));
+				testCore.createFolderAtPath("/", "folder1");
+				//Written by chunks of various sizes
+				OutputStream out = testCore.openWrite("/folder1/t3.jpg");
+				int position = 0;
+				for (int chunk = 1; position < original.length; chunk = chunk * 3){
+					int used = Math.min(chunk, original.length - position);
+					out.write(original, position, used);
+					position = position + used;
+				}
+				out.close();
+				assertArrayEquals(original, readAll(testCore.openRead("/folder1/t3.jpg")));
+				//Replacing the file, the old blocks are freed
+				long used = testCore.getUsedSpace();
+				out = testCore.openWrite("/folder1/t3.jpg");
+				out.write(original, 0, 1000);
+				out.close();
+				assertTrue(testCore.getUsedSpace() < used);
+				assertArrayEquals(Arrays.copyOf(original, 1000), readAll(testCore.openRead("/folder1/t3.jpg")));
+				//Empty file
+				testCore.openWrite("/empty.txt").close();
+				assertEquals(0, readAll(testCore.openRead("/empty.txt")).length);
+				assertNull(testCore.openWrite("/folder1"));
+				assertNull(testCore.openRead("/folder1"));
+			}
+		}
+		//The files are still there once the disk is reopened
+		testCore.closeDisk();
+		testCore.openDisk("test/testDisk.dsk");
+		assertArrayEquals(Arrays.copyOf(original, 1000), readAll(testCore.openRead("/folder1/t3.jpg")));
+	}
+	
+	//Changes of the hierarchy written in the journal, and replayed when the disk is opened
+	@Test
+	public void testJournal() throws IOException{
+		createArborescence();
+		assertTrue(testCore.importElement("test/ressources/test2","/folder1/test2"));
+		//A small change doesn't rewrite the sections of the .dsk file
+		byte[] disk = Files.readAllBytes(Paths.get("test/testDisk.dsk"));
+		long journal = Files.size(Paths.get(MetadataJournal.pathOf("test/testDisk.dsk")));
+		assertTrue(testCore.renameFileAtPath("/file1.txt", "renamed.txt"));
+		assertArrayEquals(disk, Files.readAllBytes(Paths.get("test/testDisk.dsk")));
+		assertTrue(Files.size(Paths.get(MetadataJournal.pathOf("test/testDisk.dsk"))) > journal);
+		assertTrue(testCore.copyElementAtPath("/folder1/test2", "/folder2/copy"));
+		assertTrue(testCore.moveElement("/folder2/subfolder1", "/folder1/moved"));
+		assertTrue(testCore.deleteElementAtPath("/folder2/copy/t3.jpg"));
+		assertTrue(testCore.deleteElementAtPath("/folder2/subfolder2"));
+		OutputStream out = testCore.openWrite("/folder1/test2/t3.jpg");
+		out.write(new byte[5000]);
+		out.close();
+		long free = testCore.getFreeSpace();
+		//Another core opens the disk from the checkpoint and the journal
+		Core other = new Core();
+		assertTrue(other.openDisk("test/testDisk.dsk"));
+		assertEquals(free, other.getFreeSpace());
+		assertEquals(testCore.searchFile("renamed.txt").size(), other.searchFile("renamed.txt").size());
+		assertTrue(other.goTo("/folder1/moved/file300.txt"));
+		assertFalse(other.goTo("/folder2/subfolder2"));
+		assertFalse(other.goTo("/folder2/copy/t3.jpg"));
+		assertArrayEquals(new byte[5000], readAll(other.openRead("/folder1/test2/t3.jpg")));
+		assertArrayEquals(Files.readAllBytes(Paths.get("test/ressources/test2/.DS_Store")), readAll(other.openRead("/folder2/copy/.DS_Store")));
+		other.closeDisk();
+		//The journal is regularly emptied by a checkpoint
+		for (int i = 0; i < 2000; i++){
+			assertTrue(testCore.renameFolderAtPath((i % 2 == 0) ? "/folder2" : "/folderA", (i % 2 == 0) ? "folderA" : "folder2"));
+		}
+		assertTrue(Files.size(Paths.get(MetadataJournal.pathOf("test/testDisk.dsk"))) < 128*1024);
+		assertTrue(other.openDisk("test/testDisk.dsk"));
+		assertTrue(other.goTo("/folder2/copy"));
+		other.closeDisk();
+	}
+
+	//Files scattered in the holes left by removed files, moved to contiguous blocks
+	@Test
+	public void testDefragmentation() throws IOException{
+		byte[] original = Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg"));
+		DiskFormat[] formats = {new DiskFormat(), new DiskFormat(DiskFormat.ALLOCATION_EXTENTS), new DiskFormat(DiskFormat.ALLOCATION_BLOCK_MAP, 4096)};
+		for (DiskFormat format : formats){
+			testCore.deleteDisk("test/testDisk.dsk");
+			assertTrue(testCore.createDisk("test/testDisk.dsk", 8000, format));
+			for (int i = 0; i < 20; i++){
+				assertTrue(testCore.importElement("test/ressources/test1.txt","/file"+i+".txt"));
+			}
+			for (int i = 0; i < 20; i += 2){
+				assertTrue(testCore.deleteFileAtPath("/file"+i+".txt"));
+			}
+			assertTrue(testCore.importElement("test/ressources/test2/t3.jpg","/t3.jpg"));
+			assertTrue(testCore.copyElementAtPath("/t3.jpg","/copy.jpg"));
+			long free = testCore.getFreeSpace();
+			assertTrue(testCore.getFragmentation() > 0);
+			//The budget is smaller than the file, which is still moved since it is the first one
+			assertTrue(testCore.defragment(1) > 1);
+			assertEquals(0, testCore.defragment(Long.MAX_VALUE));
+			assertEquals(0, testCore.getFragmentation(), 0);
+			assertEquals(free, testCore.getFreeSpace());
+			assertArrayEquals(original, readAll(testCore.openRead("/t3.jpg")));
+			//The copy shares the moved blocks, even once the disk is reopened from the journal
+			assertTrue(testCore.deleteFileAtPath("/t3.jpg"));
+			assertTrue(testCore.openDisk("test/testDisk.dsk"));
+			assertArrayEquals(original, readAll(testCore.openRead("/copy.jpg")));
+			assertArrayEquals(Files.readAllBytes(Paths.get("test/ressources/test1.txt")), readAll(testCore.openRead("/file19.txt")));
+			assertEquals(0, testCore.getFragmentation(), 0);
+		}
+	}
+
+	//The defragmentation examining the files little by little, within its budget
+	@Test
+	public void testIncrementalDefragmentation() throws IOException{
+		byte[] original = Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg"));
+		testCore.deleteDisk("test/testDisk.dsk");
+		assertTrue(testCore.createDisk("test/testDisk.dsk", 8000, new DiskFormat(DiskFormat.ALLOCATION_EXTENTS)));
+		for (int i = 0; i < 20; i++){
+			assertTrue(testCore.importElement("test/ressources/test1.txt","/file"+i+".txt"));
+		}
+		for (int i = 0; i < 20; i += 2){
+			assertTrue(testCore.deleteFileAtPath("/file"+i+".txt"));
+		}
+		assertTrue(testCore.importElement("test/ressources/test2/t3.jpg","/t3.jpg"));
+		assertTrue(testCore.copyElementAtPath("/t3.jpg","/copy.jpg"));
+		//A budget of one block only examines one file, nothing is moved until the fragmented file and its copy are found
+		assertEquals(0, testCore.defragment(1));
+		assertEquals(0, testCore.getScannedFragmentation(), 0);
+		long moved = 0;
+		int calls = 1;
+		while (moved == 0 && calls < 30){
+			moved = testCore.defragment(1);
+			calls++;
+		}
+		assertTrue(moved > 1);
+		assertTrue(calls > 10);
+		//The whole disk has been examined, the next calls don't examine it again
+		assertEquals(0, testCore.getScannedFragmentation(), 0);
+		assertEquals(0, testCore.defragment(1));
+		assertEquals(0, testCore.getFragmentation(), 0);
+		assertArrayEquals(original, readAll(testCore.openRead("/copy.jpg")));
+		//Another operation starts the scan again
+		assertTrue(testCore.deleteFileAtPath("/file1.txt"));
+		assertEquals(0, testCore.getScannedFragmentation(), 0);
+		assertEquals(0, testCore.getFragmentation(), 0);
+	}
+
+	//The scan of the defragmentation goes on while the hierarchy is changed between its calls
+	@Test
+	public void testDefragmentationBetweenChanges() throws IOException{
+		byte[] original = Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg"));
+		testCore.deleteDisk("test/testDisk.dsk");
+		DiskFormat format = new DiskFormat();
+		format.setCompressed(false);
+		assertTrue(testCore.createDisk("test/testDisk.dsk", 8000, format));
+		for (int i = 0; i < 60; i++){
+			assertTrue(testCore.importElement("test/ressources/test1.txt","/file"+i+".txt"));
+		}
+		for (int i = 0; i < 60; i += 2){
+			assertTrue(testCore.deleteFileAtPath("/file"+i+".txt"));
+		}
+		assertTrue(testCore.importElement("test/ressources/test2/t3.jpg","/t3.jpg"));
+		assertEquals(0, testCore.getScannedProportion(), 0);
+		long moved = 0;
+		for (int i = 0; i < 20; i++){
+			moved = moved + testCore.defragment(50);
+			if (i == 0){
+				assertTrue(testCore.getScannedProportion() > 0 && testCore.getScannedProportion() < 1);
+				//A file not examined yet is skipped once removed
+				assertTrue(testCore.deleteFileAtPath("/file59.txt"));
+			}
+			assertTrue(testCore.createFolderAtPath("/","folder"+i));
+		}
+		assertTrue(moved > 1);
+		//The disk changed meanwhile, the next calls examine it again
+		assertEquals(0, testCore.getFragmentation(), 0);
+		assertEquals(1, testCore.getScannedProportion(), 0);
+		assertArrayEquals(original, readAll(testCore.openRead("/t3.jpg")));
+		//A file removed after being found fragmented isn't moved
+		for (int i = 0; i < 60; i++){
+			assertTrue(testCore.importElement("test/ressources/test1.txt","/folder0/file"+i+".txt"));
+		}
+		for (int i = 0; i < 60; i += 2){
+			assertTrue(testCore.deleteFileAtPath("/folder0/file"+i+".txt"));
+		}
+		assertTrue(testCore.importElement("test/ressources/test2/t3.jpg","/t3b.jpg"));
+		assertTrue(testCore.getFragmentation() > 0);
+		assertTrue(testCore.deleteFileAtPath("/t3b.jpg"));
+		assertEquals(0, testCore.defragment(Long.MAX_VALUE));
+		assertEquals(0, testCore.getFragmentation(), 0);
+	}
+
+	@Test
+	public void testResize() throws IOException{
+		byte[] original = Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg"));
+		byte[] text = Files.readAllBytes(Paths.get("test/ressources/test1.txt"));
+		DiskFormat[] formats = {new DiskFormat(), new DiskFormat(DiskFormat.ALLOCATION_EXTENTS), new DiskFormat(DiskFormat.ALLOCATION_BLOCK_MAP, 4096)};
+		for (DiskFormat format : formats){
+			testCore.deleteDisk("test/testDisk.dsk");
+			assertTrue(testCore.createDisk("test/testDisk.dsk", 700, format));
+			assertTrue(testCore.importElement("test/ressources/test2/t3.jpg","/t3.jpg"));
+			for (int i = 0; i < 10; i++){
+				assertTrue(testCore.importElement("test/ressources/test1.txt","/file"+i+".txt"));
+			}
+			assertTrue(testCore.copyElementAtPath("/file9.txt","/copy.txt"));
+			//The small files are at the end of the disk, they are moved to the blocks of the removed image
+			assertTrue(testCore.deleteFileAtPath("/t3.jpg"));
+			long used = testCore.getTotalSpace() - testCore.getFreeSpace();
+			assertTrue(testCore.resizeDisk(200));
+			assertEquals(200*1024, testCore.getTotalSpace(), format.getBlockSize());
+			assertEquals(used, testCore.getTotalSpace() - testCore.getFreeSpace());
+			assertArrayEquals(text, readAll(testCore.openRead("/copy.txt")));
+			assertTrue(testCore.openDisk("test/testDisk.dsk"));
+			assertEquals(200*1024, testCore.getTotalSpace(), format.getBlockSize());
+			for (int i = 0; i < 10; i++){
+				assertArrayEquals(text, readAll(testCore.openRead("/file"+i+".txt")));
+			}
+			//The image doesn't fit anymore, until the disk grows again
+			assertFalse(testCore.resizeDisk(5));
+			assertEquals(200*1024, testCore.getTotalSpace(), format.getBlockSize());
+			assertTrue(testCore.openDisk("test/testDisk.dsk", true));
+			assertTrue(testCore.resizeDisk(2000));
+			assertEquals(2000*1024, testCore.getTotalSpace(), format.getBlockSize());
+			assertTrue(testCore.importElement("test/ressources/test2/t3.jpg","/t3.jpg"));
+			assertTrue(testCore.openDisk("test/testDisk.dsk"));
+			assertEquals(2000*1024, testCore.getTotalSpace(), format.getBlockSize());
+			assertArrayEquals(original, readAll(testCore.openRead("/t3.jpg")));
+			assertArrayEquals(text, readAll(testCore.openRead("/copy.txt")));
+		}
+	}
+
+	//Operations interrupted by a crash are lost as a whole, interrupted checkpoints are completed when the disk is opened
+	@Test
+	public void testCrashRecovery() throws Exception{
+		createDiskWithData();
+		long free = testCore.getFreeSpace();
+		testCore.closeDisk();
+		//Blocks written by an operation whose record never reached the journal
+		CoreIO cio = new CoreIO("test/testDisk.dsk");
+		cio.loadHierarchyTreeFromFile();
+		cio.writeToDisk(new java.io.File("test/ressources/test2/t3.jpg"));
+		cio.close();
+		//And a record partially written
+		java.io.RandomAccessFile journal = new java.io.RandomAccessFile(MetadataJournal.pathOf("test/testDisk.dsk"), "rw");
+		journal.seek(journal.length());
+		journal.writeInt(1000);
+		journal.writeInt(0);
+		journal.write(new byte[100]);
+		journal.close();
+		assertTrue(testCore.openDisk("test/testDisk.dsk"));
+		assertEquals(free, testCore.getFreeSpace());
+		assertTrue(testCore.renameFileAtPath("/file1.txt", "renamed.txt"));
+		//A checkpoint interrupted while the sections were rewritten : its record is the last one of the journal
+		assertTrue(testCore.saveFullHierarchyToFile());
+		testCore.closeDisk();
+		byte[] disk = Files.readAllBytes(Paths.get("test/testDisk.dsk"));
+		long partition = ByteBuffer.wrap(disk, disk.length - 8, 8).getLong();
+		long checkpointId = ByteBuffer.wrap(Files.readAllBytes(Paths.get(MetadataJournal.pathOf("test/testDisk.dsk"))), 4, 8).getLong();
+		ByteBuffer record = ByteBuffer.allocate(4+8+8+disk.length - (int) partition);
+		record.putInt(-1).putLong(checkpointId).putLong(partition).put(disk, (int) partition, disk.length - (int) partition);
+		MetadataJournal metadataJournal = new MetadataJournal("test/testDisk.dsk");
+		metadataJournal.append(checkpointId, record.array());
+		metadataJournal.close();
+		java.io.RandomAccessFile torn = new java.io.RandomAccessFile("test/testDisk.dsk", "rw");
+		torn.setLength(partition + (disk.length - partition) / 2);
+		torn.close();
+		assertTrue(testCore.openDisk("test/testDisk.dsk"));
+		assertArrayEquals(disk, Files.readAllBytes(Paths.get("test/testDisk.dsk")));
+		assertEquals(free, testCore.getFreeSpace());
+		assertArrayEquals(Files.readAllBytes(Paths.get("test/ressources/test1.txt")), readAll(testCore.openRead("/renamed.txt")));
+		assertTrue(testCore.goTo("/folder2/t3.jpg"));
+	}
+
+	//Children of the folders read from the .dsk file only when they are needed
+	@Test
+	public void testLazyLoading() throws Exception{
+		createArborescence();
+		assertTrue(testCore.importElement("test/ressources/test2","/folder1/test2"));
+		assertTrue(testCore.saveFullHierarchyToFile());
+		testCore.closeDisk();
+		CoreIO cio = new CoreIO("test/testDisk.dsk");
+		try {
+			Folder root = (Folder) cio.loadHierarchyTreeFromFile();
+			assertFalse(root.isLoaded());
+			Folder folder1 = (Folder) root.findChild("folder1");
+			Folder folder2 = (Folder) root.findChild("folder2");
+			assertTrue(root.isLoaded());
+			assertFalse(folder1.isLoaded());
+			assertEquals(3, folder2.getChildren().size());
+			assertFalse(folder1.isLoaded());
+			assertFalse(((Folder) folder2.findChild("subfolder2")).isLoaded());
+			//Checking that an element is in a folder follows its ancestors, without reading the folder
+			assertFalse(folder1.hasAsChild(folder2.findChild("subfolder2")));
+			assertTrue(root.hasAsChild(folder2.findChild("subfolder2")));
+			assertFalse(folder1.isLoaded());
+			//The subtree of folder1 is copied as is by a checkpoint, and read from the new version of the hierarchy
+			folder2.addChild(new Folder(null, "new", folder2));
+			cio.saveHierarchyToFile(root);
+			assertFalse(folder1.isLoaded());
+			assertEquals("test2", folder1.getChildren().get(0).getName());
+			assertEquals(4, ((Folder) folder1.findChild("test2")).getChildren().size());
+		} finally {
+			cio.close();
+		}
+		assertTrue(testCore.openDisk("test/testDisk.dsk"));
+		assertTrue(testCore.goTo("/folder2/new"));
+		assertTrue(testCore.goTo("/folder2/subfolder1/file300.txt"));
+		assertArrayEquals(Files.readAllBytes(Paths.get("test/ressources/test2/t3.jpg")), readAll(testCore.openRead("/folder1/test2/t3.jpg")));
+	}
+
+	//Totals of the folders, kept up to date by the operations and saved with the hierarchy
+	@Test
+	public void testFolderTotals() throws Exception{
+		createDiskWithData();
+		assertTrue(testCore.copyElementAtPath("/folder2", "/copy"));
+		assertTrue(testCore.moveElement("/file1.txt", "/copy/moved.txt"));
+		assertTrue(testCore.deleteElementAtPath("/folder2/t3.jpg"));
+		assertTrue(testCore.printDiskUsage("/copy"));
+		assertFalse(testCore.printDiskUsage("/nothing"));
+		assertTrue(testCore.saveFullHierarchyToFile());
+		testCore.closeDisk();
+		CoreIO cio = new CoreIO("test/testDisk.dsk");
+		try {
+			Folder root = (Folder) cio.loadHierarchyTreeFromFile();
+			Folder folder2 = (Folder) root.findChild("folder2");
+			Folder copy = (Folder) root.findChild("copy");
+			assertEquals(folder2.getSubtreeSize() + copy.getSubtreeSize(), root.getSubtreeSize());
+			assertEquals(folder2.getFileCount() + 2, copy.getFileCount());
+			assertFalse(copy.isLoaded());
+			long movedSize = ((File) copy.findChild("moved.txt")).getSize();
+			long imageSize = ((File) copy.findChild("t3.jpg")).getSize();
+			assertEquals(folder2.getSubtreeSize() + movedSize + imageSize, copy.getSubtreeSize());
+			//The same totals as when the whole subtree is browsed
+			long[] totals = browse(root);
+			assertEquals(totals[0], root.getSubtreeSize());
+			assertEquals(totals[1], root.getFileCount());
+		} finally {
+			cio.close();
+		}
+	}
+
+	//Files found through the index of their names, kept up to date by the operations and saved with the hierarchy
+	@Test
+	public void testNameIndex() throws Exception{
+		createDiskWithData();
+		assertEquals(1, testCore.searchFile("T3.JPG").size());
+		assertTrue(testCore.createFolderAtPath("/", "folder1"));
+		assertTrue(testCore.createFileAtPath("/folder1", "t3.jpg"));
+		assertEquals(2, testCore.searchFile("t3.jpg").size());
+		assertTrue(testCore.renameFileAtPath("/folder1/t3.jpg", "other.jpg"));
+		assertEquals(1, testCore.searchFile("t3.jpg").size());
+		assertEquals(1, testCore.searchFile("other.jpg").size());
+		//The files of a moved folder are found at their new path
+		assertTrue(testCore.moveElement("/folder2", "/folder1/moved"));
+		ArrayList<Hierarchy> found = testCore.searchFile("t3.jpg");
+		assertEquals(1, found.size());
+		assertTrue(testCore.getPath(found.get(0)).startsWith(java.io.File.separator + "folder1" + java.io.File.separator + "moved"));
+		assertTrue(testCore.deleteElementAtPath("/folder1/moved/t3.jpg"));
+		assertTrue(testCore.searchFile("t3.jpg").isEmpty());
+		assertTrue(testCore.importElement("test/ressources/test2/t3.jpg", "/folder1/imported.jpg"));
+		assertEquals(1, testCore.searchFile("imported.jpg").size());
+		//The index is read with the hierarchy and follows the changes of the journal
+		testCore.closeDisk();
+		CoreIO cio = new CoreIO("test/testDisk.dsk");
+		try {
+			Folder root = (Folder) cio.loadHierarchyTreeFromFile();
+			NameIndex index = root.getNameIndex();
+			assertNotNull(index);
+			//Only decoded once it is searched
+			assertFalse(index.isLoaded());
+			assertEquals(NameIndex.build(root).size(), index.size());
+			assertTrue(index.find("t3.jpg").isEmpty());
+			assertEquals(1, index.find("Other.jpg").size());
+			assertEquals(1, index.find("imported.jpg").size());
+		} finally {
+			cio.close();
+		}
+		//Once saved at a checkpoint, copied without being decoded, then read from its new place
+		testCore.openDisk("test/testDisk.dsk");
+		assertTrue(testCore.saveFullHierarchyToFile());
+		assertTrue(testCore.saveFullHierarchyToFile());
+		assertEquals(1, testCore.searchFile("other.jpg").size());
+		testCore.closeDisk();
+		assertTrue(testCore.openDisk("test/testDisk.dsk"));
+		assertEquals(1, testCore.searchFile("imported.jpg").size());
+		assertEquals(java.io.File.separator + "folder1" + java.io.File.separator + "other.jpg", testCore.getPath(testCore.searchFile("OTHER.jpg").get(0)));
+	}
+
+	//Moving an element to a folder holding an element with its old name
+	@Test
+	public void testNameIndexMoveCollision() throws Exception{
+		createDiskWithData();
+		assertTrue(testCore.createFolderAtPath("/", "a"));
+		assertTrue(testCore.createFolderAtPath("/", "b"));
+		assertTrue(testCore.createFileAtPath("/a", "x.txt"));
+		assertTrue(testCore.createFileAtPath("/b", "x.txt"));
+		assertTrue(testCore.moveElement("/a/x.txt", "/b/y.txt"));
+		assertEquals(1, testCore.searchFile("x.txt").size());
+		assertEquals(1, testCore.searchFile("y.txt").size());
+		//The same with a folder : the files of the folder already there stay at their path
+		assertTrue(testCore.copyElementAtPath("/folder2", "/b/folder2"));
+		assertTrue(testCore.moveElement("/folder2", "/b/other"));
+		ArrayList<Hierarchy> found = testCore.searchFile("t3.jpg");
+		assertEquals(2, found.size());
+		String separator = java.io.File.separator;
+		assertEquals(separator + "b" + separator + "folder2" + separator + "t3.jpg", testCore.getPath(found.get(0)));
+		assertEquals(separator + "b" + separator + "other" + separator + "t3.jpg", testCore.getPath(found.get(1)));
+		//The journal is replayed in the same order when the disk is reopened, and the index is saved as is
+		testCore.closeDisk();
+		assertTrue(testCore.openDisk("test/testDisk.dsk"));
+		assertEquals(1, testCore.searchFile("x.txt").size());
+		assertEquals(2, testCore.searchFile("t3.jpg").size());
+		assertTrue(testCore.saveFullHierarchyToFile());
+		testCore.closeDisk();
+		assertTrue(testCore.openDisk("test/testDisk.dsk"));
+		assertTrue(testCore.goTo("/b/x.txt"));
+		assertEquals(1, testCore.searchFile("x.txt").size());
+		assertEquals(2, testCore.searchFile("t3.jpg").size());
+	}
+
+	private static long[] browse(Folder folder){
+		long[] totals = {0, 0};
+		for (Hierarchy child : folder.getChildren()){
+			if (child instanceof Folder){
+				long[] childTotals = browse((Folder) child);
+				totals[0] = totals[0] + childTotals[0];
+				totals[1] = totals[1] + childTotals[1];
+			} else {
+				totals[0] = totals[0] + ((File) child).getSize();
+				totals[1] = totals[1] + 1;
+			}
+		}
+		return totals;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException{
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		try {
+			byte[] buff = new byte[777];
+			int used;
+			while ((used = in.read(buff)) > 0){
+				content.write(buff, 0, used);
+			}
+		} finally {
+			in.close();
+		}
+		return content.toByteArray();
+	}
+	
 	//11
 	@Test
 	public void testSearch(){
@@ -292,6 +899,10 @@ public class CoreTest {
 		System.out.println("Test search");
 		assertTrue(testCore.searchFile("truc").equals(new ArrayList<Hierarchy>()));
 		testCore.printSearch("t3.jpg");
+		assertEquals(3, testCore.searchFile("*.png", NameIndex.MATCH_GLOB).size());
+		assertEquals(2, testCore.searchFile("GRAPH", NameIndex.MATCH_PREFIX).size());
+		assertEquals(1, testCore.searchFile("t\\d\\.jpe?g", NameIndex.MATCH_REGEX).size());
+		assertFalse(testCore.printSearch("(", NameIndex.MATCH_REGEX));
 		System.out.println("End of test\n\n");
 	}
 	
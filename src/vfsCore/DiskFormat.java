@@ -0,0 +1,205 @@
+package vfsCore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The DiskFormat gathers the options chosen when a VFS disk is created, and that can't be changed afterwards.
+ * It is stored in the .dsk file by the CoreIO, so that the disk is read with the same options when it is opened again.
+ * By default, we are using the original format of the VFS disks (version 1, with blocks of 1kB followed by their metadata).
+ * The version 2 uses bigger blocks, aligned on the pages of the host file system, and keeps their metadata apart (see DiskGeometry).
+ *
+ */
+public class DiskFormat {
+	/**
+	 * each file is a linked list of 1kB blocks, each block storing the address of the next one
+	 */
+	public static final int ALLOCATION_LINKED = 0;
+	/**
+	 * each file is a short list of contiguous runs of blocks (extents), described in an index block
+	 */
+	public static final int ALLOCATION_EXTENTS = 1;
+	/**
+	 * each file has an inode, mapping each of its blocks to its address on the disk, so that any offset is found without browsing the file
+	 */
+	public static final int ALLOCATION_BLOCK_MAP = 2;
+	/**
+	 * the original layout, blocks of 1kB each followed by 9 bytes of metadata
+	 */
+	public static final int VERSION_1 = 1;
+	/**
+	 * a header, then page-aligned blocks, then the metadata of all the blocks
+	 */
+	public static final int VERSION_2 = 2;
+	/**
+	 * bounds of the size of the blocks of a version 2 disk
+	 */
+	public static final int MIN_BLOCK_SIZE = 4*1024;
+	public static final int MAX_BLOCK_SIZE = 1024*1024;
+	
+	//ATTRIBUTES, CONSTRUCTOR, GETTERS/SETTERS
+	private int allocationMode = ALLOCATION_LINKED;
+	private int version = VERSION_1;
+	private int blockSize = 1024;
+	/**
+	 * true if the files are compressed when they are imported
+	 */
+	private boolean compressed = true;
+	/**
+	 * true if the identical files and blocks are stored only once
+	 */
+	private boolean deduplicated = false;
+	
+	/**
+	 * Constructor, giving the default format
+	 */
+	public DiskFormat() {
+		super();
+	}
+	
+	/**
+	 * Constructor, using a specific allocation mode
+	 * @param allocationMode ALLOCATION_LINKED, ALLOCATION_EXTENTS or ALLOCATION_BLOCK_MAP
+	 */
+	public DiskFormat(int allocationMode) {
+		super();
+		setAllocationMode(allocationMode);
+	}
+	
+	/**
+	 * Constructor, giving a version 2 format with the specified size of blocks
+	 * @param allocationMode ALLOCATION_LINKED, ALLOCATION_EXTENTS or ALLOCATION_BLOCK_MAP
+	 * @param blockSize the size of the blocks in bytes, a power of two between 4kB and 1MB
+	 */
+	public DiskFormat(int allocationMode, int blockSize) {
+		super();
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1){
+			throw new IllegalArgumentException("taille de bloc invalide : "+blockSize);
+		}
+		setAllocationMode(allocationMode);
+		this.version = VERSION_2;
+		this.blockSize = blockSize;
+	}
+	
+	/**
+	 * @return the allocation mode of the files
+	 */
+	public int getAllocationMode() {
+		return allocationMode;
+	}
+	
+	/**
+	 * @param allocationMode the allocation mode to set, ALLOCATION_LINKED, ALLOCATION_EXTENTS or ALLOCATION_BLOCK_MAP
+	 */
+	public void setAllocationMode(int allocationMode) {
+		if (!isAllocationMode(allocationMode)){
+			throw new IllegalArgumentException("mode d'allocation invalide : "+allocationMode);
+		}
+		this.allocationMode = allocationMode;
+	}
+	
+	/**
+	 * @param allocationMode an allocation mode
+	 * @return true if it is ALLOCATION_LINKED, ALLOCATION_EXTENTS or ALLOCATION_BLOCK_MAP
+	 */
+	private static boolean isAllocationMode(int allocationMode) {
+		return allocationMode == ALLOCATION_LINKED || allocationMode == ALLOCATION_EXTENTS || allocationMode == ALLOCATION_BLOCK_MAP;
+	}
+	
+	/**
+	 * @return true if the files are compressed when they are imported
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+	
+	/**
+	 * @param compressed false to store the files as they are, which allows reading any part of a file directly
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+	
+	/**
+	 * @return true if the identical files (and blocks, for the uncompressed files stored as extents or with a block map) are stored only once
+	 */
+	public boolean isDeduplicated() {
+		return deduplicated;
+	}
+	
+	/**
+	 * @param deduplicated true to look for an identical content already stored on the disk before writing a file
+	 */
+	public void setDeduplicated(boolean deduplicated) {
+		this.deduplicated = deduplicated;
+	}
+	
+	/**
+	 * @return the version of the layout of the .dsk file
+	 */
+	public int getVersion() {
+		return version;
+	}
+	
+	/**
+	 * @return the size of the content of a block, in bytes
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+	
+	
+	
+	//-----------------------------//
+	//SAVING AND LOADING THE FORMAT//
+	//-----------------------------//
+	
+	/**
+	 * converts the format to a byte array, to store it in the .dsk file
+	 * @return an array of bytes
+	 * @throws IOException
+	 */
+	public byte[] toBytes() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(allocationMode);
+		out.writeInt(version);
+		out.writeInt(blockSize);
+		out.writeBoolean(compressed);
+		out.writeBoolean(deduplicated);
+		out.close();
+		return baos.toByteArray();
+	}
+	
+	/**
+	 * rebuilds a format from a byte array created by toBytes
+	 * @param formatBytes the bytes of the format
+	 * @return the corresponding format
+	 * @throws IOException
+	 */
+	public static DiskFormat fromBytes(byte[] formatBytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(formatBytes));
+		int allocationMode = in.readInt();
+		if (!isAllocationMode(allocationMode)){
+			in.close();
+			throw new IOException("mode d'allocation invalide : "+allocationMode);
+		}
+		DiskFormat format = new DiskFormat(allocationMode);
+		//Formats saved before the version 2 only contain the allocation mode
+		if (in.available() >= 8){
+			format.version = in.readInt();
+			format.blockSize = in.readInt();
+		}
+		if (in.available() >= 1){
+			format.compressed = in.readBoolean();
+		}
+		if (in.available() >= 1){
+			format.deduplicated = in.readBoolean();
+		}
+		in.close();
+		return format;
+	}
+}
@@ -0,0 +1,172 @@
+package vfsCore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The DiskGeometry describes where the blocks of a VFS disk and their metadata are stored in the .dsk file.
+ * - Version 1 : blocks of 1kB, each one directly followed by its metadata (the address of the next block on 8 bytes, and a dirty byte), from the beginning of the file.
+ * - Version 2 : a header of 4kB, then the blocks, whose size is a multiple of 4kB, so that each of them starts and ends on a page of the host file system.
+ * The metadata of the blocks (only the address of the next block, the used blocks being known thanks to the bitmap) is stored after the last block.
+ * In both cases, the sections of the CoreIO (hierarchy, bitmap...) come after.
+ *
+ */
+public class DiskGeometry {
+	/**
+	 * magic number at the beginning of the header of a version 2 disk ("VFS2")
+	 */
+	private static final int HEADER_MAGIC = 0x56465332;
+	/**
+	 * size of the header of a version 2 disk, a page of the host file system
+	 */
+	public static final int HEADER_SIZE = 4096;
+	/**
+	 * size of the metadata of a block in a version 1 disk
+	 */
+	private static final int INLINE_METADATA = 8+1;
+
+	//ATTRIBUTES, CONSTRUCTOR, GETTERS
+	private int blockSize;
+	private long blockCount;
+	/**
+	 * true if the metadata follows each block (version 1)
+	 */
+	private boolean inlineMetadata;
+	/**
+	 * position of the first block in the .dsk file
+	 */
+	private long dataOffset;
+	/**
+	 * position of the metadata of the first block, for version 2 disks
+	 */
+	private long metadataOffset;
+
+	private DiskGeometry(int blockSize, long blockCount, boolean inlineMetadata) {
+		super();
+		this.blockSize = blockSize;
+		this.blockCount = blockCount;
+		this.inlineMetadata = inlineMetadata;
+		this.dataOffset = inlineMetadata ? 0 : HEADER_SIZE;
+		this.metadataOffset = inlineMetadata ? 0 : dataOffset + blockCount * blockSize;
+	}
+
+	/**
+	 * returns the geometry of a version 1 disk
+	 * @param partitionSize the size of the data partition, stored at the end of the .dsk file
+	 * @return the geometry of the disk
+	 */
+	public static DiskGeometry inline(long partitionSize) {
+		return new DiskGeometry(1024, partitionSize / (1024+INLINE_METADATA), true);
+	}
+
+	/**
+	 * returns the geometry of a version 2 disk
+	 * @param blockSize the size of the blocks, a multiple of 4kB
+	 * @param blockCount the number of blocks
+	 * @return the geometry of the disk
+	 */
+	public static DiskGeometry paged(int blockSize, long blockCount) {
+		return new DiskGeometry(blockSize, blockCount, false);
+	}
+
+	/**
+	 * @return the size of the content of a block, in bytes
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return the number of blocks of the disk
+	 */
+	public long getBlockCount() {
+		return blockCount;
+	}
+
+	/**
+	 * @return true if the metadata of each block directly follows it (version 1)
+	 */
+	public boolean hasInlineMetadata() {
+		return inlineMetadata;
+	}
+
+	/**
+	 * @return the distance between the beginnings of two consecutive blocks in the .dsk file
+	 */
+	public int getStride() {
+		return inlineMetadata ? blockSize + INLINE_METADATA : blockSize;
+	}
+
+	/**
+	 * @return the position of the first block in the .dsk file
+	 */
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	/**
+	 * @param block the address of a block
+	 * @return the position of the content of the block in the .dsk file
+	 */
+	public long blockPosition(long block) {
+		return dataOffset + block * getStride();
+	}
+
+	/**
+	 * @param block the address of a block
+	 * @return the position in the .dsk file of the address of the next block, stored in the metadata of the block
+	 */
+	public long nextPosition(long block) {
+		if (inlineMetadata){
+			return blockPosition(block) + blockSize;
+		}
+		return metadataOffset + block * 8;
+	}
+
+	/**
+	 * @return the end of the blocks and of their metadata, where the sections of the CoreIO begin
+	 */
+	public long getEnd() {
+		if (inlineMetadata){
+			return blockCount * getStride();
+		}
+		return metadataOffset + blockCount * 8;
+	}
+
+
+
+	//-----------------------------//
+	//SAVING AND LOADING THE HEADER//
+	//-----------------------------//
+
+	/**
+	 * converts the geometry to the header of a version 2 disk
+	 * @return the HEADER_SIZE bytes of the header
+	 */
+	public byte[] toHeader() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(HEADER_MAGIC);
+		header.putInt(DiskFormat.VERSION_2);
+		header.putInt(blockSize);
+		header.putLong(blockCount);
+		header.putLong(dataOffset);
+		header.putLong(metadataOffset);
+		return header.array();
+	}
+
+	/**
+	 * rebuilds the geometry of a version 2 disk from its header
+	 * @param headerBytes the bytes of the header
+	 * @return the geometry of the disk
+	 * @throws IOException if the header is invalid
+	 */
+	public static DiskGeometry fromHeader(byte[] headerBytes) throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(headerBytes);
+		if (header.getInt() != HEADER_MAGIC || header.getInt() != DiskFormat.VERSION_2){
+			throw new IOException("en-tête de disque invalide");
+		}
+		int blockSize = header.getInt();
+		long blockCount = header.getLong();
+		return paged(blockSize, blockCount);
+	}
+}
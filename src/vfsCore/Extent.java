@@ -0,0 +1,43 @@
+package vfsCore;
+
+/**
+ * An extent is a run of contiguous blocks on the VFS disk, given by the address of its first block and its number of blocks.
+ * With the ALLOCATION_EXTENTS format, each file is stored as a short list of extents.
+ *
+ */
+public class Extent {
+	private long start;
+	private long length;
+	
+	/**
+	 * Constructor
+	 * @param start the address of the first block
+	 * @param length the number of blocks
+	 */
+	public Extent(long start, long length) {
+		super();
+		this.start = start;
+		this.length = length;
+	}
+	
+	/**
+	 * @return the address of the first block
+	 */
+	public long getStart() {
+		return start;
+	}
+	
+	/**
+	 * @return the number of blocks
+	 */
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * @param length the number of blocks to set
+	 */
+	public void setLength(long length) {
+		this.length = length;
+	}
+}
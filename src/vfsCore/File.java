@@ -14,6 +14,9 @@ public class File extends Hierarchy{
 	private static final long serialVersionUID = 3883703787670770193L;
 	
 	
+	/**
+	 * the address of the file on the disk : its first block, its index block or its inode, depending on the allocation mode of the disk (see DiskFormat)
+	 */
 	private long address=-1;
 	private long size = 0;
 
@@ -53,6 +56,10 @@ public class File extends Hierarchy{
 	 * @param size the size to set
 	 */
 	public void setSize(long size) {
+		if (getParent() != null && !detached){
+			//The totals of the folders containing the file change too
+			getParent().adjustTotals(size - this.size, 0);
+		}
 		this.size = size;
 	}
 	
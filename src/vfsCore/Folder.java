@@ -1,6 +1,11 @@
 package vfsCore;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import vfsCore.exceptions.AlreadyExistException;
@@ -27,6 +32,41 @@ public class Folder extends Hierarchy{
 	 * arraylist of children of a folder element
 	 */
 	private ArrayList<Hierarchy> children = new ArrayList<Hierarchy>();
+	/**
+	 * if the children haven't been read yet, the reader of the hierarchy, and the position and length of the record of the folder (see HierarchyWriter)
+	 */
+	private transient HierarchyReader childrenReader;
+	private transient long childrenPosition;
+	private transient int childrenLength;
+	/**
+	 * the total size of the files of the folder and of its sub-folders, and their number, kept up to date when the content of the folder changes.
+	 * They are unknown for the folders read from an older disk, and computed the first time they are needed.
+	 */
+	private transient long subtreeSize;
+	private transient long fileCount;
+	private transient boolean totalsKnown;
+	/**
+	 * the children indexed by their name folded to a single case (see foldCase), so that a child is found by its name without browsing the others.
+	 * It is built the first time a child is looked for, and built again after the folder is deserialized or its children are read.
+	 */
+	private transient HashMap<String, Hierarchy> childrenByName;
+	/**
+	 * true if two children have the same folded name (only in hierarchies saved before the names were checked), the first one being indexed
+	 */
+	private transient boolean duplicateNames;
+	/**
+	 * for the root of a hierarchy, the cache of the paths resolved from it (see PathCache), told about the changes of the hierarchy by its folders
+	 */
+	private transient PathCache pathCache;
+	/**
+	 * for the root of a hierarchy, the index of the names of its files (see NameIndex), kept up to date by its folders
+	 */
+	private transient NameIndex nameIndex;
+	/**
+	 * for a folder removed from a hierarchy, the paths of its files relative to it, taken from the index of the names,
+	 * so that they are indexed again without browsing the folder when it is added somewhere else (a move)
+	 */
+	private transient List<String> movedFiles;
 	/**
 	 * constructor
 	 * @param children
@@ -38,11 +78,17 @@ public class Folder extends Hierarchy{
 		if (children != null){
 			for(Hierarchy child:children){
 				child.setParent(this);
+				child.detached = false;
 			}
 			this.children = children;
 		} else {
 			this.children = new ArrayList<Hierarchy>();
 		}
+		for(Hierarchy child:this.children){
+			subtreeSize = subtreeSize + sizeOf(child);
+			fileCount = fileCount + filesOf(child);
+		}
+		totalsKnown = true;
 	}
 	
 		//---------------------//
@@ -54,11 +100,22 @@ public class Folder extends Hierarchy{
 		 * @param newChild
 		 */
 		public void addChild(Hierarchy newChild){
+			loadChildren();
 			if (this.children == null){
 				this.children = new ArrayList<Hierarchy>();
 			}
 			newChild.setParent(this);
+			newChild.detached = false;
 			this.children.add(newChild);
+			if (childrenByName != null){
+				indexChild(newChild);
+			}
+			PathCache cache = root().pathCache;
+			if (cache != null){
+				cache.elementAdded();
+			}
+			indexFiles(newChild);
+			adjustTotals(sizeOf(newChild), filesOf(newChild));
 		}
 
 		/**
@@ -69,13 +126,26 @@ public class Folder extends Hierarchy{
 		 * @param child
 		 */
 		public void removeChild(Hierarchy child){
-			this.children.remove(child);
+			loadChildren();
+			if (this.children.remove(child)){
+				child.detached = true;
+				if (childrenByName != null){
+					unindexChild(child, child.getName());
+				}
+				PathCache cache = root().pathCache;
+				if (cache != null){
+					cache.elementRemoved(child);
+				}
+				unindexFiles(child, child.getName());
+				adjustTotals(-sizeOf(child), -filesOf(child));
+			}
 		}
 		
 		/**
 		 * @return the children
 		 */
 		public ArrayList<Hierarchy> getChildren() {
+			loadChildren();
 			return children;
 		}
 
@@ -83,15 +153,384 @@ public class Folder extends Hierarchy{
 		 * @param children the children to set
 		 */
 		public void setChildren(ArrayList<Hierarchy> children) {
+			long oldSize = getSubtreeSize();
+			long oldCount = getFileCount();
+			for(Hierarchy child:this.children){
+				child.detached = true;
+			}
+			childrenReader = null;
+			childrenByName = null;
+			Folder root = root();
+			if (root.pathCache != null){
+				root.pathCache.clear();
+			}
+			if (root.nameIndex != null){
+				root.nameIndex.removeSubtree(pathFromRoot());
+			} else {
+				root.movedFiles = null;
+			}
 			if (children != null){
 				for(Hierarchy child:children){
 					child.setParent(this);
+					child.detached = false;
 				}
 				this.children = children;
 			} else {
 				this.children = new ArrayList<Hierarchy>();
 			}
-			
+			if (root.nameIndex != null){
+				root.nameIndex.addSubtree(pathFromRoot(), this);
+			}
+			long newSize = 0;
+			long newCount = 0;
+			for(Hierarchy child:this.children){
+				newSize = newSize + sizeOf(child);
+				newCount = newCount + filesOf(child);
+			}
+			adjustTotals(newSize - oldSize, newCount - oldCount);
+		}
+
+		//---------------------------------//
+		//KEEPING THE TOTALS OF THE SUBTREE//
+		//---------------------------------//
+
+		/**
+		 * @return the total size of the files of the folder and of all its sub-folders, in bytes
+		 */
+		public long getSubtreeSize(){
+			computeTotals();
+			return subtreeSize;
+		}
+
+		/**
+		 * @return the number of files in the folder and in all its sub-folders
+		 */
+		public long getFileCount(){
+			computeTotals();
+			return fileCount;
+		}
+
+		/**
+		 * sets the totals of the folder, when they are stored with the hierarchy (see HierarchyWriter)
+		 * @param size the total size of the files of the subtree
+		 * @param files the number of files of the subtree
+		 */
+		void setTotals(long size, long files){
+			this.subtreeSize = size;
+			this.fileCount = files;
+			this.totalsKnown = true;
+		}
+
+		/**
+		 * marks the totals of the folder as unknown, for a folder read from a hierarchy which doesn't store them : they will be computed when needed
+		 */
+		void forgetTotals(){
+			this.totalsKnown = false;
+		}
+
+		/**
+		 * adds a change of the content of the folder to its totals and to the totals of all its ancestors
+		 * @param size the difference of the total size
+		 * @param files the difference of the number of files
+		 */
+		void adjustTotals(long size, long files){
+			if (size == 0 && files == 0){return;}
+			for (Folder folder = this; folder != null; folder = folder.detached ? null : folder.getParent()){
+				//A folder whose totals are unknown will compute them from its current content
+				if (folder.totalsKnown){
+					folder.subtreeSize = folder.subtreeSize + size;
+					folder.fileCount = folder.fileCount + files;
+				}
+			}
+		}
+
+		/**
+		 * computes the totals of the folder if they are unknown, from the totals of its sub-folders.
+		 * The sub-folders whose totals are unknown too are browsed with a stack, not recursively.
+		 */
+		private void computeTotals(){
+			if (totalsKnown){return;}
+			Deque<Folder> folders = new ArrayDeque<>();
+			folders.push(this);
+			while (!folders.isEmpty()){
+				Folder folder = folders.peek();
+				boolean ready = true;
+				for(Hierarchy child:folder.getChildren()){
+					if (child instanceof Folder && !((Folder)child).totalsKnown){
+						folders.push((Folder)child);
+						ready = false;
+					}
+				}
+				if (ready){
+					//All the sub-folders know their totals
+					folders.pop();
+					long size = 0;
+					long files = 0;
+					for(Hierarchy child:folder.getChildren()){
+						size = size + sizeOf(child);
+						files = files + filesOf(child);
+					}
+					folder.setTotals(size, files);
+				}
+			}
+		}
+
+		/**
+		 * @param element a child
+		 * @return the total size of the files of the element
+		 */
+		private static long sizeOf(Hierarchy element){
+			return (element instanceof File) ? ((File)element).getSize() : ((Folder)element).getSubtreeSize();
+		}
+
+		/**
+		 * @param element a child
+		 * @return the number of files of the element
+		 */
+		private static long filesOf(Hierarchy element){
+			return (element instanceof File) ? 1 : ((Folder)element).getFileCount();
+		}
+
+		//----------------------------//
+		//FINDING THE CHILDREN BY NAME//
+		//----------------------------//
+
+		/**
+		 * looks for a child by its name, regardless of the case as with String.equalsIgnoreCase
+		 * @param name the name of the child
+		 * @return the child, or null if the folder has no child with this name
+		 */
+		public Hierarchy getChild(String name){
+			loadChildren();
+			if (childrenByName == null){
+				childrenByName = new HashMap<String, Hierarchy>(Math.max(16, this.children.size() * 2));
+				duplicateNames = false;
+				for(Hierarchy child:this.children){
+					indexChild(child);
+				}
+			}
+			return childrenByName.get(foldCase(name));
+		}
+
+		/**
+		 * updates the index of the children once one of them has been renamed (see Hierarchy.setName)
+		 * @param child the renamed child
+		 * @param oldName its previous name
+		 */
+		void renameChild(Hierarchy child, String oldName){
+			if (childrenByName != null){
+				unindexChild(child, oldName);
+				indexChild(child);
+			}
+			PathCache cache = root().pathCache;
+			if (cache != null){
+				cache.elementRemoved(child);
+				cache.elementAdded();
+			}
+			unindexFiles(child, oldName);
+			indexFiles(child);
+		}
+
+		/**
+		 * adds a child to the index, unless another child already has the same name
+		 * @param child the child
+		 */
+		private void indexChild(Hierarchy child){
+			String key = foldCase(child.getName());
+			if (childrenByName.containsKey(key)){
+				duplicateNames = true;
+			} else {
+				childrenByName.put(key, child);
+			}
+		}
+
+		/**
+		 * removes a child from the index, which is no more in the children or has been renamed
+		 * @param child the child
+		 * @param name the name it was indexed with
+		 */
+		private void unindexChild(Hierarchy child, String name){
+			String key = foldCase(name);
+			if (childrenByName.get(key) != child){return;}
+			childrenByName.remove(key);
+			if (duplicateNames){
+				//Another child with the same name takes its place
+				for(Hierarchy other:this.children){
+					if (other != child && foldCase(other.getName()).equals(key)){
+						childrenByName.put(key, other);
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * folds a name to a single case, so that two names are folded the same way if and only if they are equal regardless of the case,
+		 * as with String.equalsIgnoreCase which compares the characters one by one
+		 * @param name the name
+		 * @return the folded name
+		 */
+		static String foldCase(String name){
+			char[] chars = name.toCharArray();
+			for (int i = 0; i < chars.length; i++){
+				chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+			}
+			return new String(chars);
+		}
+
+		//--------------------------//
+		//CACHING THE RESOLVED PATHS//
+		//--------------------------//
+
+		/**
+		 * makes the folder, root of a hierarchy, keep the elements found by findChild in a cache
+		 * @param cache the cache, or null to follow the paths each time
+		 */
+		public void setPathCache(PathCache cache){
+			this.pathCache = cache;
+		}
+
+		/**
+		 * @return the cache of the paths resolved from the folder, or null if it has none
+		 */
+		public PathCache getPathCache(){
+			return pathCache;
+		}
+
+		/**
+		 * @return the root of the hierarchy containing the folder, or the folder itself if it is the root or has been removed from its parent
+		 */
+		private Folder root(){
+			Folder root = this;
+			while (!root.detached && root.getParent() != null){
+				root = root.getParent();
+			}
+			return root;
+		}
+
+		//------------------------------//
+		//INDEXING THE FILES BY THE NAME//
+		//------------------------------//
+
+		/**
+		 * makes the folder, root of a hierarchy, keep an index of the names of its files, which must already contain all of them
+		 * @param index the index, or null to keep none
+		 */
+		public void setNameIndex(NameIndex index){
+			this.nameIndex = index;
+		}
+
+		/**
+		 * @return the index of the names of the files of the folder, or null if it has none
+		 */
+		public NameIndex getNameIndex(){
+			return nameIndex;
+		}
+
+		/**
+		 * @return the path of the folder from the root of its hierarchy, as stored in the index of the names (empty for the root)
+		 */
+		private String pathFromRoot(){
+			StringBuilder path = new StringBuilder();
+			for (Hierarchy element = this; !element.detached && element.getParent() != null; element = element.getParent()){
+				path.insert(0, element.getName()).insert(0, java.io.File.separatorChar);
+			}
+			return path.toString();
+		}
+
+		/**
+		 * adds the files of a child, added or renamed, to the index of the names of the root
+		 * @param child the child
+		 */
+		private void indexFiles(Hierarchy child){
+			Folder root = root();
+			if (root.nameIndex == null){
+				//The files removed from a folder which isn't in an indexed hierarchy aren't known anymore
+				root.movedFiles = null;
+				return;
+			}
+			String path = pathFromRoot() + java.io.File.separatorChar + child.getName();
+			if (child instanceof File){
+				root.nameIndex.addFile(path);
+			} else if (((Folder)child).movedFiles != null){
+				root.nameIndex.restoreSubtree(path, ((Folder)child).movedFiles);
+				((Folder)child).movedFiles = null;
+			} else {
+				root.nameIndex.addSubtree(path, (Folder)child);
+			}
+		}
+
+		/**
+		 * removes the files of a child, removed or renamed, from the index of the names of the root
+		 * @param child the child
+		 * @param name the name of the child in the index
+		 */
+		private void unindexFiles(Hierarchy child, String name){
+			Folder root = root();
+			if (root.nameIndex == null){
+				root.movedFiles = null;
+				return;
+			}
+			String path = pathFromRoot() + java.io.File.separatorChar + name;
+			if (child instanceof File){
+				root.nameIndex.removeFile(path);
+			} else {
+				((Folder)child).movedFiles = root.nameIndex.removeSubtree(path);
+			}
+		}
+
+		//------------------------------//
+		//READING THE CHILDREN ON DEMAND//
+		//------------------------------//
+
+		/**
+		 * marks the children of the folder as not read yet : they will be read from the given record the first time they are needed
+		 * @param reader the reader of the hierarchy
+		 * @param position the position of the record of the folder
+		 * @param length the length of the record
+		 */
+		void setChildrenRecord(HierarchyReader reader, long position, int length){
+			this.childrenReader = reader;
+			this.childrenPosition = position;
+			this.childrenLength = length;
+		}
+
+		/**
+		 * @return true if the children of the folder have been read
+		 */
+		boolean isLoaded(){
+			return childrenReader == null;
+		}
+
+		HierarchyReader getChildrenReader(){
+			return childrenReader;
+		}
+
+		long getChildrenPosition(){
+			return childrenPosition;
+		}
+
+		int getChildrenLength(){
+			return childrenLength;
+		}
+
+		/**
+		 * reads the children of the folder if they haven't been read yet
+		 */
+		private void loadChildren(){
+			if (childrenReader == null){return;}
+			HierarchyReader reader = childrenReader;
+			childrenReader = null;
+			childrenByName = null;
+			try {
+				this.children = reader.readChildren(this, childrenPosition, childrenLength);
+				for(Hierarchy child:this.children){
+					child.detached = false;
+				}
+			} catch (IOException e) {
+				childrenReader = reader;
+				throw new IllegalStateException("lecture de la hiérarchie impossible", e);
+			}
 		}
 
 		
@@ -103,20 +542,34 @@ public class Folder extends Hierarchy{
 		 * @throws fileNotFound 
 		 */
 		public Hierarchy findChild(String path) throws fileNotFound{
+			if (pathCache != null){
+				//The elements already found are kept by the cache
+				return pathCache.find(this, path);
+			}
+			return followPath(path);
+		}
+
+		/**
+		 * follows a path from the folder, one name after the other
+		 * @param path the path, as given to findChild
+		 * @return the element at the given path
+		 * @throws fileNotFound if the path doesn't exist
+		 */
+		Hierarchy followPath(String path) throws fileNotFound{
 			StringTokenizer st  = new StringTokenizer(path, java.io.File.separator);
 			Hierarchy h1 = this;
-			loopOverToken : while(st.hasMoreTokens()){
-				if(h1 instanceof Folder){
-					String currentItem = st.nextToken();
-					for(Hierarchy child : ((Folder)h1).getChildren())
-					{	
-						if(currentItem.equalsIgnoreCase(child.getName())){
-							h1=child;
-							continue loopOverToken;
-						}
-					}
+			while(st.hasMoreTokens()){
+				if(!(h1 instanceof Folder)){
+					//A file has no children
+					throw new fileNotFound("Chemin inexistant");
+				}
+				String currentItem = st.nextToken();
+				//The children are found through the index of their names
+				Hierarchy child = ((Folder)h1).getChild(currentItem);
+				if (child == null){
 					throw new fileNotFound("Chemin inexistant");
 				}
+				h1=child;
 			}
 			return h1;
 		}
@@ -127,11 +580,8 @@ public class Folder extends Hierarchy{
 		 * @throws AlreadyExistException
 		 */
 		public void alreadyExist(String name) throws AlreadyExistException{
-			if (this.children == null){return;}
-			for(Hierarchy element : this.children){
-				if(element.name.equalsIgnoreCase(name)){
-					throw new AlreadyExistException("Attention un fichier ou dossier du meme nom existe deja !");
-				}			
+			if (getChild(name) != null){
+				throw new AlreadyExistException("Attention un fichier ou dossier du meme nom existe deja !");
 			}
 			return;
 		}
@@ -142,14 +592,10 @@ public class Folder extends Hierarchy{
 		 * @return true if potentialChild is in the subfolders of the Hierarchy element
 		 */
 		public boolean hasAsChild(Hierarchy potentialChild){
-			if (this.children == null){return false;}
-			for(Hierarchy element : this.children){
-				if (element.equals(potentialChild)){
+			//The ancestors of the element are followed up to the root, without reading the children of the folders
+			for (Hierarchy element = potentialChild; element != null && !element.detached; element = element.getParent()){
+				if (element.getParent() == this){
 					return true;
-				} else if (element instanceof Folder){
-					if(((Folder)element).hasAsChild(potentialChild)){
-					return true;
-					}
 				}
 			}
 			return false;
@@ -162,12 +608,15 @@ public class Folder extends Hierarchy{
 		 * @throws fileNotFound : exception if path is not found
 		 * @throws BadPathInstanceException : exception is the path is of wrong instance
 		 * @throws AlreadyExistException 
+		 * @return the new folder
 		 */
-		public void createFolderAtPath(String path, String nom) throws fileNotFound, BadPathInstanceException, AlreadyExistException{
+		public Folder createFolderAtPath(String path, String nom) throws fileNotFound, BadPathInstanceException, AlreadyExistException{
 			Hierarchy child = findChild(path);
 			if(child instanceof Folder){
 				((Folder)child).alreadyExist(nom);
-				((Folder)child).addChild(new Folder(null, nom, (Folder)child));
+				Folder created = new Folder(null, nom, (Folder)child);
+				((Folder)child).addChild(created);
+				return created;
 			} else {
 				throw new BadPathInstanceException("Attention vous essayer de creer un dossier dans un fichier !");
 			}
@@ -201,12 +650,15 @@ public class Folder extends Hierarchy{
 		 * @throws fileNotFound : exception if path is not found
 		 * @throws BadPathInstanceException : exception is the path is of wrong instance
 		 * @throws AlreadyExistException 
+		 * @return the new file
 		 */
-		public void createFileAtPath(String path, String nom) throws fileNotFound, BadPathInstanceException, AlreadyExistException{
+		public File createFileAtPath(String path, String nom) throws fileNotFound, BadPathInstanceException, AlreadyExistException{
 			Hierarchy child = findChild(path);
 			if(child instanceof Folder){
 				((Folder)child).alreadyExist(nom);
-				((Folder)child).addChild(new File(nom, (Folder)child));
+				File created = new File(nom, (Folder)child);
+				((Folder)child).addChild(created);
+				return created;
 			} else {
 				throw new BadPathInstanceException("Attention vous creer un ficher");
 			}
@@ -46,6 +46,30 @@ public class FolderTest {
 		f2.addChild(f5);
 		return f1;
 	}
+
+	/**
+	 * a root containing /a/b/c.txt, /a/C.TXT and the empty folder /d, shared by the tests of the structures kept by the root
+	 */
+	static Folder initRoot(){
+		Folder root = new Folder(null, "", null);
+		Folder a = new Folder(null, "a", null);
+		Folder b = new Folder(null, "b", null);
+		b.addChild(new File("c.txt", 1, 10, null));
+		a.addChild(b);
+		a.addChild(new File("C.TXT", 2, 10, null));
+		root.addChild(a);
+		root.addChild(new Folder(null, "d", null));
+		return root;
+	}
+
+	/**
+	 * moves an element as Core.moveElement does, renaming it before it is added to its destination
+	 */
+	static void move(Hierarchy element, Folder destination, String name){
+		element.getParent().removeChild(element);
+		element.setName(name);
+		destination.addChild(element);
+	}
 	
 	//Tests
 	@Test
@@ -103,6 +127,34 @@ public class FolderTest {
 		Folder f1 = initFolder(fi4);
 		assertTrue(f1.hasAsChild(fi4));
 		assertFalse(f1.hasAsChild(fi5));
-	}		
+		assertFalse(fi4.hasAsChild(f1));
+		//Not anymore once removed
+		fi4.getParent().removeChild(fi4);
+		assertFalse(f1.hasAsChild(fi4));
+	}
+
+	@Test
+	public void testChildrenIndex() throws fileNotFound {
+		Folder f1 = initFolder(new File("file4", 6654, 4557678, null));
+		Folder f2 = (Folder) f1.getChild("FOLDER2");
+		assertEquals("folder2", f2.getName());
+		assertNull(f1.getChild("folder4"));
+		//The index follows the renamed and removed children
+		Hierarchy fi1 = f1.getChild("file1");
+		fi1.setName("Renamed.txt");
+		assertNull(f1.getChild("file1"));
+		assertEquals(fi1, f1.findChild("/renamed.TXT"));
+		f1.removeChild(fi1);
+		assertNull(f1.getChild("renamed.txt"));
+		//With two children of the same name, the first one is found, then the other one once it is removed
+		Hierarchy first = f2.getChild("folder4");
+		assertEquals(f2.getChildren().get(1), first);
+		f2.removeChild(first);
+		assertEquals(f2.getChildren().get(1), f2.getChild("Folder4"));
+		//The names are compared as with equalsIgnoreCase
+		f1.addChild(new File("STRASSEİ", 1, 1, f1));
+		assertNotNull(f1.getChild("strasseİ"));
+		assertNotNull(f1.getChild("strassei"));
+	}
 
 }
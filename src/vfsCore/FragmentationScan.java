@@ -0,0 +1,257 @@
+package vfsCore;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The FragmentationScan browses the files of a disk one at a time to measure their fragmentation (see Core.defragment),
+ * so that the defragmentation can read the metadata of the files little by little, within its budget, and resume where the previous call stopped.
+ * The fragmented files found are kept until they are moved, with the copies sharing their blocks.
+ * Once all the files have been browsed, the fragmentation of the disk is known and kept up to date as the files are moved.
+ * The scan goes on when the hierarchy is changed by another operation, it is only outdated : the elements removed meanwhile are skipped,
+ * and a fragmented file is checked again before being moved, the change having maybe removed or replaced it.
+ *
+ */
+class FragmentationScan {
+	/**
+	 * the root of the hierarchy
+	 */
+	private Folder root;
+	/**
+	 * the folders not browsed yet, and the files of the folder being browsed
+	 */
+	private Deque<Folder> folders = new ArrayDeque<>();
+	private Deque<File> files = new ArrayDeque<>();
+	/**
+	 * the copies found so far of the files whose address is shared, by address
+	 */
+	private Map<Long, List<File>> copies = new HashMap<>();
+	/**
+	 * the fragmented files found and not moved yet, by address
+	 */
+	private Map<Long, Candidate> candidates = new HashMap<>();
+	/**
+	 * the numbers of blocks of the files browsed which don't directly follow the previous one, and of blocks following another block of their file
+	 */
+	private long breaks = 0;
+	private long links = 0;
+	/**
+	 * the number of files browsed
+	 */
+	private long measured = 0;
+	/**
+	 * true if the hierarchy has been changed since the scan started, so that its files may not all be browsed
+	 */
+	private boolean outdated = false;
+
+	/**
+	 * Constructor
+	 * @param root the root of the hierarchy
+	 */
+	FragmentationScan(Folder root) {
+		super();
+		this.root = root;
+		folders.push(root);
+	}
+
+	/**
+	 * @return true if all the files have been browsed
+	 */
+	boolean isComplete() {
+		return folders.isEmpty() && files.isEmpty();
+	}
+
+	/**
+	 * @return true if some fragmented files found haven't been moved yet
+	 */
+	boolean hasCandidates() {
+		return !candidates.isEmpty();
+	}
+
+	/**
+	 * @return true if the hierarchy has been changed since the scan started
+	 */
+	boolean isOutdated() {
+		return outdated;
+	}
+
+	/**
+	 * tells the scan that the hierarchy has been changed by another operation
+	 */
+	void outdate() {
+		outdated = true;
+	}
+
+	/**
+	 * @return the number of files browsed so far
+	 */
+	long getMeasured() {
+		return measured;
+	}
+
+	/**
+	 * @return the fragmentation of the files browsed, between 0 (the content of each file is contiguous) and 1
+	 */
+	double getScore() {
+		return (links == 0) ? 0 : (double) breaks / links;
+	}
+
+	/**
+	 * measures the fragmentation of the next file. The children of the folders are read as they are browsed.
+	 * @param cio the CoreIO of the disk
+	 * @return the number of blocks of the file, which is the number of blocks whose metadata has been read, at least 1
+	 * @throws IOException
+	 */
+	long scanNext(CoreIO cio) throws IOException {
+		File file = null;
+		while (file == null){
+			while (files.isEmpty() && !folders.isEmpty()){
+				Folder folder = folders.pop();
+				if (!isAttached(folder)){
+					//Removed since it was found
+					continue;
+				}
+				for (Hierarchy child : folder.getChildren()){
+					if (child instanceof Folder){
+						folders.push((Folder) child);
+					} else if (((File) child).getAddress() >= 0){
+						files.add((File) child);
+					} else {
+						measured++;
+					}
+				}
+			}
+			if (files.isEmpty()){
+				return 0;
+			}
+			file = files.poll();
+			if (!isAttached(file)){
+				file = null;
+			}
+		}
+		measured++;
+		long address = file.getAddress();
+		long references = cio.getReferences().getReferenceCount(address);
+		List<File> shared = copies.get(address);
+		if (shared != null){
+			//The content of the file has already been measured with another copy
+			shared.add(file);
+			return 1;
+		}
+		shared = new ArrayList<>();
+		shared.add(file);
+		if (references > 1){
+			copies.put(address, shared);
+		}
+		List<Extent> runs = cio.getRunsOfFile(address);
+		long blocks = 0;
+		for (Extent run : runs){
+			blocks = blocks + run.getLength();
+		}
+		if (blocks > 1){
+			breaks = breaks + runs.size() - 1;
+			links = links + blocks - 1;
+		}
+		if (runs.size() > 1){
+			candidates.put(address, new Candidate(address, runs.size(), blocks, references, shared));
+		}
+		return Math.max(1, blocks);
+	}
+
+	/**
+	 * finds the most fragmented file which can be moved : all its copies must have been found, to be moved with it
+	 * @param maxBlocks the maximum number of blocks of the file
+	 * @return the file, or null if there is none
+	 */
+	Candidate nextCandidate(long maxBlocks) {
+		Candidate best = null;
+		for (Candidate candidate : candidates.values()){
+			boolean ready = isComplete() || candidate.copies.size() >= candidate.references;
+			if (ready && candidate.blocks <= maxBlocks && (best == null || candidate.fragments > best.fragments)){
+				best = candidate;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * checks that a fragmented file found by the scan can still be moved, after the changes of the hierarchy :
+	 * the copies removed or whose content has been replaced are forgotten, and the remaining ones must be all the files sharing the blocks
+	 * @param candidate the file
+	 * @param references the numbers of references to the blocks of the disk
+	 * @return true if the file and its remaining copies can be moved
+	 */
+	boolean isValid(Candidate candidate, BlockReferences references) {
+		Iterator<File> copies = candidate.copies.iterator();
+		while (copies.hasNext()){
+			File copy = copies.next();
+			if (copy.getAddress() != candidate.address || !isAttached(copy)){
+				copies.remove();
+			}
+		}
+		return !candidate.copies.isEmpty() && candidate.copies.size() == references.getReferenceCount(candidate.address);
+	}
+
+	/**
+	 * @param element an element found by the scan
+	 * @return true if the element is still in the hierarchy
+	 */
+	private boolean isAttached(Hierarchy element) {
+		for (Hierarchy current = element; current != root; current = current.getParent()){
+			if (current == null || current.detached){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * forgets a fragmented file, once it has been moved to contiguous blocks or if it can't be moved
+	 * @param candidate the file
+	 * @param moved true if the file has been moved, its content being now contiguous
+	 */
+	void done(Candidate candidate, boolean moved) {
+		candidates.remove(candidate.address);
+		copies.remove(candidate.address);
+		if (moved){
+			breaks = breaks - (candidate.fragments - 1);
+		}
+	}
+
+	/**
+	 * a fragmented file, with its copies
+	 */
+	static class Candidate {
+		private long address;
+		private int fragments;
+		private long blocks;
+		private long references;
+		private List<File> copies;
+
+		private Candidate(long address, int fragments, long blocks, long references, List<File> copies) {
+			this.address = address;
+			this.fragments = fragments;
+			this.blocks = blocks;
+			this.references = references;
+			this.copies = copies;
+		}
+
+		long getAddress() {
+			return address;
+		}
+
+		long getBlocks() {
+			return blocks;
+		}
+
+		List<File> getCopies() {
+			return copies;
+		}
+	}
+}
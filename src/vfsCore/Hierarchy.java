@@ -30,6 +30,10 @@ public abstract class Hierarchy implements Serializable, Visitable {
 	 * the parent
 	 */
 	private Folder parent; 
+	/**
+	 * true if the element has a parent but isn't one of its children, not added yet or removed, so that the parent doesn't count it in its totals (see Folder.adjustTotals)
+	 */
+	transient boolean detached;
 	
 
 	/**
@@ -48,6 +52,7 @@ public abstract class Hierarchy implements Serializable, Visitable {
 		super();
 		this.name = name;
 		this.parent=parent;
+		this.detached = (parent != null);
 	}
 	/**
 	 * @return the name
@@ -59,7 +64,12 @@ public abstract class Hierarchy implements Serializable, Visitable {
 	 * @param name the name to set
 	 */
 	public void setName(String name) {
+		String oldName = this.name;
 		this.name = name;
+		if (parent != null && !detached){
+			//The parent finds its children by their name
+			parent.renameChild(this, oldName);
+		}
 	}
 	/**
 	 * @return the parent
@@ -0,0 +1,304 @@
+package vfsCore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A HierarchyChange is an operation on the hierarchy of a VFS disk, stored as a record of the journal of the disk (see MetadataJournal)
+ * and applied again on the last saved version of the hierarchy when the disk is opened.
+ * The elements are designated by their path from the root, as the list of the names of their ancestors, so the changes must be applied in the order they were made.
+ * - ADDED : an element, and all its content for a folder, is added to a folder,
+ * - REMOVED : an element is removed from its folder, with all its content,
+ * - MOVED : an element is moved to another folder and/or renamed,
+ * - UPDATED : the content of a file has been replaced, its address and size change,
+ * - RELOCATED : the content of a file has been moved by the defragmentation, the file and all its copies get a new address.
+ *
+ */
+public class HierarchyChange {
+	public static final int ADDED = 0;
+	public static final int REMOVED = 1;
+	public static final int MOVED = 2;
+	public static final int UPDATED = 3;
+	public static final int RELOCATED = 4;
+
+	//ATTRIBUTES, CONSTRUCTOR
+	private int type;
+	/**
+	 * the path of the element : for an addition, the path of the folder receiving it
+	 */
+	private List<String> path;
+	/**
+	 * the added element
+	 */
+	private Hierarchy element;
+	/**
+	 * the new folder and the new name of a moved element
+	 */
+	private List<String> destination;
+	private String name;
+	/**
+	 * the new content of an updated file
+	 */
+	private long address;
+	private long size;
+	/**
+	 * the paths of the copies of a relocated file, sharing its new address
+	 */
+	private List<List<String>> copies;
+
+	private HierarchyChange(int type, List<String> path) {
+		super();
+		this.type = type;
+		this.path = path;
+	}
+
+	/**
+	 * @param element an element which has just been added to its folder
+	 * @return the corresponding change
+	 */
+	public static HierarchyChange added(Hierarchy element) {
+		HierarchyChange change = new HierarchyChange(ADDED, pathOf(element.getParent()));
+		change.element = element;
+		return change;
+	}
+
+	/**
+	 * @param path the path of an element, taken before it was removed
+	 * @return the corresponding change
+	 */
+	public static HierarchyChange removed(List<String> path) {
+		return new HierarchyChange(REMOVED, path);
+	}
+
+	/**
+	 * @param path the path of an element, taken before it was moved or renamed
+	 * @param element the element, in its new folder and with its new name
+	 * @return the corresponding change
+	 */
+	public static HierarchyChange moved(List<String> path, Hierarchy element) {
+		HierarchyChange change = new HierarchyChange(MOVED, path);
+		change.destination = pathOf(element.getParent());
+		change.name = element.getName();
+		return change;
+	}
+
+	/**
+	 * @param file a file whose content has just been replaced
+	 * @return the corresponding change
+	 */
+	public static HierarchyChange updated(File file) {
+		HierarchyChange change = new HierarchyChange(UPDATED, pathOf(file));
+		change.address = file.getAddress();
+		change.size = file.getSize();
+		return change;
+	}
+
+	/**
+	 * @param files a file whose content has just been moved, and all its copies
+	 * @return the corresponding change
+	 */
+	public static HierarchyChange relocated(List<File> files) {
+		HierarchyChange change = new HierarchyChange(RELOCATED, pathOf(files.get(0)));
+		change.address = files.get(0).getAddress();
+		change.copies = new ArrayList<>();
+		for (File copy : files.subList(1, files.size())){
+			change.copies.add(pathOf(copy));
+		}
+		return change;
+	}
+
+	/**
+	 * @param element an element of the hierarchy
+	 * @return the names of the ancestors of the element, from the root (excluded) to the element itself
+	 */
+	public static List<String> pathOf(Hierarchy element) {
+		List<String> path = new ArrayList<>();
+		for (Hierarchy current = element; current.getParent() != null; current = current.getParent()){
+			path.add(current.getName());
+		}
+		Collections.reverse(path);
+		return path;
+	}
+
+	/**
+	 * @return the type of the change
+	 */
+	public int getType() {
+		return type;
+	}
+
+
+
+	//-------------------------------------//
+	//WRITING, READING AND APPLYING CHANGES//
+	//-------------------------------------//
+
+	/**
+	 * writes the change in a record of the journal
+	 * @param out the output stream
+	 * @param cio the CoreIO of the disk, converting the added elements to bytes
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out, CoreIO cio) throws IOException {
+		out.writeByte(type);
+		writePath(out, path);
+		switch (type){
+		case ADDED:
+			//Only the added element and its content are converted, not its ancestors
+			byte[] elementBytes = cio.getHierarchyBytes(element);
+			out.writeInt(elementBytes.length);
+			out.write(elementBytes);
+			break;
+		case MOVED:
+			writePath(out, destination);
+			out.writeUTF(name);
+			break;
+		case UPDATED:
+			out.writeLong(address);
+			out.writeLong(size);
+			break;
+		case RELOCATED:
+			out.writeLong(address);
+			out.writeInt(copies.size());
+			for (List<String> copy : copies){
+				writePath(out, copy);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * reads a change written by write
+	 * @param in the input stream
+	 * @param cio the CoreIO of the disk, converting the bytes of the added elements
+	 * @return the change
+	 * @throws IOException if the record is invalid
+	 */
+	public static HierarchyChange read(DataInputStream in, CoreIO cio) throws IOException {
+		HierarchyChange change = new HierarchyChange(in.readByte(), readPath(in));
+		switch (change.type){
+		case ADDED:
+			byte[] elementBytes = new byte[in.readInt()];
+			in.readFully(elementBytes);
+			try {
+				change.element = cio.getHierarchyFromBytes(elementBytes);
+			} catch (ClassNotFoundException e) {
+				throw new IOException("journal invalide", e);
+			}
+			break;
+		case REMOVED:
+			break;
+		case MOVED:
+			change.destination = readPath(in);
+			change.name = in.readUTF();
+			break;
+		case UPDATED:
+			change.address = in.readLong();
+			change.size = in.readLong();
+			break;
+		case RELOCATED:
+			change.address = in.readLong();
+			int count = in.readInt();
+			change.copies = new ArrayList<>(count);
+			for (int i = 0; i < count; i++){
+				change.copies.add(readPath(in));
+			}
+			break;
+		default:
+			throw new IOException("journal invalide");
+		}
+		return change;
+	}
+
+	/**
+	 * applies the change to the hierarchy, when the journal is replayed
+	 * @param root the root of the hierarchy
+	 * @throws IOException if the hierarchy doesn't contain the elements of the change
+	 */
+	public void apply(Folder root) throws IOException {
+		Hierarchy target = resolve(root, path);
+		if (type != ADDED && target == root){
+			throw new IOException("journal invalide");
+		}
+		switch (type){
+		case ADDED:
+			if (!(target instanceof Folder)){
+				throw new IOException("journal invalide");
+			}
+			((Folder)target).addChild(element);
+			break;
+		case REMOVED:
+			target.getParent().removeChild(target);
+			break;
+		case MOVED:
+			Hierarchy newParent = resolve(root, destination);
+			if (!(newParent instanceof Folder)){
+				throw new IOException("journal invalide");
+			}
+			target.getParent().removeChild(target);
+			//As in Core.moveElement, the element is renamed before it is added
+			target.setName(name);
+			((Folder)newParent).addChild(target);
+			break;
+		case UPDATED:
+			if (!(target instanceof File)){
+				throw new IOException("journal invalide");
+			}
+			((File)target).setAddress(address);
+			((File)target).setSize(size);
+			break;
+		case RELOCATED:
+			List<Hierarchy> files = new ArrayList<>();
+			files.add(target);
+			for (List<String> copy : copies){
+				files.add(resolve(root, copy));
+			}
+			for (Hierarchy file : files){
+				if (!(file instanceof File)){
+					throw new IOException("journal invalide");
+				}
+				((File)file).setAddress(address);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * follows a path from the root, the names being compared regardless of the case as in Folder.getChild
+	 * @param root the root of the hierarchy
+	 * @param path the names of the ancestors of the element
+	 * @return the element
+	 * @throws IOException if the path doesn't exist
+	 */
+	private static Hierarchy resolve(Folder root, List<String> path) throws IOException {
+		Hierarchy current = root;
+		for (String name : path){
+			Hierarchy child = (current instanceof Folder) ? ((Folder)current).getChild(name) : null;
+			if (child == null){
+				throw new IOException("journal invalide");
+			}
+			current = child;
+		}
+		return current;
+	}
+
+	private static void writePath(DataOutputStream out, List<String> path) throws IOException {
+		out.writeInt(path.size());
+		for (String name : path){
+			out.writeUTF(name);
+		}
+	}
+
+	private static List<String> readPath(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> path = new ArrayList<>(count);
+		for (int i = 0; i < count; i++){
+			path.add(in.readUTF());
+		}
+		return path;
+	}
+}
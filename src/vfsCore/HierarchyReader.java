@@ -0,0 +1,281 @@
+package vfsCore;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+
+/**
+ * The HierarchyReader decodes a hierarchy encoded by a HierarchyWriter (see this class for the format).
+ * Only the top element is read at first : the children of a folder are read the first time they are needed (see Folder.getChildren),
+ * from the bytes of the hierarchy, either in memory or in the .dsk file.
+ * The hierarchies of the version 1 of the format are completely read at once, with a stack of the folders whose children are still being read.
+ * The folders of the version 2 don't store their totals, which are computed when needed.
+ *
+ */
+public class HierarchyReader {
+	/**
+	 * size of the header : the magic number, the version and the length of the entry of the top element
+	 */
+	public static final int HEADER_SIZE = 4+1+4;
+
+	/**
+	 * the encoded hierarchy, if it is in memory
+	 */
+	private byte[] bytes;
+	/**
+	 * else the storage containing it (the .dsk file), its position and its length
+	 */
+	private BlockStorage storage;
+	private long origin;
+	private long length;
+	/**
+	 * the version of the format of the hierarchy, 0 until its header is read
+	 */
+	private int version;
+	/**
+	 * the bytes being decoded
+	 */
+	private ByteBuffer in;
+
+	/**
+	 * Constructor, for a hierarchy in memory
+	 * @param hierarchyBytes the bytes of the encoded hierarchy
+	 */
+	public HierarchyReader(byte[] hierarchyBytes) {
+		super();
+		this.bytes = hierarchyBytes;
+		this.length = hierarchyBytes.length;
+	}
+
+	/**
+	 * Constructor, for a hierarchy stored in the .dsk file, which must not be modified while the children of its folders are read
+	 * @param storage the storage reading the .dsk file
+	 * @param origin the position of the hierarchy in the .dsk file
+	 * @param length the length of the hierarchy
+	 */
+	public HierarchyReader(BlockStorage storage, long origin, long length) {
+		super();
+		this.storage = storage;
+		this.origin = origin;
+		this.length = length;
+	}
+
+	/**
+	 * @param hierarchyBytes the first bytes of a hierarchy
+	 * @return true if they were written by a HierarchyWriter, false for instance for the hierarchies of the disks saved with the Java serialization
+	 */
+	public static boolean isEncoded(byte[] hierarchyBytes) {
+		return hierarchyBytes.length >= 4 && ByteBuffer.wrap(hierarchyBytes).getInt() == HierarchyWriter.MAGIC;
+	}
+
+	/**
+	 * reads the header and the top element of the hierarchy
+	 * @return the top element of the hierarchy, whose children will be read when needed
+	 * @throws IOException if the bytes are not a valid hierarchy, or were written by a newer version of the format
+	 */
+	public Hierarchy read() throws IOException {
+		try {
+			in = readBytes(0, (int) Math.min(length, HEADER_SIZE));
+			if (in.getInt() != HierarchyWriter.MAGIC){
+				throw new IOException("hiérarchie invalide");
+			}
+			version = in.get();
+			if (version == 1){
+				in = readBytes(0, (int) length);
+				in.position(5);
+				return readAll();
+			}
+			if (version != 2 && version != HierarchyWriter.VERSION){
+				throw new IOException("version de hiérarchie inconnue");
+			}
+			int entryLength = in.getInt();
+			in = readBytes(HEADER_SIZE, entryLength);
+			//The position of the record of the top folder is relative to the beginning
+			return readEntry(0, null);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("hiérarchie invalide", e);
+		}
+	}
+
+	/**
+	 * @return the version of the format of the hierarchy
+	 * @throws IOException
+	 */
+	public int getVersion() throws IOException {
+		if (version == 0){
+			//The reader of a hierarchy which has just been saved hasn't read its header
+			version = readBytes(4, 1).get();
+		}
+		return version;
+	}
+
+	/**
+	 * reads the children of a folder, from its record
+	 * @param folder the folder
+	 * @param position the position of the record of the folder
+	 * @param recordLength the length of the record
+	 * @return the children of the folder, the children of its sub-folders being read when needed
+	 * @throws IOException if the record is not valid
+	 */
+	public ArrayList<Hierarchy> readChildren(Folder folder, long position, int recordLength) throws IOException {
+		try {
+			getVersion();
+			in = readBytes(position, recordLength);
+			//The length of the subtree is only needed to copy it
+			in.getInt();
+			long childCount = readVarLong();
+			ArrayList<Hierarchy> children = new ArrayList<>((int) Math.min(childCount, recordLength));
+			for (long i = 0; i < childCount; i++){
+				children.add(readEntry(position, folder));
+			}
+			return children;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("hiérarchie invalide", e);
+		}
+	}
+
+	/**
+	 * reads the record of a folder and the records of all its sub-folders, as they are stored
+	 * @param position the position of the record of the folder
+	 * @return the bytes of the subtree
+	 * @throws IOException
+	 */
+	public byte[] readSubtree(long position) throws IOException {
+		int subtreeLength = readBytes(position, 4).getInt();
+		if (subtreeLength < 4 || position + subtreeLength > length){
+			throw new IOException("hiérarchie invalide");
+		}
+		ByteBuffer subtree = readBytes(position, subtreeLength);
+		byte[] copy = new byte[subtreeLength];
+		subtree.get(copy);
+		return copy;
+	}
+
+	/**
+	 * reads the entry of an element
+	 * @param base the position of the record containing the entry
+	 * @param parent the parent of the element
+	 * @return the element
+	 * @throws IOException if the entry is not valid
+	 */
+	private Hierarchy readEntry(long base, Folder parent) throws IOException {
+		int type = in.get();
+		String name = readName();
+		if (type == HierarchyWriter.TYPE_FOLDER){
+			long position = base + in.getInt();
+			int recordLength = in.getInt();
+			if (recordLength < 4 || position < 0 || position + recordLength > length){
+				throw new IOException("hiérarchie invalide");
+			}
+			Folder folder = new Folder(null, name, parent);
+			folder.setChildrenRecord(this, position, recordLength);
+			if (version >= 3){
+				long size = readVarLong();
+				folder.setTotals(size, readVarLong());
+			} else {
+				folder.forgetTotals();
+			}
+			return folder;
+		} else if (type == HierarchyWriter.TYPE_FILE){
+			long address = readVarLong() - 1;
+			return new File(name, address, readVarLong(), parent);
+		}
+		throw new IOException("hiérarchie invalide");
+	}
+
+	/**
+	 * reads a whole hierarchy of the version 1 of the format
+	 * @return the root of the hierarchy
+	 * @throws IOException if the bytes are not a valid hierarchy
+	 */
+	private Hierarchy readAll() throws IOException {
+		Hierarchy root = null;
+		//The folders whose children are being read, with their number of children left to read
+		Deque<Folder> folders = new ArrayDeque<>();
+		Deque<long[]> remaining = new ArrayDeque<>();
+		do {
+			int type = in.get();
+			String name = readName();
+			Hierarchy element;
+			long childCount = 0;
+			if (type == HierarchyWriter.TYPE_FOLDER){
+				childCount = readVarLong();
+				element = new Folder(new ArrayList<Hierarchy>((int) Math.min(childCount, in.remaining())), name, null);
+			} else if (type == HierarchyWriter.TYPE_FILE){
+				long address = readVarLong() - 1;
+				element = new File(name, address, readVarLong(), null);
+			} else {
+				throw new IOException("hiérarchie invalide");
+			}
+			if (root == null){
+				root = element;
+			} else {
+				folders.peek().addChild(element);
+				remaining.peek()[0]--;
+			}
+			if (childCount > 0){
+				folders.push((Folder) element);
+				remaining.push(new long[]{childCount});
+			}
+			//The folders whose children have all been read are left
+			while (!remaining.isEmpty() && remaining.peek()[0] == 0){
+				folders.pop();
+				remaining.pop();
+			}
+		} while (!folders.isEmpty());
+		return root;
+	}
+
+	/**
+	 * reads a part of the encoded hierarchy
+	 * @param position the position of the part in the hierarchy
+	 * @param count the number of bytes
+	 * @return a buffer containing the bytes
+	 * @throws IOException
+	 */
+	private ByteBuffer readBytes(long position, int count) throws IOException {
+		if (count < 0 || position < 0 || position + count > length){
+			throw new BufferUnderflowException();
+		}
+		if (bytes != null){
+			return ByteBuffer.wrap(bytes, (int) position, count).slice();
+		}
+		byte[] part = new byte[count];
+		storage.read(origin + position, part, 0, count);
+		return ByteBuffer.wrap(part);
+	}
+
+	/**
+	 * reads a name written by the HierarchyWriter
+	 * @return the name
+	 */
+	private String readName() {
+		int nameLength = (int) readVarLong();
+		if (nameLength < 0 || nameLength > in.remaining()){
+			throw new BufferUnderflowException();
+		}
+		String name = new String(in.array(), in.arrayOffset() + in.position(), nameLength, StandardCharsets.UTF_8);
+		in.position(in.position() + nameLength);
+		return name;
+	}
+
+	/**
+	 * reads a positive number written on a variable number of bytes
+	 * @return the number
+	 */
+	private long readVarLong() {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			value = value | ((long)(b & 0x7F) << shift);
+			shift = shift + 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
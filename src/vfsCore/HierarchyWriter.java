@@ -0,0 +1,237 @@
+package vfsCore;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The HierarchyWriter encodes a hierarchy in the binary format stored in the .dsk file, read back by a HierarchyReader.
+ * The format starts with a magic number, a version byte, and the length of the entry of the top element followed by this entry.
+ * The children of each folder are stored in a separate record, so that they can be read only when the folder is browsed :
+ * - a record starts with the length of the subtree of the folder (this record and the records of all its sub-folders) on 4 bytes,
+ * then gives the number of children and their entries,
+ * - an entry gives the type of the element (folder or file) on a byte, its name as the length of its UTF-8 bytes followed by these bytes, then
+ * for a file, its address plus one (so that the address -1 of a file never written is stored on one byte) and its size,
+ * for a folder, the position of its record relative to the record containing the entry (or to the beginning for the top element), and its length, both on 4 bytes,
+ * followed by the total size of the files of its subtree and their number (see Folder.getSubtreeSize), so that they are known without reading the subtree.
+ * The records of the sub-folders directly follow the record of their parent, in the order of the entries, each one followed by its own sub-folders.
+ * As the positions are relative, the subtree of a folder whose children have never been read is copied as is from the previous version of the hierarchy,
+ * if it was written with the same version of the format.
+ * The other numbers are variable-length integers (7 bits per byte, the high bit meaning that another byte follows).
+ * The parents are not stored, they are given by the position of the elements. The tree is browsed with a stack, not recursively.
+ * Version 1 of the format stored the elements in depth-first order, with the children directly after their folder, and can still be read.
+ * Version 2 didn't store the totals of the folders, it can still be read too, the totals being computed when needed.
+ *
+ */
+public class HierarchyWriter {
+	/**
+	 * magic number at the beginning of an encoded hierarchy ("VFSH")
+	 */
+	public static final int MAGIC = 0x56465348;
+	/**
+	 * version of the format, written after the magic number
+	 */
+	public static final int VERSION = 3;
+	/**
+	 * types of the elements
+	 */
+	public static final int TYPE_FOLDER = 0;
+	public static final int TYPE_FILE = 1;
+
+	/**
+	 * the encoded hierarchy, in a buffer growing as needed
+	 */
+	private byte[] buffer = new byte[4096];
+	private int count = 0;
+	/**
+	 * the folders whose subtree has been copied without reading their children, with the new position of their record
+	 */
+	private List<Folder> copiedFolders = new ArrayList<>();
+	private List<Integer> copiedPositions = new ArrayList<>();
+
+	/**
+	 * encodes a hierarchy in a byte array
+	 * @param root the root of the hierarchy, whose parent is ignored
+	 * @return the bytes of the encoded hierarchy
+	 * @throws IOException if the subtree of a folder whose children haven't been read can't be copied
+	 */
+	public static byte[] toBytes(Hierarchy root) throws IOException {
+		return new HierarchyWriter().write(root);
+	}
+
+	/**
+	 * encodes the header and the whole hierarchy
+	 * @param root the root of the hierarchy, whose parent is ignored
+	 * @return the bytes of the encoded hierarchy
+	 * @throws IOException if the subtree of a folder whose children haven't been read can't be copied
+	 */
+	public byte[] write(Hierarchy root) throws IOException {
+		writeInt(MAGIC);
+		writeByte(VERSION);
+		int entryLength = count;
+		writeInt(0);
+		int slot = writeEntry(root);
+		patchInt(entryLength, count - entryLength - 4);
+		if (root instanceof Folder){
+			//The folders whose record is written, and whose sub-folders are left to write
+			Deque<Record> records = new ArrayDeque<>();
+			writeSubtree((Folder) root, slot, 0, records);
+			while (!records.isEmpty()){
+				Record record = records.peek();
+				if (record.next < record.folders.size()){
+					writeSubtree(record.folders.get(record.next), record.slots.get(record.next), record.start, records);
+					record.next++;
+				} else {
+					//The whole subtree of the folder is written
+					patchInt(record.start, count - record.start);
+					records.pop();
+				}
+			}
+		}
+		return Arrays.copyOf(buffer, count);
+	}
+
+	/**
+	 * once the encoded hierarchy is saved, makes the folders whose subtree has been copied read their children from the new version
+	 * @param reader the reader of the saved hierarchy
+	 */
+	public void bindCopiedFolders(HierarchyReader reader) {
+		for (int i = 0; i < copiedFolders.size(); i++){
+			Folder folder = copiedFolders.get(i);
+			folder.setChildrenRecord(reader, copiedPositions.get(i), folder.getChildrenLength());
+		}
+	}
+
+	/**
+	 * the record of a folder, whose sub-folders are being written
+	 */
+	private static class Record {
+		private int start;
+		private List<Folder> folders = new ArrayList<>();
+		private List<Integer> slots = new ArrayList<>();
+		private int next = 0;
+	}
+
+	/**
+	 * writes the record of a folder, or copies its whole subtree if its children haven't been read from the same version of the format, and fills its entry
+	 * @param folder the folder
+	 * @param slot the position of the position and length of the record in the entry of the folder
+	 * @param base the position the position of the record is relative to
+	 * @param records the records whose sub-folders are being written, where the record of the folder is added
+	 * @throws IOException
+	 */
+	private void writeSubtree(Folder folder, int slot, int base, Deque<Record> records) throws IOException {
+		int start = count;
+		patchInt(slot, start - base);
+		if (!folder.isLoaded() && folder.getChildrenReader().getVersion() == VERSION){
+			byte[] subtree = folder.getChildrenReader().readSubtree(folder.getChildrenPosition());
+			ensureCapacity(subtree.length);
+			System.arraycopy(subtree, 0, buffer, count, subtree.length);
+			count = count + subtree.length;
+			patchInt(slot + 4, folder.getChildrenLength());
+			copiedFolders.add(folder);
+			copiedPositions.add(start);
+			return;
+		}
+		Record record = new Record();
+		record.start = start;
+		//The length of the subtree is known once all the sub-folders are written
+		writeInt(0);
+		List<Hierarchy> children = folder.getChildren();
+		writeVarLong(children.size());
+		for (Hierarchy child : children){
+			int childSlot = writeEntry(child);
+			if (child instanceof Folder){
+				record.folders.add((Folder) child);
+				record.slots.add(childSlot);
+			}
+		}
+		patchInt(slot + 4, count - start);
+		records.push(record);
+	}
+
+	/**
+	 * writes the entry of an element
+	 * @param element the element
+	 * @return for a folder, the position of the position and length of its record, to be filled later
+	 */
+	private int writeEntry(Hierarchy element) {
+		if (element instanceof Folder){
+			writeByte(TYPE_FOLDER);
+			writeName(element.getName());
+			int slot = count;
+			writeInt(0);
+			writeInt(0);
+			writeVarLong(((Folder)element).getSubtreeSize());
+			writeVarLong(((Folder)element).getFileCount());
+			return slot;
+		}
+		writeByte(TYPE_FILE);
+		writeName(element.getName());
+		writeVarLong(((File)element).getAddress() + 1);
+		writeVarLong(((File)element).getSize());
+		return -1;
+	}
+
+	/**
+	 * writes a name, as the length of its UTF-8 bytes followed by these bytes
+	 * @param name the name
+	 */
+	private void writeName(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count = count + bytes.length;
+	}
+
+	/**
+	 * writes a positive number on as few bytes as possible, 7 bits at a time from the lowest ones
+	 * @param value the number
+	 */
+	private void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0){
+			buffer[count++] = (byte)((value & 0x7F) | 0x80);
+			value = value >>> 7;
+		}
+		buffer[count++] = (byte) value;
+	}
+
+	private void writeByte(int value) {
+		ensureCapacity(1);
+		buffer[count++] = (byte) value;
+	}
+
+	private void writeInt(int value) {
+		ensureCapacity(4);
+		count = count + 4;
+		patchInt(count - 4, value);
+	}
+
+	/**
+	 * overwrites 4 bytes already written
+	 * @param position the position of the bytes
+	 * @param value the new value
+	 */
+	private void patchInt(int position, int value) {
+		buffer[position] = (byte)(value >>> 24);
+		buffer[position + 1] = (byte)(value >>> 16);
+		buffer[position + 2] = (byte)(value >>> 8);
+		buffer[position + 3] = (byte) value;
+	}
+
+	/**
+	 * grows the buffer if needed
+	 * @param length the number of bytes about to be written
+	 */
+	private void ensureCapacity(int length) {
+		if (count + length > buffer.length){
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+		}
+	}
+}
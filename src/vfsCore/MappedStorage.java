@@ -0,0 +1,103 @@
+package vfsCore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A BlockStorage mapping the data partition of the .dsk file in memory, so that reading or writing a block is a simple memory copy.
+ * The partition is mapped by windows of 64MB, each window being mapped the first time one of its blocks is accessed.
+ * Only the data partition is mapped : the sections stored after it can be rewritten and truncated without invalidating the mapping.
+ * The channel is the one opened by the CoreIO on the .dsk file, it is not closed with the mapping.
+ *
+ */
+public class MappedStorage implements BlockStorage {
+	/**
+	 * size of a mapped window
+	 */
+	private static final long WINDOW_SIZE = 64*1024*1024;
+	
+	private FileChannel channel;
+	/**
+	 * size of the data partition, in bytes
+	 */
+	private long size;
+	private MappedByteBuffer[] windows;
+	
+	/**
+	 * Constructor
+	 * @param channel the channel opened on the .dsk file
+	 * @param size the size of the data partition, in bytes
+	 */
+	public MappedStorage(FileChannel channel, long size) {
+		super();
+		this.channel = channel;
+		this.size = size;
+		this.windows = new MappedByteBuffer[(int)((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+	}
+	
+	/**
+	 * returns a view of the window containing the specified position, positioned on it
+	 * @param position the position in the .dsk file
+	 * @return a buffer sharing the content of the window
+	 * @throws IOException
+	 */
+	private ByteBuffer window(long position) throws IOException {
+		if (position < 0 || position >= size){
+			throw new IOException("position en dehors de la partition");
+		}
+		int index = (int)(position / WINDOW_SIZE);
+		if (windows[index] == null){
+			long start = index * WINDOW_SIZE;
+			windows[index] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, size - start));
+		}
+		//We work on a duplicate, to keep the position of the shared window untouched
+		ByteBuffer view = windows[index].duplicate();
+		view.position((int)(position % WINDOW_SIZE));
+		return view;
+	}
+
+	@Override
+	public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+		//A read can overlap two windows
+		while (length > 0){
+			ByteBuffer view = window(position);
+			int count = Math.min(length, view.remaining());
+			view.get(buffer, offset, count);
+			position = position + count;
+			offset = offset + count;
+			length = length - count;
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0){
+			ByteBuffer view = window(position);
+			int count = Math.min(length, view.remaining());
+			view.put(buffer, offset, count);
+			position = position + count;
+			offset = offset + count;
+			length = length - count;
+		}
+	}
+
+	/**
+	 * forces the modifications of the mapped windows to the .dsk file
+	 */
+	public void sync() {
+		for (MappedByteBuffer window : windows){
+			if (window != null){
+				window.force();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		//Making sure the modifications reach the .dsk file before closing it
+		sync();
+		windows = null;
+	}
+}
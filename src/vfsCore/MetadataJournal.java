@@ -0,0 +1,243 @@
+package vfsCore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The MetadataJournal is an append-only file, next to the .dsk file, where the CoreIO writes the changes of the metadata of the disk
+ * (hierarchy, bitmap, reference counts...) as small records, instead of rewriting all the sections at the end of the .dsk file after each operation.
+ * It starts with a header : a magic number and the identifier of the checkpoint it follows, ie the last complete save of the sections of the .dsk file.
+ * Each record is stored with its length and its checksum (CRC32), so that a record partially written is detected and ignored when the journal is replayed.
+ * When the sections are saved again, the journal is emptied and starts following the new checkpoint.
+ * The records are only durable once sync is called : the CoreIO calls it once per operation, after all its blocks are written, not once per block.
+ *
+ */
+public class MetadataJournal {
+	/**
+	 * magic number at the beginning of the journal ("VFSJ")
+	 */
+	private static final int JOURNAL_MAGIC = 0x5646534A;
+	/**
+	 * size of the header : the magic number and the identifier of the checkpoint
+	 */
+	private static final int HEADER_SIZE = 4+8;
+	/**
+	 * size of the length and of the checksum preceding each record
+	 */
+	private static final int RECORD_HEADER_SIZE = 4+4;
+
+	//ATTRIBUTES, CONSTRUCTOR, GETTERS
+	private String path;
+	/**
+	 * the journal file, opened the first time it is needed
+	 */
+	private RandomAccessFile journalFile;
+	/**
+	 * the identifier of the checkpoint followed by the records of the file, 0 if it is unknown or invalid
+	 */
+	private long checkpointId = 0;
+	/**
+	 * the size of the valid part of the journal, where the next record is appended
+	 */
+	private long size = 0;
+
+	/**
+	 * Constructor
+	 * @param diskName the path of the .dsk file of the disk
+	 */
+	public MetadataJournal(String diskName) {
+		super();
+		this.path = pathOf(diskName);
+	}
+
+	/**
+	 * @param diskName the path of the .dsk file of a disk
+	 * @return the path of its journal
+	 */
+	public static String pathOf(String diskName) {
+		return diskName + ".journal";
+	}
+
+	/**
+	 * @return the size of the journal, in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+
+
+	//-------------------------------//
+	//READING AND WRITING THE RECORDS//
+	//-------------------------------//
+
+	/**
+	 * reads the records written after a checkpoint. The reading stops at the first incomplete or corrupted record, which is dropped with the following bytes.
+	 * @param checkpointId the identifier of the checkpoint saved in the .dsk file
+	 * @return the records, in the order they were written, none if the journal doesn't exist or follows another checkpoint
+	 * @throws IOException
+	 */
+	public List<byte[]> readRecords(long checkpointId) throws IOException {
+		List<byte[]> records = new ArrayList<>();
+		this.checkpointId = 0;
+		this.size = 0;
+		if (checkpointId == 0 || !new File(path).exists()){
+			return records;
+		}
+		RandomAccessFile journal = getJournalFile();
+		long length = journal.length();
+		if (length < HEADER_SIZE){
+			return records;
+		}
+		journal.seek(0);
+		if (journal.readInt() != JOURNAL_MAGIC || journal.readLong() != checkpointId){
+			//The journal was written before the last checkpoint, its changes are already saved
+			return records;
+		}
+		long position = readValidRecords(journal, records);
+		//The invalid end of the journal is dropped, the next records are written after the valid ones
+		if (position < length){
+			journal.setLength(position);
+		}
+		this.checkpointId = checkpointId;
+		this.size = position;
+		return records;
+	}
+
+	/**
+	 * reads the last valid record of the journal, whatever the checkpoint it follows
+	 * @return the record, or null if the journal doesn't exist or has no valid record
+	 * @throws IOException
+	 */
+	public byte[] readLastRecord() throws IOException {
+		if (!new File(path).exists()){
+			return null;
+		}
+		RandomAccessFile journal = getJournalFile();
+		if (journal.length() < HEADER_SIZE){
+			return null;
+		}
+		journal.seek(0);
+		if (journal.readInt() != JOURNAL_MAGIC){
+			return null;
+		}
+		List<byte[]> records = new ArrayList<>();
+		readValidRecords(journal, records);
+		return records.isEmpty() ? null : records.get(records.size() - 1);
+	}
+
+	/**
+	 * reads the records following the header, until the first incomplete or corrupted one
+	 * @param journal the journal file
+	 * @param records the list where the records are added
+	 * @return the position of the end of the last valid record
+	 * @throws IOException
+	 */
+	private long readValidRecords(RandomAccessFile journal, List<byte[]> records) throws IOException {
+		long length = journal.length();
+		long position = HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		while (position + RECORD_HEADER_SIZE <= length){
+			journal.seek(position);
+			int recordLength = journal.readInt();
+			int checksum = journal.readInt();
+			if (recordLength < 0 || position + RECORD_HEADER_SIZE + recordLength > length){
+				break;
+			}
+			byte[] record = new byte[recordLength];
+			journal.readFully(record);
+			crc.reset();
+			crc.update(record);
+			if ((int) crc.getValue() != checksum){
+				break;
+			}
+			records.add(record);
+			position = position + RECORD_HEADER_SIZE + recordLength;
+		}
+		return position;
+	}
+
+	/**
+	 * empties the journal, which now follows a new checkpoint
+	 * @param checkpointId the identifier of the checkpoint saved in the .dsk file
+	 * @throws IOException
+	 */
+	public void reset(long checkpointId) throws IOException {
+		RandomAccessFile journal = getJournalFile();
+		journal.setLength(0);
+		journal.seek(0);
+		journal.write(ByteBuffer.allocate(HEADER_SIZE).putInt(JOURNAL_MAGIC).putLong(checkpointId).array());
+		this.checkpointId = checkpointId;
+		this.size = HEADER_SIZE;
+	}
+
+	/**
+	 * appends a record at the end of the journal, in a single write
+	 * @param checkpointId the identifier of the checkpoint followed by the record. If the journal follows another one, it is emptied first.
+	 * @param record the content of the record
+	 * @throws IOException
+	 */
+	public void append(long checkpointId, byte[] record) throws IOException {
+		if (this.checkpointId != checkpointId){
+			reset(checkpointId);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteBuffer framed = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+		framed.putInt(record.length);
+		framed.putInt((int) crc.getValue());
+		framed.put(record);
+		RandomAccessFile journal = getJournalFile();
+		journal.seek(size);
+		journal.write(framed.array());
+		size = size + framed.capacity();
+	}
+
+	/**
+	 * forces the records appended so far to the storage device, so that they survive a crash
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		if (journalFile != null){
+			journalFile.getChannel().force(true);
+		}
+	}
+
+	/**
+	 * closes the journal file, which will be opened again if the journal is used afterwards
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (journalFile != null){
+			journalFile.close();
+			journalFile = null;
+		}
+	}
+
+	/**
+	 * closes and deletes the journal file
+	 * @throws IOException
+	 */
+	public void delete() throws IOException {
+		close();
+		new File(path).delete();
+		checkpointId = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return the journal file, opened if needed
+	 * @throws IOException
+	 */
+	private RandomAccessFile getJournalFile() throws IOException {
+		if (journalFile == null){
+			journalFile = new RandomAccessFile(path, "rw");
+		}
+		return journalFile;
+	}
+}
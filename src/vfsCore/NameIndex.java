@@ -0,0 +1,623 @@
+package vfsCore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * The NameIndex gives the paths of the files of a VFS disk by their name, so that the files with a given name are found
+ * without browsing the hierarchy (see Core.searchFile). The names are compared regardless of the case, folded as in Folder.getChild.
+ * The index belongs to the root of the hierarchy, and the folders keep it up to date when their children are added, removed or renamed.
+ * The paths are sorted, so that the files of a folder are contiguous : when a folder is renamed or moved, the paths of its files are changed at once.
+ * The names are sorted too, and their reversed names, so that the names starting or ending with a string are found without comparing the other ones.
+ * A regular expression is compared with each distinct name once, not with each file.
+ * It is stored in the .dsk file by the CoreIO with the other sections, so that it isn't built again when the disk is opened.
+ * It is only decoded the first time it is searched, so that the time needed to open a disk doesn't depend on its number of files :
+ * until then, the changes of the hierarchy, those replayed from the journal included, are kept and applied once it is decoded.
+ *
+ */
+public class NameIndex {
+	/**
+	 * the ways to compare the names with the searched string (see find)
+	 */
+	public static final int MATCH_NAME = 0;
+	public static final int MATCH_PREFIX = 1;
+	public static final int MATCH_GLOB = 2;
+	public static final int MATCH_REGEX = 3;
+	/**
+	 * the separator of the names in the paths, as in Folder.findChild
+	 */
+	private static final char SEPARATOR = java.io.File.separatorChar;
+
+	/**
+	 * the paths of the files, by folded path
+	 */
+	private TreeMap<String, String> paths = new TreeMap<>();
+	/**
+	 * the folded paths of the files, by folded name
+	 */
+	private TreeMap<String, TreeSet<String>> byName = new TreeMap<>();
+	/**
+	 * the same folded paths, by reversed folded name
+	 */
+	private TreeMap<String, TreeSet<String>> byReversedName = new TreeMap<>();
+	/**
+	 * if the index hasn't been decoded yet, the storage reading the .dsk file and the position and length of the section of the index, null once it is decoded
+	 */
+	private BlockStorage storage;
+	private long origin;
+	private int length;
+	/**
+	 * the changes followed before the index is decoded, in order
+	 */
+	private List<PendingChange> pending = new ArrayList<>();
+
+	/**
+	 * Constructor, for an empty index
+	 */
+	public NameIndex() {
+		super();
+	}
+
+	/**
+	 * Constructor, for an index stored in the .dsk file, decoded the first time it is needed
+	 * @param storage the storage reading the .dsk file
+	 * @param origin the position of the section of the index
+	 * @param length the length of the section
+	 */
+	NameIndex(BlockStorage storage, long origin, int length) {
+		super();
+		bind(storage, origin, length);
+	}
+
+	/**
+	 * @param name the name of a file
+	 * @return the paths of the files with this name, sorted
+	 */
+	public List<String> find(String name) {
+		load();
+		List<String> found = new ArrayList<>();
+		TreeSet<String> keys = byName.get(Folder.foldCase(name));
+		if (keys != null){
+			for (String key : keys){
+				found.add(paths.get(key));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @param search the searched string
+	 * @param mode how the names are compared with it : MATCH_NAME for the files with this name,
+	 * MATCH_PREFIX for the files whose name starts with it, MATCH_GLOB for a pattern where * stands for any characters and ? for a single one (as "*.txt"),
+	 * MATCH_REGEX for a regular expression matching the whole name. The case is always ignored.
+	 * @return the paths of the matching files, sorted
+	 * @throws java.util.regex.PatternSyntaxException if the regular expression is invalid
+	 */
+	public List<String> find(String search, int mode) {
+		load();
+		switch (mode){
+		case MATCH_PREFIX:
+			return pathsOf(startingWith(byName, Folder.foldCase(search)));
+		case MATCH_GLOB:
+			return findGlob(Folder.foldCase(search));
+		case MATCH_REGEX:
+			return pathsOf(matching(byName, "", Pattern.compile(search, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)));
+		default:
+			return find(search);
+		}
+	}
+
+	/**
+	 * @return the number of files in the index
+	 */
+	public int size() {
+		load();
+		return paths.size();
+	}
+
+	/**
+	 * @param glob a folded glob pattern
+	 * @return the paths of the files whose name matches the pattern
+	 */
+	private List<String> findGlob(String glob) {
+		int first = firstWildcard(glob, 0);
+		if (first < 0){
+			return find(glob);
+		}
+		if (first == glob.length() - 1 && glob.charAt(first) == '*'){
+			//"abc*", the names starting with abc
+			return pathsOf(startingWith(byName, glob.substring(0, first)));
+		}
+		if (first == 0 && glob.charAt(0) == '*' && firstWildcard(glob, 1) < 0){
+			//"*.txt", the names ending with .txt, ie whose reversed name starts with txt.
+			return pathsOf(startingWith(byReversedName, reverse(glob.substring(1))));
+		}
+		//Otherwise only the names starting with the characters before the first wildcard are compared with the pattern
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++){
+			char c = glob.charAt(i);
+			if (c == '*'){
+				regex.append(".*");
+			} else if (c == '?'){
+				regex.append('.');
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return pathsOf(matching(byName, glob.substring(0, first), Pattern.compile(regex.toString(), Pattern.DOTALL)));
+	}
+
+	/**
+	 * @param glob a glob pattern
+	 * @param from the index where the wildcards are looked for
+	 * @return the index of the first * or ? of the pattern after from, or -1 if there is none
+	 */
+	private static int firstWildcard(String glob, int from) {
+		for (int i = from; i < glob.length(); i++){
+			if (glob.charAt(i) == '*' || glob.charAt(i) == '?'){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param names the folded paths by name
+	 * @param prefix the beginning of the names
+	 * @return the folded paths of the names starting with the prefix : the following names aren't browsed
+	 */
+	private static List<TreeSet<String>> startingWith(TreeMap<String, TreeSet<String>> names, String prefix) {
+		List<TreeSet<String>> found = new ArrayList<>();
+		for (Map.Entry<String, TreeSet<String>> entry : names.tailMap(prefix, true).entrySet()){
+			if (!entry.getKey().startsWith(prefix)){
+				break;
+			}
+			found.add(entry.getValue());
+		}
+		return found;
+	}
+
+	/**
+	 * @param names the folded paths by name
+	 * @param prefix the beginning of the names compared with the pattern
+	 * @param pattern the pattern
+	 * @return the folded paths of the names starting with the prefix and matching the pattern
+	 */
+	private static List<TreeSet<String>> matching(TreeMap<String, TreeSet<String>> names, String prefix, Pattern pattern) {
+		List<TreeSet<String>> found = new ArrayList<>();
+		for (Map.Entry<String, TreeSet<String>> entry : names.tailMap(prefix, true).entrySet()){
+			if (!entry.getKey().startsWith(prefix)){
+				break;
+			}
+			if (pattern.matcher(entry.getKey()).matches()){
+				found.add(entry.getValue());
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @param keys sets of folded paths
+	 * @return the corresponding paths, sorted
+	 */
+	private List<String> pathsOf(List<TreeSet<String>> keys) {
+		TreeSet<String> sorted = new TreeSet<>();
+		for (TreeSet<String> set : keys){
+			sorted.addAll(set);
+		}
+		List<String> found = new ArrayList<>(sorted.size());
+		for (String key : sorted){
+			found.add(paths.get(key));
+		}
+		return found;
+	}
+
+	/**
+	 * builds the index of a whole hierarchy, for the disks saved before the index was stored. The tree is browsed with a stack, not recursively.
+	 * @param root the root of the hierarchy
+	 * @return the index
+	 */
+	public static NameIndex build(Folder root) {
+		NameIndex index = new NameIndex();
+		index.addSubtree("", root);
+		return index;
+	}
+
+
+
+	//-----------------------//
+	//FOLLOWING THE HIERARCHY//
+	//-----------------------//
+
+	/**
+	 * adds a file to the index
+	 * @param path the path of the file
+	 */
+	public void addFile(String path) {
+		if (storage != null){
+			pending.add(new PendingChange(PendingChange.FILE_ADDED, path, null));
+		} else {
+			addPath(path);
+		}
+	}
+
+	/**
+	 * adds a path to the decoded index
+	 * @param path the path of the file
+	 */
+	private void addPath(String path) {
+		String key = Folder.foldCase(path);
+		if (paths.put(key, path) == null){
+			String name = nameOf(key);
+			TreeSet<String> keys = byName.get(name);
+			if (keys == null){
+				keys = new TreeSet<>();
+				byName.put(name, keys);
+				byReversedName.put(reverse(name), keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	/**
+	 * removes a file from the index
+	 * @param path the path of the file
+	 */
+	public void removeFile(String path) {
+		if (storage != null){
+			pending.add(new PendingChange(PendingChange.FILE_REMOVED, path, null));
+		} else {
+			removePath(path);
+		}
+	}
+
+	/**
+	 * removes a path from the decoded index
+	 * @param path the path of the file
+	 */
+	private void removePath(String path) {
+		String key = Folder.foldCase(path);
+		if (paths.remove(key) != null){
+			String name = nameOf(key);
+			TreeSet<String> keys = byName.get(name);
+			keys.remove(key);
+			if (keys.isEmpty()){
+				byName.remove(name);
+				byReversedName.remove(reverse(name));
+			}
+		}
+	}
+
+	/**
+	 * adds all the files of a folder to the index
+	 * @param path the path of the folder
+	 * @param folder the folder
+	 */
+	public void addSubtree(String path, Folder folder) {
+		Deque<Folder> folders = new ArrayDeque<>();
+		Deque<String> folderPaths = new ArrayDeque<>();
+		folders.push(folder);
+		folderPaths.push(path);
+		while (!folders.isEmpty()){
+			Folder current = folders.pop();
+			String currentPath = folderPaths.pop();
+			for (Hierarchy child : current.getChildren()){
+				String childPath = currentPath + SEPARATOR + child.getName();
+				if (child instanceof File){
+					addFile(childPath);
+				} else {
+					folders.push((Folder) child);
+					folderPaths.push(childPath);
+				}
+			}
+		}
+	}
+
+	/**
+	 * removes all the files of a folder from the index
+	 * @param path the path of the folder
+	 * @return the paths of the removed files, relative to the folder, to add them again if the folder is only moved.
+	 * If the index hasn't been decoded yet, the list is filled once it is.
+	 */
+	public List<String> removeSubtree(String path) {
+		if (storage != null){
+			List<String> relativePaths = new ArrayList<>();
+			pending.add(new PendingChange(PendingChange.SUBTREE_REMOVED, path, relativePaths));
+			return relativePaths;
+		}
+		return removePaths(path);
+	}
+
+	/**
+	 * removes all the files of a folder from the decoded index
+	 * @param path the path of the folder
+	 * @return the paths of the removed files, relative to the folder
+	 */
+	private List<String> removePaths(String path) {
+		String prefix = Folder.foldCase(path);
+		//The paths starting with the path of the folder and a separator
+		List<String> removed = new ArrayList<>(paths.subMap(prefix + SEPARATOR, prefix + (char)(SEPARATOR + 1)).values());
+		List<String> relativePaths = new ArrayList<>(removed.size());
+		for (String filePath : removed){
+			//The folded path has the same length as the path
+			relativePaths.add(filePath.substring(path.length()));
+			removePath(filePath);
+		}
+		return relativePaths;
+	}
+
+	/**
+	 * adds the files of a folder removed by removeSubtree, once it has been added again
+	 * @param path the new path of the folder
+	 * @param relativePaths the paths of the files relative to the folder
+	 */
+	public void restoreSubtree(String path, List<String> relativePaths) {
+		if (storage != null){
+			pending.add(new PendingChange(PendingChange.SUBTREE_RESTORED, path, relativePaths));
+			return;
+		}
+		for (String relativePath : relativePaths){
+			addPath(path + relativePath);
+		}
+	}
+
+	/**
+	 * @param name a name
+	 * @return the name read backwards
+	 */
+	private static String reverse(String name) {
+		//Char by char, so that a reversed suffix is always the beginning of the reversed name
+		char[] chars = name.toCharArray();
+		for (int i = 0, j = chars.length - 1; i < j; i++, j--){
+			char c = chars[i];
+			chars[i] = chars[j];
+			chars[j] = c;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @param path a path
+	 * @return the last name of the path
+	 */
+	private static String nameOf(String path) {
+		return path.substring(path.lastIndexOf(SEPARATOR) + 1);
+	}
+
+
+
+	//----------------------------//
+	//SAVING AND LOADING THE INDEX//
+	//----------------------------//
+
+	/**
+	 * sets where the index is stored in the .dsk file, once it has been saved again without being decoded
+	 * @param storage the storage reading the .dsk file
+	 * @param origin the position of the section of the index
+	 * @param length the length of the section
+	 */
+	void bind(BlockStorage storage, long origin, int length) {
+		this.storage = storage;
+		this.origin = origin;
+		this.length = length;
+	}
+
+	/**
+	 * @return true if the index has been decoded
+	 */
+	boolean isLoaded() {
+		return storage == null;
+	}
+
+	/**
+	 * decodes the index if it hasn't been decoded yet, then applies the changes followed until then
+	 */
+	private void load() {
+		if (storage == null){return;}
+		try {
+			decode(readSection());
+		} catch (IOException e) {
+			throw new IllegalStateException("lecture de l'index des noms impossible", e);
+		}
+		storage = null;
+		for (PendingChange change : pending){
+			switch (change.type){
+			case PendingChange.FILE_ADDED:
+				addPath(change.path);
+				break;
+			case PendingChange.FILE_REMOVED:
+				removePath(change.path);
+				break;
+			case PendingChange.SUBTREE_REMOVED:
+				change.relativePaths.addAll(removePaths(change.path));
+				break;
+			default:
+				restoreSubtree(change.path, change.relativePaths);
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * @return the bytes of the section of the index
+	 * @throws IOException
+	 */
+	private byte[] readSection() throws IOException {
+		byte[] indexBytes = new byte[length];
+		storage.read(origin, indexBytes, 0, length);
+		return indexBytes;
+	}
+
+	/**
+	 * converts the index to a byte array, to store it in the .dsk file.
+	 * The paths are written in their order as lists of names, each one giving the number of names shared with the previous path followed by the other names.
+	 * Each of these names is written as the number of characters it shares with the name of the previous path at the same level, followed by the other characters,
+	 * since the names of a folder are sorted too. The numbers are written on as few bytes as possible.
+	 * An index never decoded and not changed since it has been read is copied as is.
+	 * @return an array of bytes
+	 * @throws IOException
+	 */
+	public byte[] toBytes() throws IOException {
+		if (storage != null && pending.isEmpty()){
+			return readSection();
+		}
+		load();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeVarLong(out, paths.size());
+		List<String> previous = new ArrayList<>();
+		for (String path : paths.values()){
+			List<String> names = namesOf(path);
+			int shared = 0;
+			while (shared < previous.size() && shared < names.size() - 1 && previous.get(shared).equals(names.get(shared))){
+				shared++;
+			}
+			writeVarLong(out, shared);
+			writeVarLong(out, names.size() - shared);
+			for (int i = shared; i < names.size(); i++){
+				String name = names.get(i);
+				String previousName = (i < previous.size()) ? previous.get(i) : "";
+				int common = 0;
+				while (common < name.length() && common < previousName.length() && name.charAt(common) == previousName.charAt(common)){
+					common++;
+				}
+				writeVarLong(out, common);
+				byte[] suffix = name.substring(common).getBytes(StandardCharsets.UTF_8);
+				writeVarLong(out, suffix.length);
+				out.write(suffix);
+			}
+			previous = names;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * rebuilds an index from a byte array created by toBytes
+	 * @param indexBytes the bytes of the index
+	 * @return the corresponding index
+	 * @throws IOException if the bytes are not a valid index
+	 */
+	public static NameIndex fromBytes(byte[] indexBytes) throws IOException {
+		NameIndex index = new NameIndex();
+		index.decode(indexBytes);
+		return index;
+	}
+
+	/**
+	 * adds the paths of a byte array created by toBytes to the index
+	 * @param indexBytes the bytes of the index
+	 * @throws IOException if the bytes are not a valid index
+	 */
+	private void decode(byte[] indexBytes) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(indexBytes);
+		try {
+			long count = readVarLong(in);
+			List<String> names = new ArrayList<>();
+			for (long i = 0; i < count; i++){
+				long shared = readVarLong(in);
+				long added = readVarLong(in);
+				if (shared > names.size() || added < 1){
+					throw new IOException("index des noms invalide");
+				}
+				List<String> previous = names;
+				names = new ArrayList<>(previous.subList(0, (int) shared));
+				for (int level = (int) shared; level < shared + added; level++){
+					String previousName = (level < previous.size()) ? previous.get(level) : "";
+					int common = (int) readVarLong(in);
+					int length = (int) readVarLong(in);
+					if (common > previousName.length() || length > in.remaining()){
+						throw new IOException("index des noms invalide");
+					}
+					String name = previousName.substring(0, common) + new String(indexBytes, in.position(), length, StandardCharsets.UTF_8);
+					in.position(in.position() + length);
+					names.add(name);
+				}
+				StringBuilder path = new StringBuilder();
+				for (String name : names){
+					path.append(SEPARATOR).append(name);
+				}
+				addPath(path.toString());
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("index des noms invalide", e);
+		}
+	}
+
+	/**
+	 * @param path a path starting with a separator
+	 * @return the names of the path
+	 */
+	private static List<String> namesOf(String path) {
+		List<String> names = new ArrayList<>();
+		int start = 1;
+		for (int end = path.indexOf(SEPARATOR, start); end >= 0; end = path.indexOf(SEPARATOR, start)){
+			names.add(path.substring(start, end));
+			start = end + 1;
+		}
+		names.add(path.substring(start));
+		return names;
+	}
+
+	/**
+	 * writes a positive number on as few bytes as possible, 7 bits at a time from the lowest ones, as the HierarchyWriter
+	 * @param out the stream
+	 * @param value the number
+	 */
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0){
+			out.write((int) ((value & 0x7F) | 0x80));
+			value = value >>> 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * reads a positive number written by writeVarLong
+	 * @param in the bytes
+	 * @return the number
+	 */
+	private static long readVarLong(ByteBuffer in) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			value = value | ((long)(b & 0x7F) << shift);
+			shift = shift + 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * a change followed before the index is decoded
+	 */
+	private static class PendingChange {
+		private static final int FILE_ADDED = 0;
+		private static final int FILE_REMOVED = 1;
+		private static final int SUBTREE_REMOVED = 2;
+		private static final int SUBTREE_RESTORED = 3;
+
+		private int type;
+		private String path;
+		/**
+		 * for the subtrees, the paths of their files relative to them, filled when a removal is applied and read when a restoration is applied
+		 */
+		private List<String> relativePaths;
+
+		private PendingChange(int type, String path, List<String> relativePaths) {
+			this.type = type;
+			this.path = path;
+			this.relativePaths = relativePaths;
+		}
+	}
+}
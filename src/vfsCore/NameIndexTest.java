@@ -0,0 +1,150 @@
+package vfsCore;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import vfsCore.exceptions.fileNotFound;
+
+public class NameIndexTest {
+
+	private static String path(String... names) {
+		StringBuilder path = new StringBuilder();
+		for (String name : names){
+			path.append(java.io.File.separatorChar).append(name);
+		}
+		return path.toString();
+	}
+
+	/**
+	 * the root of FolderTest.initRoot, with an index
+	 */
+	private static Folder createRoot() {
+		Folder root = FolderTest.initRoot();
+		root.setNameIndex(NameIndex.build(root));
+		return root;
+	}
+
+	@Test
+	public void testFollowingTheHierarchy() throws fileNotFound {
+		Folder root = createRoot();
+		NameIndex index = root.getNameIndex();
+		assertEquals(Arrays.asList(path("a", "b", "c.txt"), path("a", "C.TXT")), index.find("c.TXT"));
+		//Renamed and moved folders take their files with them
+		Folder a = (Folder) root.findChild("/a");
+		Folder b = (Folder) root.findChild("/a/b");
+		a.setName("e");
+		a.removeChild(b);
+		((Folder) root.findChild("/d")).addChild(b);
+		b.setName("B");
+		assertEquals(Arrays.asList(path("d", "B", "c.txt"), path("e", "C.TXT")), index.find("c.txt"));
+		root.findChild("/e/c.txt").setName("f");
+		root.removeChild(root.findChild("/d"));
+		assertTrue(index.find("c.txt").isEmpty());
+		assertEquals(Arrays.asList(path("e", "f")), index.find("F"));
+		assertEquals(1, index.size());
+		//Always the same as an index built from the whole hierarchy
+		assertEquals(NameIndex.build(root).find("f"), index.find("f"));
+	}
+
+	@Test
+	public void testMoveOnAnExistingName() throws fileNotFound {
+		Folder root = createRoot();
+		NameIndex index = root.getNameIndex();
+		Folder b = (Folder) root.findChild("/a/b");
+		Folder d = (Folder) root.findChild("/d");
+		//A file moved to a folder holding a file with its old name
+		FolderTest.move(root.findChild("/a/C.TXT"), b, "moved");
+		assertEquals(Arrays.asList(path("a", "b", "c.txt")), index.find("c.txt"));
+		assertEquals(Arrays.asList(path("a", "b", "moved")), index.find("moved"));
+		//A folder moved to a folder holding a folder with its old name
+		Folder other = new Folder(null, "b", null);
+		other.addChild(new File("g", 3, 10, null));
+		d.addChild(other);
+		FolderTest.move(b, d, "b2");
+		assertEquals(Arrays.asList(path("d", "b", "g")), index.find("g"));
+		assertEquals(Arrays.asList(path("d", "b2", "c.txt")), index.find("c.txt"));
+		assertEquals(NameIndex.build(root).size(), index.size());
+	}
+
+	@Test
+	public void testPatterns() {
+		Folder root = createRoot();
+		Folder d = (Folder) root.getChild("d");
+		d.addChild(new File("Report.TXT.gz", 3, 10, null));
+		d.addChild(new File("report.md", 4, 10, null));
+		d.addChild(new File("ctxt", 5, 10, null));
+		NameIndex index = root.getNameIndex();
+		assertEquals(Arrays.asList(path("a", "b", "c.txt"), path("a", "C.TXT")), index.find("C.", NameIndex.MATCH_PREFIX));
+		assertEquals(Arrays.asList(path("d", "report.md"), path("d", "Report.TXT.gz")), index.find("REP", NameIndex.MATCH_PREFIX));
+		assertEquals(5, index.find("", NameIndex.MATCH_PREFIX).size());
+		//"*.txt" is answered from the reversed names
+		assertEquals(Arrays.asList(path("a", "b", "c.txt"), path("a", "C.TXT")), index.find("*.Txt", NameIndex.MATCH_GLOB));
+		assertEquals(Arrays.asList(path("d", "report.md"), path("d", "Report.TXT.gz")), index.find("report*", NameIndex.MATCH_GLOB));
+		assertEquals(Arrays.asList(path("d", "Report.TXT.gz")), index.find("r*.txt.*", NameIndex.MATCH_GLOB));
+		assertEquals(Arrays.asList(path("a", "b", "c.txt"), path("a", "C.TXT")), index.find("?.txt", NameIndex.MATCH_GLOB));
+		assertEquals(Arrays.asList(path("d", "ctxt")), index.find("CTXT", NameIndex.MATCH_GLOB));
+		assertEquals(Arrays.asList(path("d", "report.md"), path("d", "Report.TXT.gz")), index.find("rep.+\\.(md|gz)", NameIndex.MATCH_REGEX));
+		assertEquals(Arrays.asList(path("d", "ctxt")), index.find("[A-Z]+", NameIndex.MATCH_REGEX));
+		//The names removed aren't found anymore
+		d.removeChild(d.getChild("ctxt"));
+		assertEquals(2, index.find("*txt", NameIndex.MATCH_GLOB).size());
+	}
+
+	@Test
+	public void testDecodedWhenNeeded() throws IOException, fileNotFound {
+		Folder root = createRoot();
+		final byte[] indexBytes = root.getNameIndex().toBytes();
+		final int[] reads = {0};
+		BlockStorage storage = new BlockStorage() {
+			@Override
+			public void read(long position, byte[] buffer, int offset, int length) {
+				System.arraycopy(indexBytes, (int) position, buffer, offset, length);
+				reads[0]++;
+			}
+			@Override
+			public void write(long position, byte[] buffer, int offset, int length) {
+			}
+			@Override
+			public void close() {
+			}
+		};
+		NameIndex index = new NameIndex(storage, 0, indexBytes.length);
+		root.setNameIndex(index);
+		//Unchanged, it is copied without being decoded
+		assertArrayEquals(indexBytes, index.toBytes());
+		//The changes are kept until it is decoded
+		FolderTest.move(root.findChild("/a/b"), (Folder) root.findChild("/d"), "e");
+		((Folder) root.findChild("/a")).addChild(new File("g", 3, 10, null));
+		root.findChild("/a/C.TXT").setName("h");
+		assertFalse(index.isLoaded());
+		assertEquals(1, reads[0]);
+		assertEquals(Arrays.asList(path("d", "e", "c.txt")), index.find("c.txt"));
+		assertTrue(index.isLoaded());
+		assertEquals(Arrays.asList(path("a", "h")), index.find("H"));
+		assertEquals(NameIndex.build(root).size(), index.size());
+		//The files of a folder removed before and added after the index is decoded
+		root = createRoot();
+		index = new NameIndex(storage, 0, indexBytes.length);
+		root.setNameIndex(index);
+		Folder b = (Folder) root.findChild("/a/b");
+		b.getParent().removeChild(b);
+		assertEquals(Arrays.asList(path("a", "C.TXT")), index.find("c.txt"));
+		((Folder) root.findChild("/d")).addChild(b);
+		assertEquals(Arrays.asList(path("a", "C.TXT"), path("d", "b", "c.txt")), index.find("c.txt"));
+	}
+
+	@Test
+	public void testBytes() throws IOException {
+		Folder root = createRoot();
+		root.addChild(new File("g", 3, 10, null));
+		NameIndex index = NameIndex.fromBytes(root.getNameIndex().toBytes());
+		assertEquals(3, index.size());
+		assertEquals(Arrays.asList(path("a", "b", "c.txt"), path("a", "C.TXT")), index.find("c.txt"));
+		assertEquals(Arrays.asList(path("g")), index.find("g"));
+		assertEquals(0, NameIndex.fromBytes(new NameIndex().toBytes()).size());
+	}
+}
@@ -0,0 +1,174 @@
+package vfsCore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import vfsCore.exceptions.fileNotFound;
+
+/**
+ * The PathCache remembers the elements found at the paths resolved from the root of a hierarchy (see Folder.findChild),
+ * so that a path resolved again is found at once, without following its names one by one.
+ * The paths which don't exist are remembered too, so that a repeated miss is as fast as a hit.
+ * The paths are compared regardless of the case, as the names of the elements.
+ * The cache is bounded : when it is full, the least recently used path is forgotten.
+ * The folders of the hierarchy tell the cache when their content changes :
+ * - when an element is removed, renamed or moved, the paths leading to it or to an element of its subtree are forgotten,
+ * - when an element is added or renamed, all the missing paths are forgotten, as one of them may now exist.
+ * The numbers of hits and misses are counted, to evaluate the size of the cache.
+ *
+ */
+public class PathCache {
+	/**
+	 * the number of paths kept by default
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * the maximum number of existing paths kept, and of missing paths kept
+	 */
+	private int capacity;
+	/**
+	 * the elements found, by folded path, from the least to the most recently used
+	 */
+	private LinkedHashMap<String, Hierarchy> elements = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * the folded paths which don't exist, from the least to the most recently used
+	 */
+	private LinkedHashMap<String, Boolean> missing = new LinkedHashMap<>(16, 0.75f, true);
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Constructor
+	 * @param capacity the maximum number of paths kept
+	 */
+	public PathCache(int capacity) {
+		super();
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the maximum number of paths kept
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of paths currently kept, existing or not
+	 */
+	public int getSize() {
+		return elements.size() + missing.size();
+	}
+
+	/**
+	 * @return the number of paths found in the cache
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of paths which had to be followed from the root
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+
+
+	//-------------------//
+	//RESOLVING THE PATHS//
+	//-------------------//
+
+	/**
+	 * finds the element at a path, in the cache or else by following the path from the root
+	 * @param root the root of the hierarchy, which owns the cache
+	 * @param path the path, as given to Folder.findChild
+	 * @return the element at the path
+	 * @throws fileNotFound if the path doesn't exist
+	 */
+	public Hierarchy find(Folder root, String path) throws fileNotFound {
+		String key = Folder.foldCase(path);
+		Hierarchy element = elements.get(key);
+		if (element != null){
+			hits++;
+			return element;
+		}
+		if (missing.get(key) != null){
+			hits++;
+			throw new fileNotFound("Chemin inexistant");
+		}
+		misses++;
+		try {
+			element = root.followPath(path);
+		} catch (fileNotFound e) {
+			missing.put(key, Boolean.TRUE);
+			trim(missing);
+			throw e;
+		}
+		elements.put(key, element);
+		trim(elements);
+		return element;
+	}
+
+	/**
+	 * forgets the least recently used paths of a map if it holds too many of them
+	 * @param paths the map
+	 */
+	private void trim(LinkedHashMap<String, ?> paths) {
+		Iterator<String> eldest = paths.keySet().iterator();
+		while (paths.size() > capacity){
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+
+
+	//---------------------//
+	//FOLLOWING THE CHANGES//
+	//---------------------//
+
+	/**
+	 * forgets the paths leading to an element which has been removed, renamed or moved, or to an element of its subtree
+	 * @param element the element
+	 */
+	public void elementRemoved(Hierarchy element) {
+		if (elements.isEmpty()){
+			return;
+		}
+		Iterator<Hierarchy> cachedElements = elements.values().iterator();
+		while (cachedElements.hasNext()){
+			Hierarchy cached = cachedElements.next();
+			if (element instanceof File){
+				//A file has no subtree
+				if (cached == element){
+					cachedElements.remove();
+				}
+				continue;
+			}
+			for (Hierarchy ancestor = cached; ancestor != null; ancestor = ancestor.getParent()){
+				if (ancestor == element){
+					cachedElements.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * forgets the missing paths, once an element has been added or renamed
+	 */
+	public void elementAdded() {
+		missing.clear();
+	}
+
+	/**
+	 * forgets all the paths, when the hierarchy is replaced
+	 */
+	public void clear() {
+		elements.clear();
+		missing.clear();
+	}
+}
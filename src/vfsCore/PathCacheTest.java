@@ -0,0 +1,96 @@
+package vfsCore;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import vfsCore.exceptions.fileNotFound;
+
+public class PathCacheTest {
+
+	/**
+	 * the root of FolderTest.initRoot, with a cache
+	 */
+	private static Folder createRoot(int capacity) {
+		Folder root = FolderTest.initRoot();
+		root.setPathCache(new PathCache(capacity));
+		return root;
+	}
+
+	private static boolean exists(Folder root, String path) {
+		try {
+			root.findChild(path);
+			return true;
+		} catch (fileNotFound e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void testHitsAndMisses() throws fileNotFound {
+		Folder root = createRoot(16);
+		PathCache cache = root.getPathCache();
+		Hierarchy file = root.findChild("/a/b/c.txt");
+		assertEquals(file, root.findChild("/A/b/C.TXT"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		//The missing paths are remembered too
+		assertFalse(exists(root, "/a/x"));
+		assertFalse(exists(root, "/a/x"));
+		assertEquals(2, cache.getHits());
+		//A file has no children
+		assertFalse(exists(root, "/a/b/c.txt/e"));
+		//Until an element is added
+		((Folder) root.findChild("/a")).addChild(new File("x", 2, 20, null));
+		assertTrue(exists(root, "/a/x"));
+	}
+
+	@Test
+	public void testRenameMoveAndDelete() throws fileNotFound {
+		Folder root = createRoot(16);
+		Hierarchy file = root.findChild("/a/b/c.txt");
+		Folder a = (Folder) root.findChild("/a");
+		assertFalse(exists(root, "/e/b/c.txt"));
+		a.setName("e");
+		assertFalse(exists(root, "/a/b/c.txt"));
+		assertEquals(file, root.findChild("/e/b/c.txt"));
+		//The subtree of a moved folder is followed from its new place
+		Folder b = (Folder) root.findChild("/e/b");
+		Folder d = (Folder) root.findChild("/d");
+		a.removeChild(b);
+		d.addChild(b);
+		assertFalse(exists(root, "/e/b/c.txt"));
+		assertEquals(file, root.findChild("/d/b/c.txt"));
+		root.removeChild(d);
+		assertFalse(exists(root, "/d/b/c.txt"));
+		assertFalse(exists(root, "/d"));
+	}
+
+	@Test
+	public void testMoveOnAnExistingName() throws fileNotFound {
+		Folder root = createRoot(16);
+		Hierarchy c = root.findChild("/a/b/c.txt");
+		Hierarchy moved = root.findChild("/a/C.TXT");
+		//Moved to a folder holding a file with its old name
+		FolderTest.move(moved, (Folder) root.findChild("/a/b"), "moved");
+		assertEquals(c, root.findChild("/a/b/c.txt"));
+		assertEquals(moved, root.findChild("/a/b/moved"));
+		assertFalse(exists(root, "/a/C.TXT"));
+	}
+
+	@Test
+	public void testEviction() throws fileNotFound {
+		Folder root = createRoot(2);
+		PathCache cache = root.getPathCache();
+		root.findChild("/a");
+		root.findChild("/a/b");
+		root.findChild("/a");
+		root.findChild("/d");
+		//"/a/b" was the least recently used path
+		assertEquals(2, cache.getSize());
+		root.findChild("/a");
+		root.findChild("/a/b");
+		assertEquals(4, cache.getMisses());
+		assertEquals(2, cache.getHits());
+	}
+}
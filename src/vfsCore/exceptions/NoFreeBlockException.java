@@ -0,0 +1,23 @@
+package vfsCore.exceptions;
+
+import java.io.IOException;
+
+/**
+ * this exception is thrown when there aren't enough free blocks on the VFS disk for an operation,
+ * to tell it apart from the errors of the .dsk file
+ *
+ */
+
+public class NoFreeBlockException extends IOException {
+
+	/**
+	 * serial UID for serialization
+	 */
+	private static final long serialVersionUID = 4343658757212168448L;
+	
+	public NoFreeBlockException(String e){
+		super(e);
+	}
+	
+
+}
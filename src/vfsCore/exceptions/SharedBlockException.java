@@ -0,0 +1,22 @@
+package vfsCore.exceptions;
+
+import java.io.IOException;
+
+/**
+ * this exception is thrown when a block which must be moved is shared with other files by the deduplication (see CoreIO.evacuateFile)
+ *
+ */
+
+public class SharedBlockException extends IOException {
+
+	/**
+	 * serial UID for serialization
+	 */
+	private static final long serialVersionUID = 1856613247660612403L;
+	
+	public SharedBlockException(String e){
+		super(e);
+	}
+	
+
+}
@@ -23,15 +23,8 @@ public class SizeVisitor implements Visitor{
 	
 	@Override
 	public void visit(Folder folder) {
-		//For a folder, its size is zero
-		if (folder.getChildren()==null){
-			sizeUsed = sizeUsed+0;
-		} else {
-			//and we add the size of its children using the same SizeVisitor
-			for(Hierarchy child:folder.getChildren()){
-				child.accept(this);
-			}
-		}
+		//For a folder, we use the total size of its subtree, kept up to date by the folder itself
+		sizeUsed = sizeUsed + folder.getSubtreeSize();
 	}
 
 	@Override